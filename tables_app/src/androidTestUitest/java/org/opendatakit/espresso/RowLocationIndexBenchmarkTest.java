@@ -0,0 +1,130 @@
+package org.opendatakit.espresso;
+
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.tables.data.RowLocationIndex;
+
+import java.util.List;
+import java.util.Random;
+
+import static android.support.test.espresso.matcher.ViewMatchers.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Times building and querying a {@link RowLocationIndex} at 10k, 100k and 1M points, and checks
+ * its answers against a scan of every point. The timings are written to the log under this
+ * class's name, there is nothing to compare them against on the build server.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RowLocationIndexBenchmarkTest {
+  private static final String TAG = RowLocationIndexBenchmarkTest.class.getSimpleName();
+
+  private static final int NEAREST_QUERIES = 1000;
+  // checking against a scan of every point is slow, so only some of the queries are checked
+  private static final int CHECKED_QUERIES = 50;
+  private static final float CLUSTER_CELL_DP = 64;
+  private static final long SEED = 20181018L;
+
+  @Test
+  public void benchmark_10k() {
+    benchmark(10000);
+  }
+
+  @Test
+  public void benchmark_100k() {
+    benchmark(100000);
+  }
+
+  @Test
+  public void benchmark_1M() {
+    benchmark(1000000);
+  }
+
+  private void benchmark(int numberOfPoints) {
+    Random random = new Random(SEED);
+    // half spread over a region, like a survey, and half clumped around a few towns
+    double[] latitudes = new double[numberOfPoints];
+    double[] longitudes = new double[numberOfPoints];
+    for (int i = 0; i < numberOfPoints; i++) {
+      if (i % 2 == 0) {
+        latitudes[i] = -5 + 10 * random.nextDouble();
+        longitudes[i] = 30 + 10 * random.nextDouble();
+      } else {
+        int town = random.nextInt(8);
+        latitudes[i] = -4 + town + 0.05 * random.nextGaussian();
+        longitudes[i] = 31 + town + 0.05 * random.nextGaussian();
+      }
+    }
+    // and a few without a location
+    for (int i = 0; i < numberOfPoints; i += 97) {
+      latitudes[i] = Double.NaN;
+    }
+
+    long start = SystemClock.elapsedRealtime();
+    RowLocationIndex index = RowLocationIndex.build(latitudes, longitudes);
+    long built = SystemClock.elapsedRealtime();
+
+    double[] queryLatitudes = new double[NEAREST_QUERIES];
+    double[] queryLongitudes = new double[NEAREST_QUERIES];
+    for (int q = 0; q < NEAREST_QUERIES; q++) {
+      queryLatitudes[q] = -6 + 12 * random.nextDouble();
+      queryLongitudes[q] = 29 + 12 * random.nextDouble();
+    }
+    int[] nearest = new int[NEAREST_QUERIES];
+    long nearestStart = SystemClock.elapsedRealtime();
+    for (int q = 0; q < NEAREST_QUERIES; q++) {
+      nearest[q] = index.nearest(queryLatitudes[q], queryLongitudes[q]);
+    }
+    long nearestEnd = SystemClock.elapsedRealtime();
+
+    // the whole region, a town and a street
+    LatLngBounds[] screens = new LatLngBounds[] {
+        new LatLngBounds(new LatLng(-6, 29), new LatLng(6, 41)),
+        new LatLngBounds(new LatLng(-0.2, 34.8), new LatLng(0.2, 35.2)),
+        new LatLngBounds(new LatLng(-0.002, 34.998), new LatLng(0.002, 35.002)) };
+    float[] zooms = new float[] { 6, 12, 18 };
+    StringBuilder clusterTimes = new StringBuilder();
+    for (int s = 0; s < screens.length; s++) {
+      long clusterStart = SystemClock.elapsedRealtime();
+      List<RowLocationIndex.Cluster> clusters = index
+          .cluster(screens[s], zooms[s], CLUSTER_CELL_DP);
+      long clusterEnd = SystemClock.elapsedRealtime();
+      clusterTimes.append(" zoom ").append(zooms[s]).append(": ").append(clusters.size())
+          .append(" markers in ").append(clusterEnd - clusterStart).append("ms");
+    }
+
+    Log.i(TAG, numberOfPoints + " points: built in " + (built - start) + "ms, "
+        + NEAREST_QUERIES + " nearest queries in " + (nearestEnd - nearestStart) + "ms,"
+        + clusterTimes);
+
+    for (int q = 0; q < CHECKED_QUERIES; q++) {
+      int expected = RowLocationIndex.NO_ROW;
+      double expectedDistance = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < numberOfPoints; i++) {
+        if (!index.hasLocation(i)) {
+          continue;
+        }
+        double distance = RowLocationIndex
+            .distance(queryLatitudes[q], queryLongitudes[q], latitudes[i], longitudes[i]);
+        if (distance < expectedDistance) {
+          expectedDistance = distance;
+          expected = i;
+        }
+      }
+      double distance = RowLocationIndex
+          .distance(queryLatitudes[q], queryLongitudes[q], latitudes[nearest[q]],
+              longitudes[nearest[q]]);
+      // another point at exactly the same distance is just as good
+      assertThat(nearest[q] == expected || distance == expectedDistance, is(true));
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.opendatakit.espresso;
+
+import android.Manifest;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.espresso.NoMatchingViewException;
+import android.support.test.espresso.ViewAssertion;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.rule.GrantPermissionRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.test.uiautomator.UiDevice;
+import android.view.View;
+import android.view.ViewGroup;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.junit.runner.RunWith;
+import org.opendatakit.tables.activities.MainActivity;
+import org.opendatakit.tables.views.SpreadsheetView;
+import org.opendatakit.util.DisableAnimationsRule;
+import org.opendatakit.util.EspressoUtils;
+import org.opendatakit.util.ODKMatchers;
+import org.opendatakit.util.UAUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.support.test.espresso.Espresso.onData;
+import static android.support.test.espresso.Espresso.onView;
+import static android.support.test.espresso.action.ViewActions.click;
+import static android.support.test.espresso.matcher.ViewMatchers.assertThat;
+import static android.support.test.espresso.matcher.ViewMatchers.isAssignableFrom;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.opendatakit.util.TestConstants.T_HOUSE_E_TABLE_ID;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SpreadsheetDrawTest extends AbsBaseTest {
+  @ClassRule
+  public static DisableAnimationsRule disableAnimationsRule = new DisableAnimationsRule();
+
+  // TabularView is package private, so it is found by name
+  private static final String TABULAR_VIEW_CLASS = "TabularView";
+  // frames drawn before counting, the first one pages in and formats the visible rows
+  private static final int WARM_UP_FRAMES = 2;
+  private static final int COUNTED_FRAMES = 20;
+
+  private Boolean initSuccess = null;
+  private UiDevice mDevice;
+
+  // don't annotate used in chain rule
+  private ActivityTestRule<MainActivity> mActivityRule = new ActivityTestRule<MainActivity>(
+      MainActivity.class) {
+    @Override
+    protected void beforeActivityLaunched() {
+      super.beforeActivityLaunched();
+
+      if (initSuccess == null) {
+        mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        initSuccess = UAUtils.turnOnCustomHome(mDevice);
+      }
+    }
+  };
+
+  // don't annotate used in chain rule
+  private GrantPermissionRule grantPermissionRule = GrantPermissionRule.grant(
+      Manifest.permission.WRITE_EXTERNAL_STORAGE,
+      Manifest.permission.READ_EXTERNAL_STORAGE,
+      Manifest.permission.ACCESS_FINE_LOCATION
+  );
+
+  @Rule
+  public TestRule chainedRules = RuleChain
+      .outerRule(grantPermissionRule)
+      .around(mActivityRule);
+
+  private static void findTabularViews(View view, List<View> found) {
+    if (view.getClass().getSimpleName().equals(TABULAR_VIEW_CLASS)) {
+      found.add(view);
+    } else if (view instanceof ViewGroup) {
+      ViewGroup group = (ViewGroup) view;
+      for (int i = 0; i < group.getChildCount(); i++) {
+        findTabularViews(group.getChildAt(i), found);
+      }
+    }
+  }
+
+  private static void drawFrame(View[] views, Canvas canvas) {
+    for (int i = 0; i < views.length; i++) {
+      views[i].draw(canvas);
+    }
+  }
+
+  @Before
+  public void setup() {
+    UAUtils.assertInitSucess(initSuccess);
+    EspressoUtils.openTableManagerFromCustomHome();
+
+    //click "Tea Houses Editable", opens in a spreadsheet
+    onData(ODKMatchers.withTable(T_HOUSE_E_TABLE_ID)).perform(click());
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void spreadsheet_drawDoesNotAllocate() {
+    final int[] viewCount = new int[1];
+    final int[] allocations = new int[1];
+
+    // assertions run on the main thread, which is where the allocations are counted
+    onView(isAssignableFrom(SpreadsheetView.class)).check(new ViewAssertion() {
+      @Override
+      public void check(View view, NoMatchingViewException noViewFoundException) {
+        if (noViewFoundException != null) {
+          throw noViewFoundException;
+        }
+
+        List<View> found = new ArrayList<>();
+        findTabularViews(view, found);
+        View[] views = found.toArray(new View[found.size()]);
+        viewCount[0] = views.length;
+
+        Bitmap bitmap = Bitmap
+            .createBitmap(Math.max(view.getWidth(), 1), Math.max(view.getHeight(), 1),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+          drawFrame(views, canvas);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+          for (int i = 0; i < COUNTED_FRAMES; i++) {
+            drawFrame(views, canvas);
+          }
+        } finally {
+          Debug.stopAllocCounting();
+        }
+        allocations[0] = Debug.getThreadAllocCount();
+
+        bitmap.recycle();
+      }
+    });
+
+    assertThat(viewCount[0], greaterThan(0));
+    assertThat(allocations[0], is(0));
+  }
+}
@@ -0,0 +1,252 @@
+package org.opendatakit.espresso;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.IntentFilter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.rule.GrantPermissionRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.test.runner.lifecycle.ActivityLifecycleMonitorRegistry;
+import android.support.test.runner.lifecycle.Stage;
+import android.support.test.uiautomator.UiDevice;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.junit.runner.RunWith;
+import org.opendatakit.tables.activities.AbsBaseWebActivity;
+import org.opendatakit.tables.activities.MainActivity;
+import org.opendatakit.util.DisableAnimationsRule;
+import org.opendatakit.util.UAUtils;
+
+import java.util.Arrays;
+
+import static android.support.test.espresso.matcher.ViewMatchers.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.opendatakit.util.TestConstants.OI_PICK_FILE;
+
+/**
+ * Goes through the web activity itself, rather than just its queues, which
+ * {@link WebResponseQueuesStressTest} hammers from many threads: a response too long for the page
+ * is handed over a chunk at a time and let go of once it has been read, and the pending action
+ * and session variables have to survive the activity being recreated.
+ * <p>
+ * The fragment ids used here don't belong to any web view, so the page that is showing never
+ * reads the responses sent to them.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class WebActivityResponseTest {
+  @ClassRule
+  public static DisableAnimationsRule disableAnimationsRule = new DisableAnimationsRule();
+
+  private static final String PLAIN_FRAGMENT_ID = "responseTestPlain";
+  private static final String CHUNKED_FRAGMENT_ID = "responseTestChunked";
+  /**
+   * Longer than the smallest chunk length a page can ask for, so it takes several chunks
+   */
+  private static final int LONG_RESPONSE_LENGTH = 10000;
+  private static final String CHUNKED_PREFIX = "{\"chunkedResponse\":";
+  private static final String SESSION_VARIABLE = "responseTest.sessionVariable";
+  private static final int RECREATE_TIMEOUT = 10 * 1000;
+
+  private Boolean initSuccess = null;
+  private UiDevice mDevice;
+
+  // don't annotate used in chain rule
+  private ActivityTestRule<MainActivity> mActivityRule = new ActivityTestRule<MainActivity>(
+      MainActivity.class) {
+    @Override
+    protected void beforeActivityLaunched() {
+      super.beforeActivityLaunched();
+
+      if (initSuccess == null) {
+        mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        initSuccess = UAUtils.turnOnCustomHome(mDevice);
+      }
+    }
+  };
+
+  // don't annotate used in chain rule
+  private GrantPermissionRule grantPermissionRule = GrantPermissionRule.grant(
+      Manifest.permission.WRITE_EXTERNAL_STORAGE,
+      Manifest.permission.READ_EXTERNAL_STORAGE,
+      Manifest.permission.ACCESS_FINE_LOCATION
+  );
+
+  @Rule
+  public TestRule chainedRules = RuleChain
+      .outerRule(grantPermissionRule)
+      .around(mActivityRule);
+
+  private Activity mRecreated = null;
+
+  @Before
+  public void setup() {
+    UAUtils.assertInitSucess(initSuccess);
+  }
+
+  @After
+  public void tearDown() {
+    if (mRecreated != null) {
+      mRecreated.finish();
+    }
+  }
+
+  @Test
+  public void longResponse_handedOverInChunksAndReleased() throws JSONException {
+    AbsBaseWebActivity activity = mActivityRule.getActivity();
+    String longResponse = longResponse();
+    activity.setResponseChunkLength(CHUNKED_FRAGMENT_ID, 1);
+    try {
+      activity.signalResponseAvailable("\"short\"", CHUNKED_FRAGMENT_ID);
+      activity.signalResponseAvailable(longResponse, CHUNKED_FRAGMENT_ID);
+      activity.signalResponseAvailable(longResponse, PLAIN_FRAGMENT_ID);
+
+      // short enough to go as it is
+      assertThat(activity.getResponseJSON(CHUNKED_FRAGMENT_ID), is("\"short\""));
+      String chunked = activity.getResponseJSON(CHUNKED_FRAGMENT_ID);
+      assertThat(chunked.startsWith(CHUNKED_PREFIX), is(true));
+      assertThat(readChunks(activity, chunked), is(longResponse));
+      // all read, so nothing is kept for it any more
+      assertThat(activity.getResponseChunk(getToken(chunked)), is(nullValue()));
+      assertThat(activity.getResponseJSON(CHUNKED_FRAGMENT_ID), is(nullValue()));
+
+      // a page that never asked for chunks gets it whole
+      assertThat(activity.getResponseJSON(PLAIN_FRAGMENT_ID), is(longResponse));
+    } finally {
+      activity.resetPageSettings(CHUNKED_FRAGMENT_ID);
+      activity.resetPageSettings(PLAIN_FRAGMENT_ID);
+    }
+  }
+
+  @Test
+  public void resetPageSettings_dropsUnreadChunksAndChunkLength() throws JSONException {
+    AbsBaseWebActivity activity = mActivityRule.getActivity();
+    String longResponse = longResponse();
+    activity.setResponseChunkLength(CHUNKED_FRAGMENT_ID, 1);
+    activity.signalResponseAvailable(longResponse, CHUNKED_FRAGMENT_ID);
+    String chunked = activity.getResponseJSON(CHUNKED_FRAGMENT_ID);
+    assertThat(chunked.startsWith(CHUNKED_PREFIX), is(true));
+    String token = getToken(chunked);
+    assertThat(activity.getResponseChunk(token), is(notNullValue()));
+
+    // the page is replaced halfway through reading it
+    activity.resetPageSettings(CHUNKED_FRAGMENT_ID);
+    assertThat(activity.getResponseChunk(token), is(nullValue()));
+
+    // the new page hasn't asked for chunks
+    activity.signalResponseAvailable(longResponse, CHUNKED_FRAGMENT_ID);
+    assertThat(activity.getResponseJSON(CHUNKED_FRAGMENT_ID), is(longResponse));
+    activity.resetPageSettings(CHUNKED_FRAGMENT_ID);
+  }
+
+  @Test
+  public void pendingActionAndSessionVariables_surviveRecreation() throws Throwable {
+    Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+    // catch the launch, and never answer it, so the action stays pending
+    Instrumentation.ActivityMonitor monitor = instrumentation
+        .addMonitor(new IntentFilter(OI_PICK_FILE), null, true);
+    try {
+      final MainActivity activity = mActivityRule.getActivity();
+      activity.setSessionVariable(SESSION_VARIABLE, "\"saved\"");
+      final String[] outcome = new String[1];
+      mActivityRule.runOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          outcome[0] = activity.doAction("{\"test\":\"pendingAction\"}", OI_PICK_FILE, null);
+        }
+      });
+      assertThat(outcome[0], is("OK"));
+      assertThat(monitor.getHits(), is(1));
+      assertThat(activity.isWaitingForBinaryData(), is(true));
+
+      mActivityRule.runOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          activity.recreate();
+        }
+      });
+      AbsBaseWebActivity recreated = waitForRecreated(instrumentation, activity);
+      mRecreated = recreated;
+      assertThat(recreated, is(notNullValue()));
+      assertThat(recreated.isWaitingForBinaryData(), is(true));
+      assertThat(recreated.getSessionVariable(SESSION_VARIABLE), is("\"saved\""));
+      // clearing a variable isn't undone by the next save and restore
+      recreated.setSessionVariable(SESSION_VARIABLE, null);
+      assertThat(recreated.getSessionVariable(SESSION_VARIABLE), is(nullValue()));
+    } finally {
+      instrumentation.removeMonitor(monitor);
+    }
+  }
+
+  /**
+   * Reads a response a chunk at a time, the way a page does
+   *
+   * @param activity the activity holding the response
+   * @param chunked  the {"chunkedResponse":{...}} object handed over in place of the response
+   * @return the response, put back together
+   */
+  private static String readChunks(AbsBaseWebActivity activity, String chunked)
+      throws JSONException {
+    String token = getToken(chunked);
+    int length = new JSONObject(chunked).getJSONObject("chunkedResponse").getInt("length");
+    StringBuilder response = new StringBuilder(length);
+    String chunk;
+    while ((chunk = activity.getResponseChunk(token)) != null) {
+      response.append(chunk);
+    }
+    assertThat(response.length(), is(length));
+    return response.toString();
+  }
+
+  /**
+   * @param chunked the {"chunkedResponse":{...}} object handed over in place of a response
+   * @return the token the response is read with
+   */
+  private static String getToken(String chunked) throws JSONException {
+    return new JSONObject(chunked).getJSONObject("chunkedResponse").getString("token");
+  }
+
+  /**
+   * @return a JSON string too long to be handed to a page that reads in chunks all at once
+   */
+  private static String longResponse() {
+    char[] padding = new char[LONG_RESPONSE_LENGTH];
+    Arrays.fill(padding, 'x');
+    return "\"" + new String(padding) + "\"";
+  }
+
+  private static AbsBaseWebActivity waitForRecreated(Instrumentation instrumentation,
+      final Activity old) throws InterruptedException {
+    final AbsBaseWebActivity[] recreated = new AbsBaseWebActivity[1];
+    long deadline = System.currentTimeMillis() + RECREATE_TIMEOUT;
+    while (recreated[0] == null && System.currentTimeMillis() < deadline) {
+      instrumentation.waitForIdleSync();
+      instrumentation.runOnMainSync(new Runnable() {
+        @Override
+        public void run() {
+          for (Activity resumed : ActivityLifecycleMonitorRegistry.getInstance()
+              .getActivitiesInStage(Stage.RESUMED)) {
+            if (resumed != old && resumed instanceof AbsBaseWebActivity) {
+              recreated[0] = (AbsBaseWebActivity) resumed;
+            }
+          }
+        }
+      });
+      if (recreated[0] == null) {
+        Thread.sleep(100);
+      }
+    }
+    return recreated[0];
+  }}
@@ -0,0 +1,147 @@
+package org.opendatakit.espresso;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.tables.utils.Constants;
+import org.opendatakit.tables.views.webkits.WebResponseQueues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.support.test.espresso.matcher.ViewMatchers.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Hammers {@link WebResponseQueues} the way the detail-with-list screen does, with database
+ * threads delivering responses to both web views while both of them read theirs. Every response
+ * must be read exactly once, by the web view it was sent to, and the responses from any one
+ * thread must come out in the order they went in.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class WebResponseQueuesStressTest {
+  private static final String[] FRAGMENT_IDS = { null,
+      Constants.FragmentTags.DETAIL_WITH_LIST_LIST };
+  private static final int PRODUCERS_PER_FRAGMENT = 4;
+  private static final int CONSUMERS_PER_FRAGMENT = 2;
+  private static final int RESPONSES_PER_PRODUCER = 50000;
+
+  @Test
+  public void queues_noLostOrReorderedResponses() throws InterruptedException {
+    final WebResponseQueues queues = new WebResponseQueues();
+    final CountDownLatch start = new CountDownLatch(1);
+    final int total = PRODUCERS_PER_FRAGMENT * RESPONSES_PER_PRODUCER;
+    List<Thread> threads = new ArrayList<>();
+    // what each consumer read, per fragment
+    final List<List<List<String>>> read = new ArrayList<>();
+
+    for (int f = 0; f < FRAGMENT_IDS.length; f++) {
+      final String fragmentID = FRAGMENT_IDS[f];
+      final String prefix = f + ":";
+      for (int p = 0; p < PRODUCERS_PER_FRAGMENT; p++) {
+        final String producer = prefix + p + ":";
+        threads.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            await(start);
+            for (int i = 0; i < RESPONSES_PER_PRODUCER; i++) {
+              queues.add(fragmentID, producer + i);
+            }
+          }
+        }));
+      }
+
+      final AtomicInteger remaining = new AtomicInteger(total);
+      List<List<String>> fragmentRead = new ArrayList<>();
+      read.add(fragmentRead);
+      for (int c = 0; c < CONSUMERS_PER_FRAGMENT; c++) {
+        final List<String> consumerRead = new ArrayList<>();
+        fragmentRead.add(consumerRead);
+        threads.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            await(start);
+            while (remaining.get() > 0) {
+              String response = queues.poll(fragmentID);
+              if (response != null) {
+                consumerRead.add(response);
+                remaining.decrementAndGet();
+              }
+            }
+          }
+        }));
+      }
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    for (int f = 0; f < FRAGMENT_IDS.length; f++) {
+      assertThat(queues.poll(FRAGMENT_IDS[f]), is(nullValue()));
+      boolean[][] seen = new boolean[PRODUCERS_PER_FRAGMENT][RESPONSES_PER_PRODUCER];
+      int count = 0;
+      for (List<String> consumerRead : read.get(f)) {
+        int[] last = new int[PRODUCERS_PER_FRAGMENT];
+        for (int p = 0; p < PRODUCERS_PER_FRAGMENT; p++) {
+          last[p] = -1;
+        }
+        for (String response : consumerRead) {
+          String[] parts = response.split(":");
+          // read by the right web view
+          assertThat(Integer.parseInt(parts[0]), is(f));
+          int p = Integer.parseInt(parts[1]);
+          int i = Integer.parseInt(parts[2]);
+          // not read twice, and after everything the same producer sent before it
+          assertThat(seen[p][i], is(false));
+          assertThat(i > last[p], is(true));
+          seen[p][i] = true;
+          last[p] = i;
+          count++;
+        }
+      }
+      assertThat(count, is(PRODUCERS_PER_FRAGMENT * RESPONSES_PER_PRODUCER));
+    }
+  }
+
+  @Test
+  public void queues_savedAndRestoredInOrder() {
+    WebResponseQueues queues = new WebResponseQueues();
+    for (int i = 0; i < 10; i++) {
+      queues.add(null, "main" + i);
+      queues.add(Constants.FragmentTags.DETAIL_WITH_LIST_LIST, "sublist" + i);
+    }
+    // a response the page has already read isn't saved
+    assertThat(queues.poll(null), is("main0"));
+
+    WebResponseQueues restored = new WebResponseQueues();
+    restored.restore(null, queues.toArray(null));
+    restored.restore(Constants.FragmentTags.DETAIL_WITH_LIST_LIST,
+        queues.toArray(Constants.FragmentTags.DETAIL_WITH_LIST_LIST));
+    for (int i = 1; i < 10; i++) {
+      assertThat(restored.poll(null), is("main" + i));
+    }
+    for (int i = 0; i < 10; i++) {
+      assertThat(restored.poll(Constants.FragmentTags.DETAIL_WITH_LIST_LIST), is("sublist" + i));
+    }
+    assertThat(restored.poll(null), is(nullValue()));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package org.opendatakit.espresso;
+
+import android.Manifest;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.rule.GrantPermissionRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.test.uiautomator.UiDevice;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.junit.runner.RunWith;
+import org.opendatakit.tables.activities.MainActivity;
+import org.opendatakit.tables.views.webkits.OdkTablesWebView;
+import org.opendatakit.tables.views.webkits.OdkTablesWebViewPool;
+import org.opendatakit.util.DisableAnimationsRule;
+import org.opendatakit.util.UAUtils;
+import org.opendatakit.webkitserver.utilities.UrlUtils;
+
+import static android.support.test.espresso.matcher.ViewMatchers.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.opendatakit.util.TestConstants.APP_NAME;
+import static org.opendatakit.util.TestConstants.T_HOUSE_TABLE_ID;
+import static org.opendatakit.util.TestConstants.WEB_WAIT_TIMEOUT;
+
+/**
+ * A web view handed back to {@link OdkTablesWebViewPool} is handed out again to the next
+ * fragment, which must be able to load its own page into it.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class WebViewPoolTest {
+  @ClassRule
+  public static DisableAnimationsRule disableAnimationsRule = new DisableAnimationsRule();
+
+  /**
+   * Not the id of a real fragment, so the pages' responses never go to the activity's own page
+   */
+  private static final String FRAGMENT_ID = "webViewPoolTest";
+  private static final String BLANK_PAGE = "about:blank";
+  private static final String FIRST_PAGE = "config/assets/index.html";
+  private static final String SECOND_PAGE =
+      "config/tables/" + T_HOUSE_TABLE_ID + "/html/" + T_HOUSE_TABLE_ID + "_list.html";
+
+  private Boolean initSuccess = null;
+  private UiDevice mDevice;
+
+  // don't annotate used in chain rule
+  private ActivityTestRule<MainActivity> mActivityRule = new ActivityTestRule<MainActivity>(
+      MainActivity.class) {
+    @Override
+    protected void beforeActivityLaunched() {
+      super.beforeActivityLaunched();
+
+      if (initSuccess == null) {
+        mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        initSuccess = UAUtils.turnOnCustomHome(mDevice);
+      }
+    }
+  };
+
+  // don't annotate used in chain rule
+  private GrantPermissionRule grantPermissionRule = GrantPermissionRule.grant(
+      Manifest.permission.WRITE_EXTERNAL_STORAGE,
+      Manifest.permission.READ_EXTERNAL_STORAGE,
+      Manifest.permission.ACCESS_FINE_LOCATION
+  );
+
+  @Rule
+  public TestRule chainedRules = RuleChain
+      .outerRule(grantPermissionRule)
+      .around(mActivityRule);
+
+  @Before
+  public void setup() {
+    UAUtils.assertInitSucess(initSuccess);
+  }
+
+  @Test
+  public void recycledWebView_loadsSecondPage() throws Throwable {
+    final MainActivity activity = mActivityRule.getActivity();
+    final OdkTablesWebViewPool pool = activity.getWebViewPool();
+    final String firstUrl = UrlUtils.getAsWebViewUri(APP_NAME, FIRST_PAGE);
+    final String secondUrl = UrlUtils.getAsWebViewUri(APP_NAME, SECOND_PAGE);
+    final LinearLayout[] containers = new LinearLayout[2];
+    final OdkTablesWebView[] webViews = new OdkTablesWebView[2];
+
+    mActivityRule.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        containers[0] = addContainer(activity);
+        webViews[0] = pool.attach(containers[0]);
+        webViews[0].setContainerFragmentID(FRAGMENT_ID);
+        webViews[0].setVisibility(View.VISIBLE);
+        webViews[0].loadPageOnUiThread(firstUrl, FRAGMENT_ID);
+      }
+    });
+    waitForUrl(webViews[0], firstUrl);
+
+    mActivityRule.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        // the fragment's view is destroyed, and the next fragment gets its web view
+        pool.recycle(webViews[0]);
+        removeContainer(containers[0]);
+        containers[1] = addContainer(activity);
+        webViews[1] = pool.attach(containers[1]);
+      }
+    });
+    assertThat(webViews[1], is(sameInstance(webViews[0])));
+    assertThat(webViews[1].getContainerFragmentID(), is(nullValue()));
+    // the first page was unloaded
+    waitForUrl(webViews[1], BLANK_PAGE);
+
+    mActivityRule.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        webViews[1].setContainerFragmentID(FRAGMENT_ID);
+        webViews[1].setVisibility(View.VISIBLE);
+        webViews[1].loadPageOnUiThread(secondUrl, FRAGMENT_ID);
+      }
+    });
+    try {
+      waitForUrl(webViews[1], secondUrl);
+    } finally {
+      mActivityRule.runOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          pool.recycle(webViews[1]);
+          removeContainer(containers[1]);
+        }
+      });
+    }
+  }
+
+  private static LinearLayout addContainer(MainActivity activity) {
+    LinearLayout container = new LinearLayout(activity);
+    ((ViewGroup) activity.findViewById(android.R.id.content)).addView(container,
+        new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+            ViewGroup.LayoutParams.MATCH_PARENT));
+    return container;
+  }
+
+  private static void removeContainer(LinearLayout container) {
+    ((ViewGroup) container.getParent()).removeView(container);
+  }
+
+  private String getUrl(final OdkTablesWebView webView) throws Throwable {
+    final String[] url = new String[1];
+    mActivityRule.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        url[0] = webView.getUrl();
+      }
+    });
+    return url[0];
+  }
+
+  private void waitForUrl(OdkTablesWebView webView, String url) throws Throwable {
+    long deadline = System.currentTimeMillis() + WEB_WAIT_TIMEOUT;
+    while (!url.equals(getUrl(webView)) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    assertThat(getUrl(webView), is(url));
+  }
+}
@@ -15,7 +15,9 @@ import org.opendatakit.properties.DynamicPropertiesCallback;
 import org.opendatakit.properties.PropertyManager;
 import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.utils.Constants;
+import org.opendatakit.tables.views.webkits.OdkTablesWebViewPool;
 import org.opendatakit.tables.views.webkits.TableDataExecutorProcessor;
+import org.opendatakit.tables.views.webkits.WebResponseQueues;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.views.ExecutorContext;
 import org.opendatakit.views.ExecutorProcessor;
@@ -23,8 +25,17 @@ import org.opendatakit.views.ODKWebView;
 import org.opendatakit.webkitserver.utilities.DoActionUtils;
 import org.opendatakit.webkitserver.utilities.UrlUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author mitchellsundt@gmail.com
@@ -52,27 +63,68 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
   private static final String RESPONSE_JSON_SUBLIST = "responseJSON_sublist";
 
   /**
-   * With the advent of the split screen detail-with-sublist view, we need to
-   * guard access to the data and result queues and session variable data structures.
+   * The shortest chunk a response is split into, so a page can't ask for thousands of calls
+   */
+  private static final int MIN_RESPONSE_CHUNK_LENGTH = 4096;
+  /**
+   * The most chunked responses kept for one page, a page that never finishes reading them can't
+   * make us hold on to more than this
+   */
+  private static final int MAX_CHUNKED_RESPONSES_PER_PAGE = 8;
+
+  /**
+   * With the advent of the split screen detail-with-sublist view, the data and result queues and
+   * the session variables are used from several threads at once: the webkits' javascript bridge
+   * threads, the threads delivering database responses and the UI thread.
    *
-   * The queued data response lists need to be separated into response streams for each webkit
-   * that is active. We currently can have either one or two (detail-with-sublist) active.
+   * The queued data responses are separated into response streams for each webkit that is
+   * active. We currently can have either one or two (detail-with-sublist) active. The queues are
+   * lock free, so neither webkit ever waits on the other or on a response being delivered.
    *
-   * The dispatchString, action, and queuedActions (action results) are guarded only
-   * to ensure that they are updated concurrently and consistently. Results are expected
-   * to be read from the primary webkit (e.g., the detail webkit).
+   * The dispatchString and action are held together so they are always set and cleared as a
+   * pair. Queued actions (action results) are expected to be read from the primary webkit (e.g.,
+   * the detail webkit).
    *
-   * The session variables bundle is a complex data structure and is guarded to ensure the two
-   * webkits don't attempt to manipulate it at the same time (it is unclear if the webkit threads
-   * will be the same thread or different).  Session variables are shared across the webkits.
+   * Session variables are shared across the webkits.
+   */
+  private final WebResponseQueues mResponseQueues = new WebResponseQueues();
+  private final AtomicReference<PendingAction> mPendingAction = new AtomicReference<>();
+  private final ConcurrentLinkedQueue<String> mQueuedActions = new ConcurrentLinkedQueue<>();
+  private final Map<String, String> mSessionVariables = new ConcurrentHashMap<>();
+  /**
+   * The query metadata sections each web view's page asked for, by {@link #getPageKey(String)}.
+   * A web view that isn't in here gets all of them. Set from the javascript bridge thread and
+   * read on the database thread, and cleared whenever a page is loaded.
+   */
+  private final Map<String, Set<String>> mRequestedQueryMetadata = new ConcurrentHashMap<>();
+  /**
+   * Responses longer than this are handed to a web view's page a chunk at a time, by
+   * {@link #getPageKey(String)}. A web view that isn't in here until its page says it can read
+   * them that way. Set from the javascript bridge thread, and cleared whenever a page is loaded.
+   */
+  private final Map<String, Integer> mResponseChunkLengths = new ConcurrentHashMap<>();
+  /**
+   * Responses being handed to the page a chunk at a time, by continuation token. They aren't
+   * saved with the instance state, since the page that was reading them is reloaded, and the ones
+   * for a web view are dropped when its page changes.
+   */
+  private final Map<String, ChunkedResponse> mChunkedResponses = new ConcurrentHashMap<>();
+  private final AtomicInteger mNextChunkToken = new AtomicInteger();
+  /**
+   * Counts the pages loaded into the web views and the in place changes of their queries. Each
+   * request records the count when it is queued, see {@link #getPageGeneration()}.
+   */
+  private final AtomicInteger mPageGeneration = new AtomicInteger();
+  /**
+   * The generation each web view's current page, or its current query, started in, by
+   * {@link #getPageKey(String)}. The answer to a request queued before then isn't for it.
+   */
+  private final Map<String, Integer> mPageStartGenerations = new ConcurrentHashMap<>();
+  /**
+   * The generation of the request whose answer the current thread is delivering, null on the
+   * threads that aren't running a request
    */
-  private final Object guardCachedContent = new Object();
-  private LinkedList<String> guardedQueueResponseJSON_main = new LinkedList<>();
-  private LinkedList<String> guardedQueueResponseJSON_sublist = new LinkedList<>();
-  private String guardedDispatchStringWaitingForData = null;
-  private String guardedActionWaitingForData = null;
-  private LinkedList<String> guardedQueuedActions = new LinkedList<>();
-  private Bundle guardedSessionVariables = new Bundle();
+  private final ThreadLocal<Integer> mRequestGeneration = new ThreadLocal<>();
   /**
    * Member variables that do not need to be preserved across orientation
    * changes, etc.
@@ -83,6 +135,9 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
   // no need to preserve
   private PropertyManager mPropertyManager;
 
+  // the web views can't outlive the activity they were constructed for
+  private OdkTablesWebViewPool mWebViewPool;
+
   public abstract String getInstanceId();
 
   /**
@@ -103,31 +158,33 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
   protected void onSaveInstanceState(Bundle outState) {
     super.onSaveInstanceState(outState);
 
-    synchronized (guardCachedContent) {
-      if (guardedDispatchStringWaitingForData != null) {
-        outState.putString(DISPATCH_STRING_WAITING_FOR_DATA, guardedDispatchStringWaitingForData);
-      }
-      if (guardedActionWaitingForData != null) {
-        outState.putString(ACTION_WAITING_FOR_DATA, guardedActionWaitingForData);
+    PendingAction pendingAction = mPendingAction.get();
+    if (pendingAction != null) {
+      if (pendingAction.dispatchString != null) {
+        outState.putString(DISPATCH_STRING_WAITING_FOR_DATA, pendingAction.dispatchString);
       }
+      outState.putString(ACTION_WAITING_FOR_DATA, pendingAction.action);
+    }
 
-      outState.putBundle(SESSION_VARIABLES, guardedSessionVariables);
+    Bundle sessionVariables = new Bundle();
+    for (Map.Entry<String, String> variable : mSessionVariables.entrySet()) {
+      sessionVariables.putString(variable.getKey(), variable.getValue());
+    }
+    outState.putBundle(SESSION_VARIABLES, sessionVariables);
 
-      if (!guardedQueuedActions.isEmpty()) {
-        String[] actionOutcomesArray = new String[guardedQueuedActions.size()];
-        guardedQueuedActions.toArray(actionOutcomesArray);
-        outState.putStringArray(QUEUED_ACTIONS, actionOutcomesArray);
-      }
+    if (!mQueuedActions.isEmpty()) {
+      String[] actionOutcomesArray = mQueuedActions.toArray(new String[mQueuedActions.size()]);
+      outState.putStringArray(QUEUED_ACTIONS, actionOutcomesArray);
+    }
 
-      if (!guardedQueueResponseJSON_main.isEmpty()) {
-        String[] qra = guardedQueueResponseJSON_main.toArray(new String[guardedQueueResponseJSON_main.size()]);
-        outState.putStringArray(RESPONSE_JSON_MAIN, qra);
-      }
+    String[] qra = mResponseQueues.toArray(null);
+    if (qra.length != 0) {
+      outState.putStringArray(RESPONSE_JSON_MAIN, qra);
+    }
 
-      if (!guardedQueueResponseJSON_sublist.isEmpty()) {
-        String[] qra = guardedQueueResponseJSON_sublist.toArray(new String[guardedQueueResponseJSON_sublist.size()]);
-        outState.putStringArray(RESPONSE_JSON_SUBLIST, qra);
-      }
+    qra = mResponseQueues.toArray(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
+    if (qra.length != 0) {
+      outState.putStringArray(RESPONSE_JSON_SUBLIST, qra);
     }
   }
 
@@ -143,49 +200,67 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
 
     mPropertyManager = new PropertyManager(this);
 
-    synchronized(guardCachedContent) {
-      if (savedInstanceState != null) {
-        // if we are restoring, assume that initialization has already occurred.
+    mWebViewPool = new OdkTablesWebViewPool(this, mAppName);
+    mWebViewPool.prewarm();
 
-        guardedDispatchStringWaitingForData = savedInstanceState.containsKey
-            (DISPATCH_STRING_WAITING_FOR_DATA) ?
-            savedInstanceState.getString(DISPATCH_STRING_WAITING_FOR_DATA) :
-            null;
-        guardedActionWaitingForData = savedInstanceState.containsKey(ACTION_WAITING_FOR_DATA) ?
-            savedInstanceState.getString(ACTION_WAITING_FOR_DATA) :
-            null;
+    if (savedInstanceState != null) {
+      // if we are restoring, assume that initialization has already occurred.
 
-        if (savedInstanceState.containsKey(SESSION_VARIABLES)) {
-          guardedSessionVariables = savedInstanceState.getBundle(SESSION_VARIABLES);
-        }
+      String action = savedInstanceState.getString(ACTION_WAITING_FOR_DATA);
+      mPendingAction.set(action == null ? null :
+          new PendingAction(savedInstanceState.getString(DISPATCH_STRING_WAITING_FOR_DATA),
+              action));
 
-        if (savedInstanceState.containsKey(QUEUED_ACTIONS)) {
-          String[] actionOutcomesArray = savedInstanceState.getStringArray(QUEUED_ACTIONS);
-          guardedQueuedActions.clear();
-          if (actionOutcomesArray != null) {
-            guardedQueuedActions.addAll(Arrays.asList(actionOutcomesArray));
+      Bundle sessionVariables = savedInstanceState.getBundle(SESSION_VARIABLES);
+      if (sessionVariables != null) {
+        mSessionVariables.clear();
+        for (String elementPath : sessionVariables.keySet()) {
+          String jsonValue = sessionVariables.getString(elementPath);
+          if (jsonValue != null) {
+            mSessionVariables.put(elementPath, jsonValue);
           }
         }
+      }
 
-        if (savedInstanceState.containsKey(RESPONSE_JSON_MAIN)) {
-          String[] pendingResponseJSON = savedInstanceState.getStringArray(RESPONSE_JSON_MAIN);
-          guardedQueueResponseJSON_main.clear();
-          if (pendingResponseJSON != null) {
-            guardedQueueResponseJSON_main.addAll(Arrays.asList(pendingResponseJSON));
-          }
+      if (savedInstanceState.containsKey(QUEUED_ACTIONS)) {
+        String[] actionOutcomesArray = savedInstanceState.getStringArray(QUEUED_ACTIONS);
+        mQueuedActions.clear();
+        if (actionOutcomesArray != null) {
+          mQueuedActions.addAll(Arrays.asList(actionOutcomesArray));
         }
+      }
 
-        if (savedInstanceState.containsKey(RESPONSE_JSON_SUBLIST)) {
-          String[] pendingResponseJSON = savedInstanceState.getStringArray(RESPONSE_JSON_SUBLIST);
-          guardedQueueResponseJSON_sublist.clear();
-          if (pendingResponseJSON != null) {
-            guardedQueueResponseJSON_sublist.addAll(Arrays.asList(pendingResponseJSON));
-          }
-        }
+      if (savedInstanceState.containsKey(RESPONSE_JSON_MAIN)) {
+        mResponseQueues.restore(null, savedInstanceState.getStringArray(RESPONSE_JSON_MAIN));
+      }
+
+      if (savedInstanceState.containsKey(RESPONSE_JSON_SUBLIST)) {
+        mResponseQueues.restore(Constants.FragmentTags.DETAIL_WITH_LIST_LIST,
+            savedInstanceState.getStringArray(RESPONSE_JSON_SUBLIST));
       }
     }
   }
 
+  @Override
+  protected void onDestroy() {
+    // the fragments give their web views back to the pool as they are destroyed
+    super.onDestroy();
+    mWebViewPool.destroy();
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      mWebViewPool.clear();
+    }
+  }
+
+  @Override
+  public OdkTablesWebViewPool getWebViewPool() {
+    return mWebViewPool;
+  }
+
   /**
    * Tries to pull the active user from the database
    *
@@ -236,16 +311,17 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
 
   @Override
   public void setSessionVariable(String elementPath, String jsonValue) {
-    synchronized (guardCachedContent) {
-      guardedSessionVariables.putString(elementPath, jsonValue);
+    // a null value clears the variable, as it did when they were kept in a Bundle
+    if (jsonValue == null) {
+      mSessionVariables.remove(elementPath);
+    } else {
+      mSessionVariables.put(elementPath, jsonValue);
     }
   }
 
   @Override
   public String getSessionVariable(String elementPath) {
-    synchronized (guardCachedContent) {
-      return guardedSessionVariables.getString(elementPath);
-    }
+    return mSessionVariables.get(elementPath);
   }
 
   /**
@@ -273,10 +349,7 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
       return "JSONException";
     }
 
-    synchronized (guardCachedContent) {
-      guardedDispatchStringWaitingForData = dispatchStructAsJSONstring;
-      guardedActionWaitingForData = action;
-    }
+    mPendingAction.set(new PendingAction(dispatchStructAsJSONstring, action));
 
     try {
       startActivityForResult(i, RequestCodeConsts.RequestCodes.LAUNCH_DOACTION);
@@ -294,20 +367,13 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
     ODKWebView view = getWebKitView(null);
 
     if (requestCode == RequestCodeConsts.RequestCodes.LAUNCH_DOACTION) {
-      String dispatchString;
-      String action;
-      synchronized (guardCachedContent) {
-        // save persisted values into a local variable
-        dispatchString = guardedDispatchStringWaitingForData;
-        action = guardedActionWaitingForData;
-
-        // clear the persisted values
-        guardedDispatchStringWaitingForData = null;
-        guardedActionWaitingForData = null;
-      }
-      // DoActionUtils may invoke queueActionOutcome (gaining the lock
-      // and adding the response to the queued actions) and, if it does,
-      // it will then also signal the view that there are responses available.
+      // take the persisted values and clear them in one step
+      PendingAction pendingAction = mPendingAction.getAndSet(null);
+      String dispatchString = pendingAction == null ? null : pendingAction.dispatchString;
+      String action = pendingAction == null ? null : pendingAction.action;
+      // DoActionUtils may invoke queueActionOutcome (adding the response
+      // to the queued actions) and, if it does, it will then also signal
+      // the view that there are responses available.
       DoActionUtils
           .processActivityResult(this, view, resultCode, intent,
               dispatchString,
@@ -317,25 +383,19 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
   }
 
   public boolean isWaitingForBinaryData() {
-    synchronized (guardCachedContent) {
-      return guardedActionWaitingForData != null;
-    }
+    return mPendingAction.get() != null;
   }
 
   @Override
   public void queueActionOutcome(String outcome) {
-    synchronized (guardCachedContent) {
-      guardedQueuedActions.addLast(outcome);
-    }
+    mQueuedActions.offer(outcome);
   }
 
   @Override
   public void queueUrlChange(String hash) {
     try {
       String jsonEncoded = ODKFileUtils.mapper.writeValueAsString(hash);
-      synchronized (guardCachedContent) {
-        guardedQueuedActions.addLast(jsonEncoded);
-      }
+      mQueuedActions.offer(jsonEncoded);
     } catch (Exception e) {
       WebLogger.getLogger(getAppName()).printStackTrace(e);
     }
@@ -343,18 +403,12 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
 
   @Override
   public String viewFirstQueuedAction() {
-    synchronized (guardCachedContent) {
-      return guardedQueuedActions.isEmpty() ? null : guardedQueuedActions.getFirst();
-    }
+    return mQueuedActions.peek();
   }
 
   @Override
   public void removeFirstQueuedAction() {
-    synchronized (guardCachedContent) {
-      if (!guardedQueuedActions.isEmpty()) {
-        guardedQueuedActions.removeFirst();
-      }
-    }
+    mQueuedActions.poll();
   }
 
   @Override
@@ -366,14 +420,20 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
           "signalResponseAvailable -- got " + responseJSON.length() + " long responseJSON!");
     }
 
+    Integer requestGeneration = mRequestGeneration.get();
+    Integer pageGeneration = mPageStartGenerations.get(getPageKey(fragmentID));
+    if (requestGeneration != null && pageGeneration != null
+        && requestGeneration < pageGeneration) {
+      // the page that asked is gone, and the one there now numbers its callbacks from the start
+      // again, so it could take this for the answer to one of its own requests
+      WebLogger.getLogger(getAppName()).d(TAG,
+          "signalResponseAvailable -- dropped the answer to a request from a replaced page");
+      return;
+    }
+
     if (responseJSON != null) {
-      synchronized (guardCachedContent) {
-        if (fragmentID != null && Constants.FragmentTags.DETAIL_WITH_LIST_LIST.equals(fragmentID)) {
-          this.guardedQueueResponseJSON_sublist.push(responseJSON);
-        } else {
-          this.guardedQueueResponseJSON_main.push(responseJSON);
-        }
-      }
+      // queued at the end, so the page reads its responses in the order they were delivered
+      mResponseQueues.add(fragmentID, responseJSON);
       final ODKWebView webView = getWebKitView(fragmentID);
       if (webView != null) {
         runOnUiThread(new Runnable() {
@@ -386,21 +446,159 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
     }
   }
 
+  /**
+   * Hands the next queued response to a web view. If it is longer than the page said it can read
+   * at once, it is kept here and the page gets a small JSON object instead,
+   * {"chunkedResponse":{"token":"...","length":...}}, and reads the response itself with
+   * {@link #getResponseChunk(String)}.
+   *
+   * @param fragmentID the id of the web view's fragment, if there are more than one
+   * @return the response, a continuation token, or null if there are no responses queued
+   */
   @Override
   public String getResponseJSON(String fragmentID) {
-    synchronized (guardCachedContent) {
-      if (fragmentID != null && Constants.FragmentTags.DETAIL_WITH_LIST_LIST.equals(fragmentID)) {
-        if (guardedQueueResponseJSON_sublist.isEmpty()) {
-          return null;
-        }
-        return guardedQueueResponseJSON_sublist.removeFirst();
-      } else {
-        if (guardedQueueResponseJSON_main.isEmpty()) {
-          return null;
-        }
-        return guardedQueueResponseJSON_main.removeFirst();
+    String responseJSON = mResponseQueues.poll(fragmentID);
+    String pageKey = getPageKey(fragmentID);
+    Integer chunkLength = mResponseChunkLengths.get(pageKey);
+    if (responseJSON == null || chunkLength == null || responseJSON.length() <= chunkLength) {
+      return responseJSON;
+    }
+    int tokenNumber = mNextChunkToken.incrementAndGet();
+    String token = Integer.toString(tokenNumber);
+    dropOldestChunkedResponses(pageKey, MAX_CHUNKED_RESPONSES_PER_PAGE - 1);
+    mChunkedResponses.put(token,
+        new ChunkedResponse(pageKey, tokenNumber, responseJSON, chunkLength));
+    return "{\"chunkedResponse\":{\"token\":\"" + token + "\",\"length\":"
+        + responseJSON.length() + "}}";
+  }
+
+  /**
+   * Drops the responses still waiting for a web view whose page is being replaced, or whose
+   * page's query is changed in place, so the page isn't handed the answers to the old queries.
+   * The requests already queued, or running, are from an older generation, so their answers are
+   * dropped as they arrive.
+   *
+   * @param fragmentID the id of the web view's fragment, if there are more than one
+   */
+  protected void discardResponses(String fragmentID) {
+    String pageKey = getPageKey(fragmentID);
+    newPageGeneration(pageKey);
+    mResponseQueues.clear(fragmentID);
+    dropOldestChunkedResponses(pageKey, 0);
+  }
+
+  /**
+   * Starts a new generation for a web view, the answers to requests queued before now are
+   * dropped when they arrive
+   *
+   * @param pageKey the web view's {@link #getPageKey(String)}
+   */
+  private void newPageGeneration(String pageKey) {
+    mPageStartGenerations.put(pageKey, mPageGeneration.incrementAndGet());
+  }
+
+  @Override
+  public int getPageGeneration() {
+    return mPageGeneration.get();
+  }
+
+  @Override
+  public void setRequestGeneration(Integer generation) {
+    if (generation == null) {
+      mRequestGeneration.remove();
+    } else {
+      mRequestGeneration.set(generation);
+    }
+  }
+
+  /**
+   * Drops the oldest of the responses a page is reading a chunk at a time until it has no more
+   * than keep of them left
+   *
+   * @param pageKey the page's {@link #getPageKey(String)}
+   * @param keep    how many of its chunked responses to keep, 0 to drop them all
+   */
+  private void dropOldestChunkedResponses(String pageKey, int keep) {
+    List<ChunkedResponse> pageResponses = new ArrayList<>();
+    for (ChunkedResponse response : mChunkedResponses.values()) {
+      if (response.pageKey.equals(pageKey)) {
+        pageResponses.add(response);
+      }
+    }
+    if (pageResponses.size() <= keep) {
+      return;
+    }
+    Collections.sort(pageResponses, new Comparator<ChunkedResponse>() {
+      @Override
+      public int compare(ChunkedResponse lhs, ChunkedResponse rhs) {
+        return Integer.compare(lhs.tokenNumber, rhs.tokenNumber);
+      }
+    });
+    for (int i = 0; i < pageResponses.size() - keep; i++) {
+      mChunkedResponses.remove(Integer.toString(pageResponses.get(i).tokenNumber));
+    }
+  }
+
+  @Override
+  public String getResponseChunk(String token) {
+    ChunkedResponse response = mChunkedResponses.get(token);
+    if (response == null) {
+      return null;
+    }
+    String chunk;
+    synchronized (response) {
+      chunk = response.nextChunk();
+      if (response.isFinished()) {
+        mChunkedResponses.remove(token);
       }
     }
+    return chunk;
+  }
+
+  @Override
+  public void setResponseChunkLength(String fragmentID, int chunkLength) {
+    if (chunkLength <= 0) {
+      mResponseChunkLengths.remove(getPageKey(fragmentID));
+    } else {
+      mResponseChunkLengths
+          .put(getPageKey(fragmentID), Math.max(chunkLength, MIN_RESPONSE_CHUNK_LENGTH));
+    }
+  }
+
+  /**
+   * The settings a page makes are kept by the id of its web view's fragment, which is null for
+   * the only web view of most screens
+   *
+   * @param fragmentID the id of the web view's fragment
+   * @return a key that isn't null
+   */
+  private static String getPageKey(String fragmentID) {
+    return fragmentID == null ? "" : fragmentID;
+  }
+
+  @Override
+  public void setRequestedQueryMetadata(String fragmentID, Set<String> sections) {
+    if (sections == null) {
+      mRequestedQueryMetadata.remove(getPageKey(fragmentID));
+    } else {
+      mRequestedQueryMetadata
+          .put(getPageKey(fragmentID), Collections.unmodifiableSet(sections));
+    }
+  }
+
+  @Override
+  public Set<String> getRequestedQueryMetadata(String fragmentID) {
+    return mRequestedQueryMetadata.get(getPageKey(fragmentID));
+  }
+
+  @Override
+  public void resetPageSettings(String fragmentID) {
+    String pageKey = getPageKey(fragmentID);
+    newPageGeneration(pageKey);
+    mRequestedQueryMetadata.remove(pageKey);
+    mResponseChunkLengths.remove(pageKey);
+    // nothing on the new page is going to finish reading these
+    dropOldestChunkedResponses(pageKey, 0);
   }
 
   @Override
@@ -440,4 +638,60 @@ public abstract class AbsBaseWebActivity extends AbsTableActivity implements IOd
       mIOdkDataDatabaseListener.databaseUnavailable();
     }
   }
+
+  /**
+   * The action we launched and are waiting on the result of, with the dispatch string the page
+   * gave us to hand back with it
+   */
+  private static final class PendingAction {
+    final String dispatchString;
+    final String action;
+
+    PendingAction(String dispatchString, String action) {
+      this.dispatchString = dispatchString;
+      this.action = action;
+    }
+  }
+
+  /**
+   * A response being handed to the page a chunk at a time, only used while holding its lock
+   */
+  private static final class ChunkedResponse {
+    /**
+     * The {@link #getPageKey(String)} of the page reading it, and the number of its token
+     */
+    final String pageKey;
+    final int tokenNumber;
+    private final String responseJSON;
+    private final int chunkLength;
+    private int offset = 0;
+
+    ChunkedResponse(String pageKey, int tokenNumber, String responseJSON, int chunkLength) {
+      this.pageKey = pageKey;
+      this.tokenNumber = tokenNumber;
+      this.responseJSON = responseJSON;
+      this.chunkLength = chunkLength;
+    }
+
+    /**
+     * @return the next chunk of the response
+     */
+    String nextChunk() {
+      int end = Math.min(offset + chunkLength, responseJSON.length());
+      // don't split a surrogate pair, half of one doesn't survive the javascript bridge
+      if (end < responseJSON.length() && Character.isHighSurrogate(responseJSON.charAt(end - 1))) {
+        end--;
+      }
+      String chunk = responseJSON.substring(offset, end);
+      offset = end;
+      return chunk;
+    }
+
+    /**
+     * @return whether every chunk has been handed over
+     */
+    boolean isFinished() {
+      return offset >= responseJSON.length();
+    }
+  }
 }
@@ -2,6 +2,9 @@ package org.opendatakit.tables.activities;
 
 import org.opendatakit.activities.IOdkCommonActivity;
 import org.opendatakit.activities.IOdkDataActivity;
+import org.opendatakit.tables.views.webkits.OdkTablesWebViewPool;
+
+import java.util.Set;
 
 /**
  * @author mitchellsundt@gmail.com
@@ -24,4 +27,69 @@ public interface IOdkTablesActivity extends IOdkCommonActivity, IOdkDataActivity
    * @return null if not a map view or no item selected; otherwise, selected item index.
    */
   Integer getIndexOfSelectedItem();
+
+  /**
+   * Sets which of the optional sections of a query's metadata the page in a web view reads, so
+   * the rest aren't computed for its queries. Called from the javascript bridge thread.
+   *
+   * @param fragmentID the id of the web view's fragment, if there are more than one
+   * @param sections   the names of the sections, see TableDataExecutorProcessor, or null for all
+   */
+  void setRequestedQueryMetadata(String fragmentID, Set<String> sections);
+
+  /**
+   * @param fragmentID the id of the web view's fragment the query came from
+   * @return the names of the optional query metadata sections to compute, or null for all of them
+   */
+  Set<String> getRequestedQueryMetadata(String fragmentID);
+
+  /**
+   * Forgets everything the page in a web view asked for through odkTablesIf, so the next page
+   * starts from the defaults. Called on the UI thread whenever a page is loaded into the web
+   * view, or it is given back to the pool.
+   *
+   * @param fragmentID the id of the web view's fragment, if there are more than one
+   */
+  void resetPageSettings(String fragmentID);
+
+  /**
+   * Sets the longest response the page in a web view reads in one piece, until another page is
+   * loaded into it. Longer ones are replaced by a continuation token and read a chunk at a time
+   * with {@link #getResponseChunk(String)}. Called from the javascript bridge thread.
+   *
+   * @param fragmentID  the id of the web view's fragment, if there are more than one
+   * @param chunkLength the most characters to hand over at once, or 0 to never split responses
+   */
+  void setResponseChunkLength(String fragmentID, int chunkLength);
+
+  /**
+   * Gets the current page generation. It is bumped whenever a page is loaded into a web view or
+   * a page's query is changed in place, and recorded by each request when it is queued.
+   *
+   * @return the current page generation
+   */
+  int getPageGeneration();
+
+  /**
+   * Tells the activity which generation the request being run on the current thread was queued
+   * in, so that its answer can be dropped if the page that asked for it has since been replaced.
+   * Called by the request processor on its own thread, before and after running a request.
+   *
+   * @param generation what {@link #getPageGeneration()} returned when the request was queued, or
+   *                   null once it has been run
+   */
+  void setRequestGeneration(Integer generation);
+
+  /**
+   * Gets the next chunk of a response that was too long to hand over in one piece
+   *
+   * @param token the continuation token that was handed over in place of the response
+   * @return the next chunk, or null if there are no more
+   */
+  String getResponseChunk(String token);
+
+  /**
+   * @return the web views this activity's fragments take their web view from and give it back to
+   */
+  OdkTablesWebViewPool getWebViewPool();
 }
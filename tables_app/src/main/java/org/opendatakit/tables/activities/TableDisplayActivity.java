@@ -25,6 +25,8 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
@@ -36,10 +38,12 @@ import android.widget.Toast;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.consts.RequestCodeConsts;
 import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.ArbitraryQuery;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.queries.SimpleQuery;
 import org.opendatakit.database.queries.SingleRowQuery;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
@@ -47,8 +51,12 @@ import org.opendatakit.database.utilities.QueryUtil;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.listener.DatabaseConnectionListener;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.data.PossibleTableViewTypes;
+import org.opendatakit.tables.data.RowLocationIndex;
+import org.opendatakit.tables.data.SpreadsheetQuery;
 import org.opendatakit.tables.data.ViewFragmentType;
 import org.opendatakit.tables.fragments.DetailViewFragment;
 import org.opendatakit.tables.fragments.DetailWithListDetailViewFragment;
@@ -65,13 +73,21 @@ import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.IntentUtil;
 import org.opendatakit.tables.utils.SQLQueryStruct;
 import org.opendatakit.tables.views.SpreadsheetProps;
+import org.opendatakit.tables.views.webkits.OdkTablesWebView;
 import org.opendatakit.utilities.RuntimePermissionUtils;
 import org.opendatakit.views.ODKWebView;
 import org.opendatakit.views.OdkData;
 import org.opendatakit.webkitserver.utilities.UrlUtils;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Displays information about a table. List, Map, and Detail views are all
@@ -124,6 +140,19 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    * Request code for requesting location permission
    */
   private static final int LOCATION_PERM_REQ_CODE = 0;
+  /**
+   * Alias of the single column returned by the row count query
+   */
+  private static final String ROW_COUNT_COLUMN = "rowCount";
+  /**
+   * Alias of the newest savepoint timestamp returned by the watermark query
+   */
+  private static final String WATERMARK_COLUMN = "watermark";
+  /**
+   * How long to wait for another sub list update before applying one, in milliseconds. A page that
+   * updates the sub list on every keystroke or selection change only has the last one applied.
+   */
+  private static final long SUB_LIST_UPDATE_DELAY = 150;
   /**
    * Keep references to all queries used to populate all fragments. Use the array index as the
    * viewID.
@@ -141,6 +170,21 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   private ViewFragmentType mCurrentFragmentType;
   private String mCurrentFileName;
   private String mCurrentSubFileName;
+  /**
+   * Whether the loaded sub list page asked to re-run its query in place when the sub list's query
+   * changes, rather than be reloaded. Set from the javascript bridge thread, cleared whenever a
+   * new sub list page is loaded.
+   */
+  private volatile boolean mSubListUpdatesInPlace = false;
+  /**
+   * Applies the sub list updates from this activity's web views on the main thread
+   */
+  private final Handler mSubListUpdateHandler = new Handler(Looper.getMainLooper());
+  /**
+   * The sub list update waiting to be applied, if there is one. Guarded by
+   * mSubListUpdateHandler.
+   */
+  private Runnable mPendingSubListUpdate = null;
   /**
    * The type of fragment that was originally requested.
    */
@@ -151,9 +195,64 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    */
   private PossibleTableViewTypes mPossibleTableViewTypes = null;
   /**
-   * The {@link UserTable} that is being displayed in this activity.
+   * Runs the queries for mUserTable and mViewTable off the main thread. There is only one thread,
+   * so a query started after the props change never finishes before an older one.
+   */
+  private final ExecutorService mQueryExecutor = Executors.newSingleThreadExecutor();
+  /**
+   * The {@link UserTable} that is being displayed in this activity, with the props applied
+   */
+  private final SharedUserTable mUserTable = new SharedUserTable() {
+    @Override
+    protected Callable<UserTable> prepareQuery() {
+      // read the props here, they are only ever changed on the main thread
+      final SpreadsheetQuery query = getSpreadsheetQuery();
+      return new Callable<UserTable>() {
+        @Override
+        public UserTable call() {
+          return query.getRows(null, null);
+        }
+      };
+    }
+  };
+  /**
+   * The rows of the view's own query, the one in the intent. The map's markers, their colors
+   * and the navigate view all index into this same table, so it is only queried once for all of
+   * them.
+   */
+  private final SharedUserTable mViewTable = new SharedUserTable() {
+    @Override
+    protected Callable<UserTable> prepareQuery() {
+      final ResumableQuery query = getViewQuery(null);
+      return new Callable<UserTable>() {
+        @Override
+        public UserTable call() {
+          return queryViewTable(query);
+        }
+      };
+    }
+  };
+  /**
+   * The locations of the rows in mViewTable, or null if they haven't been indexed yet. Dropped
+   * along with the table, so it is only ever built once for each version of the data.
+   */
+  private RowLocationIndex mLocationIndex = null;
+  /**
+   * The newest _savepoint_timestamp in the spreadsheet's query when its rows were last all
+   * loaded, or null if the current view can't be refreshed a row at a time. Rows saved after it
+   * are the ones {@link #refreshChangedRows()} has to fetch again.
+   */
+  private String mSavepointWatermark = null;
+  /**
+   * The number of rows in the query when mSavepointWatermark was taken, if it changes a row was
+   * added or deleted and everything has to be refreshed
+   */
+  private int mWatermarkRowCount = -1;
+  /**
+   * Incremented every time the watermark is cleared, a watermark query that finishes after that
+   * is stale and its result is thrown away
    */
-  private UserTable mUserTable = null;
+  private int mWatermarkGeneration = 0;
   private boolean pullFromDatabase;
   private String mDefaultRowId;
 
@@ -277,6 +376,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     }
 
     readQueryFromIntent(getIntent());
+    updateWebViewPrewarm();
 
     this.setContentView(R.layout.activity_table_display_activity);
 
@@ -431,12 +531,15 @@ public class TableDisplayActivity extends AbsBaseWebActivity
         List<String> temp = TableUtil.get().getGroupByColumns(dbInt, mAppName, db, getTableId());
         props.setGroupBy(temp.toArray(new String[temp.size()]));
         pullFromDatabase = false;
+        // anything queried before now used the wrong props
+        cancelUserTableQuery();
       } catch (ServicesAvailabilityException e) {
         Toast.makeText(this, R.string.database_unavailable, Toast.LENGTH_LONG).show();
         WebLogger.getLogger(getAppName()).printStackTrace(e);
       }
     }
     showCurrentDisplayFragment(true);
+    updateDataWatermark(null);
   }
 
   /**
@@ -466,54 +569,349 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   }
 
   /**
-   * Get the {@link UserTable} that is being held by this activity. AND CHANGES mUserTable! to
-   * be that table
-   * If we're in a collection, put an empty group by in the query so we don't only get one result.
-   * Getting only the rows in this collection is handled by the where clause passed in to the
-   * intent by SpreadsheetFragment's openCollectionView
+   * Gets the {@link UserTable} that is being held by this activity without blocking the main
+   * thread. If it is already cached the listener is called straight away, otherwise the query is
+   * run on a background thread and the listener is called on the main thread when it finishes.
+   * If the props change before then, the query is cancelled and run again with the new props,
+   * so the listener only ever gets the table for the current props.
    *
-   * @return the UserTable pulled from tables
+   * @param listener told about the table once it has been loaded, must be called on the main
+   *                 thread
    */
-  public UserTable getUserTable() {
-    String[] emptyArray = {};
-    if (mUserTable == null) {
-      DbHandle db = null;
-      try {
-        db = getDatabase().openDatabase(getAppName());
-        SQLQueryStruct sqlQueryStruct = IntentUtil
-            .getSQLQueryStructFromBundle(this.getIntent().getExtras());
-
-        if (getIntentExtras().containsKey("inCollection")) {
-          sqlQueryStruct.groupBy = null;
-        } else {
-          sqlQueryStruct.groupBy = props.getGroupBy();
+  public void getUserTableAsync(UserTableListener listener) {
+    mUserTable.get(listener);
+  }
+
+  /**
+   * Gets the rows of the view's query, the one the activity was launched with, without blocking
+   * the main thread. Unlike {@link #getUserTableAsync(UserTableListener)} the props aren't
+   * applied. Everything that shows the map's rows (the markers, their color rules, the navigate
+   * view) should use this, so they all agree on row indexes and the query is only run once.
+   *
+   * @param listener told about the table once it has been loaded, must be called on the main
+   *                 thread
+   */
+  public void getViewTableAsync(UserTableListener listener) {
+    mViewTable.get(listener);
+  }
+
+  /**
+   * Gets a spatial index of the locations of the rows from
+   * {@link #getViewTableAsync(UserTableListener)}, without blocking the main thread. The index is
+   * built on the query thread the first time it is asked for and shared by the map and the
+   * navigate view until the data changes.
+   *
+   * @param latitudeElementKey  the column holding the latitude
+   * @param longitudeElementKey the column holding the longitude
+   * @param listener            told about the index once it has been built, must be called on
+   *                            the main thread
+   */
+  public void getLocationIndexAsync(final String latitudeElementKey,
+      final String longitudeElementKey, final LocationIndexListener listener) {
+    mViewTable.get(new UserTableListener() {
+      @Override
+      public void onUserTableLoaded(final UserTable table) {
+        if (table == null) {
+          listener.onLocationIndexLoaded(null);
+          return;
+        }
+        if (mLocationIndex != null && mLocationIndex
+            .isIndexOf(table, latitudeElementKey, longitudeElementKey)) {
+          listener.onLocationIndexLoaded(mLocationIndex);
+          return;
         }
+        if (destroyed) {
+          return;
+        }
+        submitQuery(new Runnable() {
+          @Override
+          public void run() {
+            final RowLocationIndex index = RowLocationIndex
+                .build(table, latitudeElementKey, longitudeElementKey);
+            runOnUiThread(new Runnable() {
+              @Override
+              public void run() {
+                if (destroyed) {
+                  return;
+                }
+                if (mViewTable.table == table) {
+                  mLocationIndex = index;
+                }
+                listener.onLocationIndexLoaded(index);
+              }
+            });
+          }
+        });
+      }
+    });
+  }
 
-        sqlQueryStruct.orderByElementKey = props.getSort();
-        sqlQueryStruct.orderByDirection = props.getSortOrder();
-
-        mUserTable = getDatabase()
-            .simpleQuery(this.getAppName(), db, this.getTableId(), getColumnDefinitions(),
-                sqlQueryStruct.whereClause, sqlQueryStruct.selectionArgs,
-                sqlQueryStruct.groupBy == null ? emptyArray : sqlQueryStruct.groupBy,
-                sqlQueryStruct.having,
-                QueryUtil.convertStringToArray(sqlQueryStruct.orderByElementKey),
-                QueryUtil.convertStringToArray(sqlQueryStruct.orderByDirection),
-                null, null);
-      } catch (ServicesAvailabilityException e) {
-        WebLogger.getLogger(getAppName()).printStackTrace(e);
-      } finally {
-        if (db != null) {
-          try {
-            getDatabase().closeDatabase(getAppName(), db);
-          } catch (ServicesAvailabilityException e) {
-            Toast.makeText(this, R.string.database_unavailable, Toast.LENGTH_LONG).show();
-            WebLogger.getLogger(getAppName()).printStackTrace(e);
+  /**
+   * Runs a query on the query thread. Once the activity is destroyed the thread is shut down and
+   * anything submitted after that is dropped rather than rejected with an exception.
+   *
+   * @param task the query
+   * @return the running task, or null if the activity has been destroyed
+   */
+  private Future<?> submitQuery(Runnable task) {
+    if (mQueryExecutor.isShutdown()) {
+      return null;
+    }
+    try {
+      return mQueryExecutor.submit(task);
+    } catch (RejectedExecutionException e) {
+      // shut down by onDestroy in the meantime
+      WebLogger.getLogger(getAppName()).printStackTrace(e);
+      return null;
+    }
+  }
+
+  /**
+   * Drops the cached tables and cancels the queries for them if any are running. Anyone that
+   * was waiting on a cancelled query is moved on to a new one, run with the current props.
+   */
+  private void cancelUserTableQuery() {
+    mUserTable.drop();
+    mViewTable.drop();
+    mLocationIndex = null;
+  }
+
+  /**
+   * Runs the view's query, either a simple or an arbitrary one. Safe to call from a background
+   * thread.
+   *
+   * @param resumableQuery the query, from {@link #getViewQuery(String)}
+   * @return the rows, or null if the database was unavailable or the query type isn't known
+   */
+  private UserTable queryViewTable(ResumableQuery resumableQuery) {
+    DbHandle db = null;
+    try {
+      db = getDatabase().openDatabase(getAppName());
+      if (resumableQuery instanceof ArbitraryQuery) {
+        ArbitraryQuery query = (ArbitraryQuery) resumableQuery;
+        return getDatabase()
+            .arbitrarySqlQuery(getAppName(), db, query.getTableId(), getColumnDefinitions(),
+                query.getSqlCommand(), query.getSqlBindArgs(), -1, 0);
+      } else if (resumableQuery instanceof SimpleQuery) {
+        // including SingleRowQuery
+        SimpleQuery query = (SimpleQuery) resumableQuery;
+        return getDatabase()
+            .simpleQuery(getAppName(), db, query.getTableId(), getColumnDefinitions(),
+                query.getWhereClause(), query.getSqlBindArgs(), query.getGroupByArgs(),
+                query.getHavingClause(), query.getOrderByColNames(),
+                query.getOrderByDirections(), -1, 0);
+      } else {
+        WebLogger.getLogger(getAppName()).e(TAG, "invalid query type");
+        return null;
+      }
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(getAppName()).e(TAG, "view query failed");
+      WebLogger.getLogger(getAppName()).printStackTrace(e);
+      return null;
+    } finally {
+      if (db != null) {
+        try {
+          getDatabase().closeDatabase(getAppName(), db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(getAppName()).printStackTrace(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds the query {@link #getUserTableAsync(UserTableListener)} runs, for the current props.
+   * It doesn't touch the activity once it's built, so it can be handed to a background thread.
+   * The spreadsheet uses it to page rows in on demand, which doesn't touch mUserTable.
+   * <p>
+   * Must be called on the main thread, the props are only ever changed there.
+   *
+   * @return the query
+   */
+  public SpreadsheetQuery getSpreadsheetQuery() {
+    return new SpreadsheetQuery(getAppName(), getTableId(), getColumnDefinitions(), getDatabase(),
+        getSpreadsheetQueryStruct());
+  }
+
+  /**
+   * Remembers how many rows the current query has and when the newest of them was saved, so
+   * that {@link #refreshChangedRows()} can tell which rows changed since. Only the ungrouped
+   * spreadsheet can be refreshed a row at a time, for everything else the watermark is cleared.
+   * <p>
+   * The watermark is cleared straight away and the query for the new one is run on the query
+   * thread, like {@link #getUserTableAsync(UserTableListener)}. If the watermark is updated again
+   * before it finishes, its result is thrown away and onUpdated is never called.
+   *
+   * @param onUpdated run on the main thread once the new watermark is set, may be null
+   */
+  private void updateDataWatermark(final Runnable onUpdated) {
+    mSavepointWatermark = null;
+    mWatermarkRowCount = -1;
+    final int generation = ++mWatermarkGeneration;
+    final SpreadsheetQuery query = getSpreadsheetQuery();
+    final SQLQueryStruct sqlQueryStruct = query.getSqlQueryStruct();
+    if (mCurrentFragmentType != ViewFragmentType.SPREADSHEET || (sqlQueryStruct.groupBy != null
+        && sqlQueryStruct.groupBy.length != 0)) {
+      if (onUpdated != null) {
+        onUpdated.run();
+      }
+      return;
+    }
+    submitQuery(new Runnable() {
+      @Override
+      public void run() {
+        BaseTable result = query.arbitraryQuery(
+            "SELECT COUNT(*) AS " + ROW_COUNT_COLUMN + ", MAX("
+                + DataTableColumns.SAVEPOINT_TIMESTAMP + ") AS " + WATERMARK_COLUMN + " FROM ("
+                + query.getSql() + ")", sqlQueryStruct.selectionArgs);
+        String count = null;
+        String watermark = null;
+        final boolean found = result != null && result.getNumberOfRows() != 0;
+        if (found) {
+          count = result.getRowAtIndex(0).getRawStringByKey(ROW_COUNT_COLUMN);
+          watermark = result.getRowAtIndex(0).getRawStringByKey(WATERMARK_COLUMN);
+        }
+        final int rowCount = count == null ? 0 : Integer.parseInt(count);
+        // an empty table has no newest row, everything in it will be newer than the empty string
+        final String newWatermark = watermark == null ? "" : watermark;
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            if (destroyed || generation != mWatermarkGeneration) {
+              return;
+            }
+            if (found) {
+              mWatermarkRowCount = rowCount;
+              mSavepointWatermark = newWatermark;
+            }
+            if (onUpdated != null) {
+              onUpdated.run();
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Called after a row was added or edited. Rather than re-query and redraw the whole table,
+   * this looks for the rows that were saved since the data was last loaded and only re-queries
+   * those. If nothing was saved (the user backed out of Survey) nothing is done at all. If the
+   * rows can't be patched in place, because one was added or deleted, or it moved, or the view
+   * isn't a spreadsheet, everything is refreshed like before. The queries are run on the query
+   * thread.
+   */
+  public void refreshChangedRows() {
+    Fragment spreadsheetFragment = getSupportFragmentManager()
+        .findFragmentByTag(ViewFragmentType.SPREADSHEET.name());
+    final String oldWatermark = mSavepointWatermark;
+    final int oldRowCount = mWatermarkRowCount;
+    if (oldWatermark == null || !(spreadsheetFragment instanceof SpreadsheetFragment)) {
+      refreshDataAndDisplayFragment();
+      return;
+    }
+    updateDataWatermark(new Runnable() {
+      @Override
+      public void run() {
+        refreshRowsSince(oldWatermark, oldRowCount);
+      }
+    });
+  }
+
+  /**
+   * The rest of {@link #refreshChangedRows()}, once the new watermark has been queried
+   *
+   * @param oldWatermark the watermark from before the row was edited
+   * @param oldRowCount  the row count from before the row was edited
+   */
+  private void refreshRowsSince(String oldWatermark, int oldRowCount) {
+    if (mSavepointWatermark != null && mSavepointWatermark.equals(oldWatermark)
+        && mWatermarkRowCount == oldRowCount) {
+      WebLogger.getLogger(getAppName()).d(TAG, "refreshChangedRows: nothing changed");
+      return;
+    }
+    // whatever is cached for this table is out of date now
+    Tables.getInstance().getQueryCache().invalidateTable(getAppName(), getTableId());
+    if (mSavepointWatermark == null || mWatermarkRowCount != oldRowCount) {
+      refreshDataAndDisplayFragment();
+      return;
+    }
+
+    final SpreadsheetQuery query = getSpreadsheetQuery();
+    SQLQueryStruct sqlQueryStruct = query.getSqlQueryStruct();
+    List<Object> bindArgs = new ArrayList<>();
+    if (sqlQueryStruct.selectionArgs != null && sqlQueryStruct.selectionArgs.bindArgs != null) {
+      bindArgs.addAll(Arrays.asList(sqlQueryStruct.selectionArgs.bindArgs));
+    }
+    bindArgs.add(oldWatermark);
+    final BindArgs changedBindArgs = new BindArgs(bindArgs.toArray(new Object[bindArgs.size()]));
+    final int generation = mWatermarkGeneration;
+    submitQuery(new Runnable() {
+      @Override
+      public void run() {
+        BaseTable changed = query.arbitraryQuery(
+            "SELECT " + DataTableColumns.ID + " FROM (" + query.getSql() + ") WHERE "
+                + DataTableColumns.SAVEPOINT_TIMESTAMP + " > ?" + query.getOrderBySql(),
+            changedBindArgs);
+        final List<String> rowIds = new ArrayList<>();
+        if (changed != null) {
+          for (int i = 0; i < changed.getNumberOfRows(); i++) {
+            rowIds.add(changed.getRowAtIndex(i).getRawStringByKey(DataTableColumns.ID));
           }
         }
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            if (destroyed || generation != mWatermarkGeneration) {
+              // everything was refreshed in the meantime
+              return;
+            }
+            refreshRows(rowIds);
+          }
+        });
       }
+    });
+  }
+
+  /**
+   * Re-queries just the given rows in the spreadsheet, or everything if they can't be patched in
+   * place
+   *
+   * @param rowIds the _ids of the rows saved since the last watermark
+   */
+  private void refreshRows(List<String> rowIds) {
+    Fragment spreadsheetFragment = getSupportFragmentManager()
+        .findFragmentByTag(ViewFragmentType.SPREADSHEET.name());
+    if (rowIds.isEmpty() || !(spreadsheetFragment instanceof SpreadsheetFragment)
+        || !((SpreadsheetFragment) spreadsheetFragment).refreshRows(rowIds)) {
+      refreshDataAndDisplayFragment();
+      return;
+    }
+    WebLogger.getLogger(getAppName())
+        .d(TAG, "refreshChangedRows: refreshed " + rowIds.size() + " rows in place");
+    // nothing else holds on to the full table, let it be queried again if it's asked for
+    cancelUserTableQuery();
+  }
+
+  /**
+   * Builds the query used to populate the spreadsheet from the intent and the current props.
+   * If we're in a collection, put an empty group by in the query so we don't only get one result.
+   *
+   * @return the where clause, group by and sort order to query the table with
+   */
+  private SQLQueryStruct getSpreadsheetQueryStruct() {
+    SQLQueryStruct sqlQueryStruct = IntentUtil
+        .getSQLQueryStructFromBundle(this.getIntent().getExtras());
+
+    if (getIntentExtras().containsKey("inCollection")) {
+      sqlQueryStruct.groupBy = null;
+    } else {
+      sqlQueryStruct.groupBy = props.getGroupBy();
     }
-    return mUserTable;
+
+    sqlQueryStruct.orderByElementKey = props.getSort();
+    sqlQueryStruct.orderByDirection = props.getSortOrder();
+    return sqlQueryStruct;
   }
 
   /**
@@ -593,6 +991,15 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   protected void onDestroy() {
     super.onDestroy();
     this.destroyed = true;
+    synchronized (mSubListUpdateHandler) {
+      if (mPendingSubListUpdate != null) {
+        mSubListUpdateHandler.removeCallbacks(mPendingSubListUpdate);
+        mPendingSubListUpdate = null;
+      }
+    }
+    mUserTable.drop();
+    mViewTable.drop();
+    mQueryExecutor.shutdownNow();
     WebLogger.getLogger(getAppName()).d(TAG, "[onDestroy]");
   }
   private boolean destroyed = false;
@@ -832,9 +1239,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
         props = data.getParcelableExtra("props");
         props.setActivity(this);
       }
-      // This fallthrough is on purpose, we need to refresh because props (may have) changed
-    case RequestCodeConsts.RequestCodes.ADD_ROW_SURVEY:
-    case RequestCodeConsts.RequestCodes.EDIT_ROW_SURVEY:
+      // we need to refresh everything because props (may have) changed
       try {
         // verify that the data table doesn't contain checkpoints...
         // always refresh, as table properties may have done something
@@ -843,6 +1248,15 @@ public class TableDisplayActivity extends AbsBaseWebActivity
         WebLogger.getLogger(getAppName()).printStackTrace(e);
       }
       break;
+    case RequestCodeConsts.RequestCodes.ADD_ROW_SURVEY:
+    case RequestCodeConsts.RequestCodes.EDIT_ROW_SURVEY:
+      try {
+        // Survey only touches rows, so only the rows it saved need to be queried again
+        refreshChangedRows();
+      } catch (IllegalStateException e) {
+        WebLogger.getLogger(getAppName()).printStackTrace(e);
+      }
+      break;
     default:
       super.onActivityResult(requestCode, resultCode, data);
     }
@@ -853,11 +1267,18 @@ public class TableDisplayActivity extends AbsBaseWebActivity
    */
   public void refreshDataAndDisplayFragment() {
     WebLogger.getLogger(getAppName()).d(TAG, "refreshDataAndDisplayFragment called");
-    // drop cached table, if any...
-    mUserTable = null;
+    // drop cached table, if any, and stop loading the old one...
+    cancelUserTableQuery();
+    // and the rows and display text cached by the spreadsheet
+    Fragment spreadsheetFragment = getSupportFragmentManager()
+        .findFragmentByTag(ViewFragmentType.SPREADSHEET.name());
+    if (spreadsheetFragment instanceof SpreadsheetFragment) {
+      ((SpreadsheetFragment) spreadsheetFragment).invalidateCachedData();
+    }
     // drop default filenames...
     mPossibleTableViewTypes = null;
     showCurrentDisplayFragment(true);
+    updateDataWatermark(null);
   }
 
   /**
@@ -880,6 +1301,24 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     showCurrentDisplayFragment(false);
   }
 
+  /**
+   * Only has a spare web view built while the view being shown, or the one the activity was
+   * opened for, is a web page. A spreadsheet or a map builds web views as it needs them.
+   */
+  private void updateWebViewPrewarm() {
+    getWebViewPool().setPrewarmEnabled(isWebFragmentType(mCurrentFragmentType)
+        || isWebFragmentType(mOriginalFragmentType));
+  }
+
+  /**
+   * @param type a fragment type, may be null
+   * @return whether the fragment shows a web page
+   */
+  private static boolean isWebFragmentType(ViewFragmentType type) {
+    return type == ViewFragmentType.LIST || type == ViewFragmentType.DETAIL
+        || type == ViewFragmentType.DETAIL_WITH_LIST || type == ViewFragmentType.SUB_LIST;
+  }
+
   /**
    * Used in showCurrentDisplayFragment, tries to pull the possible table view types from the
    * database and set up the default filename and sub-filename if possible
@@ -953,6 +1392,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   @SuppressWarnings("ConstantConditions") // too complex to analyze
   private void showCurrentDisplayFragment(boolean createNew) {
     possiblySupplyDefaults();
+    updateWebViewPrewarm();
     updateChildViewVisibility(mCurrentFragmentType);
     FragmentManager fragmentManager = this.getSupportFragmentManager();
     FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
@@ -1064,6 +1504,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
               .d(TAG, "[showDetailWithListFragment] removing old list fragment");
           fragmentTransaction.remove(detailWithListViewListFragment);
         }
+        mSubListUpdatesInPlace = false;
         detailWithListViewListFragment = new DetailWithListListViewFragment();
         fragmentTransaction.add(R.id.bottom_pane, detailWithListViewListFragment,
             Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
@@ -1147,7 +1588,66 @@ public class TableDisplayActivity extends AbsBaseWebActivity
   }
 
   /**
-   * Gives new arguments to an existing fragment
+   * Hands new arguments to the sub list fragment once the page has stopped changing them. An
+   * update that is still waiting is dropped in favour of this one, so a burst of calls only
+   * rebuilds the fragment and runs its query once, with the last arguments. Called from the
+   * javascript bridge thread.
+   *
+   * @param args the sub list fragment's new arguments
+   */
+  public void postSubListUpdate(final Bundle args) {
+    Runnable update = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (mSubListUpdateHandler) {
+          if (mPendingSubListUpdate != this) {
+            // superseded after it was taken off the queue
+            return;
+          }
+          if (getSupportFragmentManager().isStateSaved()) {
+            // the fragments can't be changed now, onPostResume posts it again
+            return;
+          }
+          mPendingSubListUpdate = null;
+        }
+        boolean destroyed = TableDisplayActivity.this.destroyed;
+        if (Build.VERSION.SDK_INT >= 17) {
+          destroyed |= isDestroyed();
+        }
+        if (!destroyed && !isFinishing()) {
+          updateFragment(Constants.FragmentTags.DETAIL_WITH_LIST_LIST, args);
+        }
+      }
+    };
+    synchronized (mSubListUpdateHandler) {
+      if (destroyed) {
+        return;
+      }
+      if (mPendingSubListUpdate != null) {
+        mSubListUpdateHandler.removeCallbacks(mPendingSubListUpdate);
+      }
+      mPendingSubListUpdate = update;
+      mSubListUpdateHandler.postDelayed(update, SUB_LIST_UPDATE_DELAY);
+    }
+  }
+
+  /**
+   * Applies a sub list update that arrived while the activity's state was saved
+   */
+  @Override
+  public void onPostResume() {
+    super.onPostResume();
+    synchronized (mSubListUpdateHandler) {
+      if (mPendingSubListUpdate != null) {
+        mSubListUpdateHandler.removeCallbacks(mPendingSubListUpdate);
+        mSubListUpdateHandler.post(mPendingSubListUpdate);
+      }
+    }
+  }
+
+  /**
+   * Gives new arguments to an existing fragment. Use {@link #postSubListUpdate(Bundle)} rather
+   * than calling this directly.
    *
    * @param fragmentID The id of the fragment to search the fragment manager for
    * @param args       the arguments to give to the fragment
@@ -1166,6 +1666,7 @@ public class TableDisplayActivity extends AbsBaseWebActivity
       return;
     }
 
+    String previousSubFileName = mCurrentSubFileName;
     String queryType = IntentUtil.retrieveQueryTypeFromBundle(args);
     ResumableQuery viewDataQuery;
     if (queryType.equals(OdkData.QueryTypes.SIMPLE_QUERY)) {
@@ -1196,11 +1697,28 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     Fragment detailWithListViewListFragment = fragmentManager
         .findFragmentByTag(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
 
+    if (mSubListUpdatesInPlace && mCurrentSubFileName != null
+        && mCurrentSubFileName.equals(previousSubFileName)
+        && detailWithListViewListFragment instanceof DetailWithListListViewFragment) {
+      // same page, so let it run the new query itself instead of loading it again. The answers
+      // to the old query's requests are dropped.
+      discardResponses(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
+      if (((DetailWithListListViewFragment) detailWithListViewListFragment)
+          .signalViewQueryChanged()) {
+        return;
+      }
+    }
+    // the new page has to ask for in place updates again
+    mSubListUpdatesInPlace = false;
+
     if (detailWithListViewListFragment != null) {
       // remove the old fragment
       WebLogger.getLogger(getAppName())
           .d(TAG, "[showDetailWithListFragment] removing old list " + "fragment");
       fragmentTransaction.remove(detailWithListViewListFragment);
+      // the old list's queries were superseded, their answers are dropped rather than handed to
+      // the new list's page
+      discardResponses(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
     }
     detailWithListViewListFragment = new DetailWithListListViewFragment();
     fragmentTransaction.add(R.id.bottom_pane, detailWithListViewListFragment,
@@ -1215,6 +1733,17 @@ public class TableDisplayActivity extends AbsBaseWebActivity
     }
   }
 
+  /**
+   * Sets whether the sub list page re-runs its query when the query changes, rather than being
+   * reloaded. Only a page that listens for the change can ask for this, see
+   * {@link OdkTablesWebView#signalViewQueryChanged()}.
+   *
+   * @param inPlace whether to update the loaded sub list page in place
+   */
+  public void setSubListUpdatesInPlace(boolean inPlace) {
+    mSubListUpdatesInPlace = inPlace;
+  }
+
   /**
    * Gets the view parameters being used with that fragment
    *
@@ -1413,4 +1942,130 @@ public class TableDisplayActivity extends AbsBaseWebActivity
         R.string.location_permission_rationale
     );
   }
+
+  /**
+   * A table that is queried on a background thread and then shared by everyone that asks for it,
+   * until it is dropped. Only used on the main thread.
+   */
+  private abstract class SharedUserTable {
+    /**
+     * The rows, or null if they haven't been queried yet
+     */
+    UserTable table = null;
+    /**
+     * The query that is currently running, or null if there isn't one
+     */
+    private Future<?> pending = null;
+    /**
+     * Incremented every time the table is dropped, a query that finishes after that is stale and
+     * its result is thrown away
+     */
+    private int generation = 0;
+    /**
+     * Everyone waiting on the query that is currently running
+     */
+    private final List<UserTableListener> listeners = new ArrayList<>();
+
+    /**
+     * Reads whatever the query depends on, on the main thread
+     *
+     * @return the query, to be run on a background thread
+     */
+    protected abstract Callable<UserTable> prepareQuery();
+
+    void get(UserTableListener listener) {
+      if (table != null) {
+        listener.onUserTableLoaded(table);
+        return;
+      }
+      listeners.add(listener);
+      if (pending != null) {
+        // someone else already started it
+        return;
+      }
+      final Callable<UserTable> query = prepareQuery();
+      final int queryGeneration = generation;
+      pending = submitQuery(new Runnable() {
+        @Override
+        public void run() {
+          UserTable result;
+          try {
+            result = query.call();
+          } catch (Exception e) {
+            WebLogger.getLogger(getAppName()).printStackTrace(e);
+            result = null;
+          }
+          final UserTable loaded = result;
+          runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+              if (destroyed || queryGeneration != generation) {
+                // the props changed while we were querying, a new query has already been started
+                return;
+              }
+              pending = null;
+              table = loaded;
+              List<UserTableListener> waiting = new ArrayList<>(listeners);
+              listeners.clear();
+              for (UserTableListener l : waiting) {
+                l.onUserTableLoaded(loaded);
+              }
+            }
+          });
+        }
+      });
+      if (pending == null) {
+        // the activity is gone, nobody is going to get this table
+        listeners.clear();
+      }
+    }
+
+    void drop() {
+      table = null;
+      generation++;
+      if (pending == null) {
+        return;
+      }
+      pending.cancel(true);
+      pending = null;
+      List<UserTableListener> waiting = new ArrayList<>(listeners);
+      listeners.clear();
+      if (destroyed) {
+        return;
+      }
+      for (UserTableListener l : waiting) {
+        get(l);
+      }
+    }
+  }
+
+  /**
+   * Told when the {@link UserTable} requested with
+   * {@link TableDisplayActivity#getUserTableAsync(UserTableListener)} has been loaded
+   */
+  public interface UserTableListener {
+
+    /**
+     * Called on the main thread once the table has been queried
+     *
+     * @param table the rows of the table for the current props, or null if the database was
+     *              unavailable
+     */
+    void onUserTableLoaded(UserTable table);
+  }
+
+  /**
+   * Told when the index requested with
+   * {@link TableDisplayActivity#getLocationIndexAsync(String, String, LocationIndexListener)}
+   * has been built
+   */
+  public interface LocationIndexListener {
+
+    /**
+     * Called on the main thread once the index has been built
+     *
+     * @param index the locations of the rows, or null if the database was unavailable
+     */
+    void onLocationIndexLoaded(RowLocationIndex index);
+  }
 }
@@ -14,11 +14,15 @@
 
 package org.opendatakit.tables.application;
 
+import android.app.Activity;
+import android.os.Bundle;
 import com.crashlytics.android.Crashlytics;
 import com.google.firebase.analytics.FirebaseAnalytics;
 import io.fabric.sdk.android.Fabric;
 import org.opendatakit.application.CommonApplication;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.data.ColorRuleGroupCache;
+import org.opendatakit.tables.data.QueryResultCache;
 
 import java.lang.ref.WeakReference;
 
@@ -37,6 +41,19 @@ public class Tables extends CommonApplication {
 
   private FirebaseAnalytics analytics;
 
+  /**
+   * Recent query results, shared by every activity
+   */
+  private final QueryResultCache queryCache = new QueryResultCache();
+  /**
+   * The color rules of recently shown tables, shared by every activity
+   */
+  private final ColorRuleGroupCache colorRuleCache = new ColorRuleGroupCache();
+  /**
+   * The number of our activities that are started, when it drops to zero we're in the background
+   */
+  private int startedActivities = 0;
+
   public static Tables getInstance() {
     if (ref == null)
       // shut the IDE up
@@ -59,6 +76,26 @@ public class Tables extends CommonApplication {
     return R.raw.systemzip;
   }
 
+  /**
+   * Gets the cache of recent query results. Anything in Tables that changes a table's data should
+   * invalidate it.
+   *
+   * @return the application wide query result cache
+   */
+  public QueryResultCache getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * Gets the cache of color rule groups. Anything in Tables that saves color rules should
+   * invalidate it.
+   *
+   * @return the application wide color rule cache
+   */
+  public ColorRuleGroupCache getColorRuleCache() {
+    return colorRuleCache;
+  }
+
   public String getVersionedToolName() {
     String versionDetail = this.getVersionDetail();
     return getString(R.string.app_name) + versionDetail;
@@ -73,5 +110,51 @@ public class Tables extends CommonApplication {
     analytics = FirebaseAnalytics.getInstance(this);
     analytics.logEvent(FirebaseAnalytics.Event.APP_OPEN, null);
 
+    registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
+      @Override
+      public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+      }
+
+      @Override
+      public void onActivityStarted(Activity activity) {
+        startedActivities++;
+      }
+
+      @Override
+      public void onActivityResumed(Activity activity) {
+      }
+
+      @Override
+      public void onActivityPaused(Activity activity) {
+      }
+
+      @Override
+      public void onActivityStopped(Activity activity) {
+        startedActivities--;
+        // Once we're in the background, Survey, sync or anything else can change the data
+        // without us knowing. Rotating the device stops and restarts us but changes nothing.
+        if (startedActivities == 0 && !activity.isChangingConfigurations()) {
+          queryCache.clear();
+          colorRuleCache.clear();
+        }
+      }
+
+      @Override
+      public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+      }
+
+      @Override
+      public void onActivityDestroyed(Activity activity) {
+      }
+    });
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      queryCache.clear();
+      colorRuleCache.clear();
+    }
   }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.data.ColorRule;
+import org.opendatakit.data.ColorRuleGroup;
+
+import java.util.List;
+
+/**
+ * Evaluates the rules of a {@link ColorRuleGroup} against every row in a {@link ColumnStore}. It
+ * gives the same answers as ColorRuleGroup.getColorGuide does for a single row: the first rule
+ * that matches wins, null values never match, numeric columns are compared as numbers and
+ * everything else as strings.
+ * <p>
+ * Each rule is compiled once against the column it applies to. For a string column that means
+ * working out which of the column's distinct values match, so testing a row is an array lookup.
+ * The rules are then run a column at a time over the whole set of rows, each one only looking at
+ * the rows no earlier rule matched. Nothing is parsed or allocated per row.
+ * <p>
+ * The spreadsheet, the map markers and the color metadata sent to web views all use this.
+ */
+public final class ColorRuleEvaluator {
+
+  /**
+   * Do not instantiate this class
+   */
+  private ColorRuleEvaluator() {
+  }
+
+  /**
+   * Finds the colors of every row in a store
+   *
+   * @param crg      the color rules to evaluate
+   * @param store    the rows
+   * @param firstRow the index of the store's first row in the whole result set, the rows in the
+   *                 result are numbered from here
+   * @return the colors of the first rule that matched each row
+   */
+  public static RowColors evaluate(ColorRuleGroup crg, ColumnStore store, int firstRow) {
+    int numberOfRows = store.getNumberOfRows();
+    int[] foreground = new int[numberOfRows];
+    int[] background = new int[numberOfRows];
+    // a set bit means no rule has matched the row yet
+    long[] unmatched = new long[(numberOfRows + 63) >>> 6];
+    for (int i = 0; i < numberOfRows; i++) {
+      unmatched[i >>> 6] |= 1L << (i & 63);
+    }
+
+    List<ColorRule> rules = crg.getColorRules();
+    for (ColorRule rule : rules) {
+      Predicate predicate = compile(rule, store);
+      if (predicate == null) {
+        // a value that can't be compared to the column never matches
+        continue;
+      }
+      int fg = rule.getForeground();
+      int bg = rule.getBackground();
+      for (int word = 0; word < unmatched.length; word++) {
+        long candidates = unmatched[word] & ~predicate.column.getNullBits(word);
+        while (candidates != 0) {
+          int bit = Long.numberOfTrailingZeros(candidates);
+          candidates &= candidates - 1;
+          int row = (word << 6) | bit;
+          if (predicate.test(row)) {
+            foreground[row] = fg;
+            background[row] = bg;
+            unmatched[word] &= ~(1L << bit);
+          }
+        }
+      }
+    }
+
+    long[] matched = new long[unmatched.length];
+    for (int i = 0; i < numberOfRows; i++) {
+      if ((unmatched[i >>> 6] & (1L << (i & 63))) == 0) {
+        matched[i >>> 6] |= 1L << (i & 63);
+      }
+    }
+    return new RowColors(firstRow, numberOfRows, matched, foreground, background);
+  }
+
+  /**
+   * @param rule  a color rule
+   * @param store the rows it will be tested against
+   * @return the rule, ready to be tested against the rows, or null if it can never match
+   */
+  private static Predicate compile(ColorRule rule, ColumnStore store) {
+    ColumnStore.Column column = store.getColumn(rule.getColumnElementKey());
+    ColumnStore.Operand operand = column.toOperand(rule.getVal());
+    if (operand == null) {
+      return null;
+    }
+    if (column.kind == ColumnStore.Kind.DICTIONARY) {
+      boolean[] matchingCodes = new boolean[column.getDictionarySize()];
+      boolean any = false;
+      for (int code = 0; code < matchingCodes.length; code++) {
+        matchingCodes[code] = matches(rule.getOperator(),
+            Double.compare(2.0 * code, operand.value));
+        any |= matchingCodes[code];
+      }
+      return any ? new Predicate(column, matchingCodes, null, 0) : null;
+    }
+    return new Predicate(column, null, rule.getOperator(), operand.value);
+  }
+
+  /**
+   * @param operator   the rule's comparison
+   * @param comparison the result of comparing the row's value to the rule's
+   * @return whether the rule matches
+   */
+  private static boolean matches(ColorRule.RuleType operator, int comparison) {
+    switch (operator) {
+    case LESS_THAN:
+      return comparison < 0;
+    case LESS_THAN_OR_EQUAL:
+      return comparison <= 0;
+    case EQUAL:
+      return comparison == 0;
+    case GREATER_THAN_OR_EQUAL:
+      return comparison >= 0;
+    case GREATER_THAN:
+      return comparison > 0;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * A rule compiled against one column. Either it holds which of a DICTIONARY column's codes
+   * match, or the comparison to make against a numeric column.
+   */
+  private static final class Predicate {
+    final ColumnStore.Column column;
+    private final boolean[] matchingCodes;
+    private final ColorRule.RuleType operator;
+    private final double value;
+
+    Predicate(ColumnStore.Column column, boolean[] matchingCodes, ColorRule.RuleType operator,
+        double value) {
+      this.column = column;
+      this.matchingCodes = matchingCodes;
+      this.operator = operator;
+      this.value = value;
+    }
+
+    /**
+     * @param row a row that isn't null in the column
+     * @return whether the rule matches it
+     */
+    boolean test(int row) {
+      if (matchingCodes != null) {
+        return matchingCodes[column.getCode(row)];
+      }
+      return matches(operator, Double.compare(column.getDouble(row), value));
+    }
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the color rule groups read from the key value store for the whole application, so that
+ * building a spreadsheet, a map or the metadata of a web view's query doesn't read and parse the
+ * same rules again every time.
+ * <p>
+ * Groups are keyed by app name, table id, the type of the group and, for column rules, the
+ * column. Like {@link QueryResultCache} every table has a version, bumped when its rules are
+ * saved, and a group read before the bump is never put back.
+ * <p>
+ * The groups handed out are shared, so they must not be changed. The color rule editors read
+ * their own copy from the database, save it, and then invalidate the table here.
+ * <p>
+ * It is safe to use from any thread.
+ */
+public final class ColorRuleGroupCache {
+
+  /**
+   * Separates the parts of a key, it can't appear in a table id or element key
+   */
+  private static final char SEPARATOR = '\u0000';
+
+  private final Map<String, ColorRuleGroup> groups = new HashMap<>();
+  /**
+   * The element keys of the columns of a table that have color rules saved, keyed by
+   * {@link #getTableKey(String, String)}
+   */
+  private final Map<String, Set<String>> columnsWithRules = new HashMap<>();
+  /**
+   * The current version of every table that has had something cached, keyed by
+   * {@link #getTableKey(String, String)}
+   */
+  private final Map<String, Integer> versions = new HashMap<>();
+
+  private static String getTableKey(String appName, String tableId) {
+    return appName + SEPARATOR + tableId + SEPARATOR;
+  }
+
+  private static String getGroupKey(String appName, String tableId, ColorRuleGroup.Type type,
+      String elementKey) {
+    return getTableKey(appName, tableId) + type.name() + SEPARATOR + elementKey;
+  }
+
+  /**
+   * Gets the rules that color whole rows of a table, reading them if they aren't cached
+   *
+   * @param dbInterface  a database interface to use
+   * @param appName      the app name
+   * @param db           an open database handle to use
+   * @param tableId      the table id
+   * @param adminColumns the admin columns
+   * @return the table's row color rules, which must not be changed
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public ColorRuleGroup getTableColorRuleGroup(UserDbInterface dbInterface, String appName,
+      DbHandle db, String tableId, String[] adminColumns) throws ServicesAvailabilityException {
+    String key = getGroupKey(appName, tableId, ColorRuleGroup.Type.TABLE, null);
+    ColorRuleGroup crg = get(key);
+    if (crg == null) {
+      int version = getVersion(appName, tableId);
+      crg = ColorRuleGroup
+          .getTableColorRuleGroup(dbInterface, appName, db, tableId, adminColumns);
+      put(appName, tableId, key, version, crg);
+    }
+    return crg;
+  }
+
+  /**
+   * Gets the rules that color the status column of a table, reading them if they aren't cached
+   *
+   * @param dbInterface  a database interface to use
+   * @param appName      the app name
+   * @param db           an open database handle to use
+   * @param tableId      the table id
+   * @param adminColumns the admin columns
+   * @return the table's status column color rules, which must not be changed
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public ColorRuleGroup getStatusColumnRuleGroup(UserDbInterface dbInterface, String appName,
+      DbHandle db, String tableId, String[] adminColumns) throws ServicesAvailabilityException {
+    String key = getGroupKey(appName, tableId, ColorRuleGroup.Type.STATUS_COLUMN, null);
+    ColorRuleGroup crg = get(key);
+    if (crg == null) {
+      int version = getVersion(appName, tableId);
+      crg = ColorRuleGroup
+          .getStatusColumnRuleGroup(dbInterface, appName, db, tableId, adminColumns);
+      put(appName, tableId, key, version, crg);
+    }
+    return crg;
+  }
+
+  /**
+   * Gets the rules that color one column of a table, reading them if they aren't cached
+   *
+   * @param dbInterface  a database interface to use
+   * @param appName      the app name
+   * @param db           an open database handle to use
+   * @param tableId      the table id
+   * @param elementKey   the element key of the column
+   * @param adminColumns the admin columns
+   * @return the column's color rules, which must not be changed
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public ColorRuleGroup getColumnColorRuleGroup(UserDbInterface dbInterface, String appName,
+      DbHandle db, String tableId, String elementKey, String[] adminColumns)
+      throws ServicesAvailabilityException {
+    String key = getGroupKey(appName, tableId, ColorRuleGroup.Type.COLUMN, elementKey);
+    ColorRuleGroup crg = get(key);
+    if (crg == null) {
+      int version = getVersion(appName, tableId);
+      crg = ColorRuleGroup
+          .getColumnColorRuleGroup(dbInterface, appName, db, tableId, elementKey, adminColumns);
+      put(appName, tableId, key, version, crg);
+    }
+    return crg;
+  }
+
+  /**
+   * Finds the columns of a table that have color rules, with one read of the key value store for
+   * all of them. A column that isn't in the set has no rules, so there's no need to read its
+   * group at all.
+   *
+   * @param dbInterface a database interface to use
+   * @param appName     the app name
+   * @param db          an open database handle to use
+   * @param tableId     the table id
+   * @return the element keys of the columns with at least one color rule, which must not be
+   * changed
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  public Set<String> getColumnsWithColorRules(UserDbInterface dbInterface, String appName,
+      DbHandle db, String tableId) throws ServicesAvailabilityException {
+    String tableKey = getTableKey(appName, tableId);
+    Set<String> elementKeys = getColumnsWithRules(tableKey);
+    if (elementKeys == null) {
+      int version = getVersion(appName, tableId);
+      elementKeys = new HashSet<>();
+      for (KeyValueStoreEntry entry : dbInterface
+          .getTableMetadata(appName, db, tableId, KeyValueStoreConstants.PARTITION_COLUMN, null,
+              KeyValueStoreConstants.COLUMN_COLOR_RULE_KEY, null).getEntries()) {
+        // deleting every rule of a column leaves an empty list behind
+        String rules = entry.value == null ? "" : entry.value.trim();
+        if (!rules.isEmpty() && !rules.equals("[]")) {
+          elementKeys.add(entry.aspect);
+        }
+      }
+      elementKeys = Collections.unmodifiableSet(elementKeys);
+      putColumnsWithRules(appName, tableId, tableKey, version, elementKeys);
+    }
+    return elementKeys;
+  }
+
+  /**
+   * Drops every group cached for a table, called after its color rules were saved
+   *
+   * @param appName the app name
+   * @param tableId the table id
+   */
+  public synchronized void invalidateTable(String appName, String tableId) {
+    String tableKey = getTableKey(appName, tableId);
+    versions.put(tableKey, getVersion(appName, tableId) + 1);
+    evictMatching(tableKey);
+  }
+
+  /**
+   * Drops every group cached for every table in an app, used when the rules may have changed but
+   * we don't know which table's
+   *
+   * @param appName the app name
+   */
+  public synchronized void invalidateApp(String appName) {
+    String appKey = appName + SEPARATOR;
+    for (Map.Entry<String, Integer> version : versions.entrySet()) {
+      if (version.getKey().startsWith(appKey)) {
+        version.setValue(version.getValue() + 1);
+      }
+    }
+    evictMatching(appKey);
+  }
+
+  /**
+   * Drops everything, for when memory is low or the rules may have been changed by another app
+   */
+  public synchronized void clear() {
+    for (Map.Entry<String, Integer> version : versions.entrySet()) {
+      version.setValue(version.getValue() + 1);
+    }
+    groups.clear();
+    columnsWithRules.clear();
+  }
+
+  private synchronized int getVersion(String appName, String tableId) {
+    Integer version = versions.get(getTableKey(appName, tableId));
+    if (version == null) {
+      versions.put(getTableKey(appName, tableId), 0);
+      return 0;
+    }
+    return version;
+  }
+
+  private synchronized ColorRuleGroup get(String key) {
+    return groups.get(key);
+  }
+
+  private synchronized void put(String appName, String tableId, String key, int version,
+      ColorRuleGroup crg) {
+    if (version != getVersion(appName, tableId)) {
+      // the rules were saved while we were reading them
+      return;
+    }
+    groups.put(key, crg);
+  }
+
+  private synchronized Set<String> getColumnsWithRules(String tableKey) {
+    return columnsWithRules.get(tableKey);
+  }
+
+  private synchronized void putColumnsWithRules(String appName, String tableId, String tableKey,
+      int version, Set<String> elementKeys) {
+    if (version != getVersion(appName, tableId)) {
+      // the rules were saved while we were reading them
+      return;
+    }
+    columnsWithRules.put(tableKey, elementKeys);
+  }
+
+  private void evictMatching(String prefix) {
+    evictMatching(groups.keySet().iterator(), prefix);
+    evictMatching(columnsWithRules.keySet().iterator(), prefix);
+  }
+
+  private static void evictMatching(Iterator<String> keys, String prefix) {
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A column-wise copy of some of the values of a set of rows (a page of the spreadsheet, or a
+ * whole query result), built so that {@link ColorRuleEvaluator} can scan them without parsing a
+ * String per cell. Integer columns are held in a long[], number columns in a double[], and
+ * everything else (text, dates, admin columns) is dictionary encoded: an int[] of codes into a
+ * sorted array of the distinct values. Because the dictionary is sorted, comparing two codes gives
+ * the same answer as comparing the strings, which for the ISO 8601 dates and times ODK stores is
+ * chronological order. Every column has a bitmap of which rows are null.
+ * <p>
+ * It is not where the rows are kept. The UserTable it is built from still holds every value as
+ * a String, and that is what the spreadsheet draws and sorts from, so a store is built just for
+ * one evaluation and thrown away afterwards rather than kept alongside the rows.
+ * <p>
+ * A column is converted the first time it is asked for, so only the columns the rules look at
+ * are copied. After that scanning it never parses or allocates anything.
+ */
+public final class ColumnStore {
+
+  /**
+   * How a column's values are stored
+   */
+  enum Kind {
+    INTEGER, NUMBER, DICTIONARY
+  }
+
+  private final UserTable rows;
+  private final Map<String, ElementDataType> dataTypes;
+  private final int numberOfRows;
+  private final Map<String, Column> columns = new HashMap<>();
+
+  /**
+   * Creates an empty store for some rows, nothing is converted until it is asked for
+   *
+   * @param rows      the rows
+   * @param dataTypes the data type of each user defined column, by element key. Anything not in
+   *                  here (the admin columns) is treated as a string, like the color rules do
+   */
+  public ColumnStore(UserTable rows, Map<String, ElementDataType> dataTypes) {
+    this.rows = rows;
+    this.dataTypes = dataTypes;
+    this.numberOfRows = rows.getNumberOfRows();
+  }
+
+  /**
+   * Gets the data types to pass to the constructor
+   *
+   * @param columns the table's columns
+   * @return the data type of each user defined column, by element key
+   */
+  public static Map<String, ElementDataType> getDataTypes(OrderedColumns columns) {
+    Map<String, ElementDataType> dataTypes = new HashMap<>();
+    for (ColumnDefinition cd : columns.getColumnDefinitions()) {
+      dataTypes.put(cd.getElementKey(), cd.getType().getDataType());
+    }
+    return dataTypes;
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int getNumberOfRows() {
+    return numberOfRows;
+  }
+
+  /**
+   * Gets a column, converting it if this is the first time it has been asked for
+   *
+   * @param elementKey the element key of the column
+   * @return the column's values
+   */
+  Column getColumn(String elementKey) {
+    Column column = columns.get(elementKey);
+    if (column == null) {
+      column = new Column(elementKey, dataTypes.get(elementKey));
+      columns.put(elementKey, column);
+    }
+    return column;
+  }
+
+  /**
+   * A single column of the rows
+   */
+  final class Column {
+    final Kind kind;
+    /**
+     * A set bit means the row is null, or couldn't be parsed as the column's type
+     */
+    private final long[] nulls;
+    private long[] longs = null;
+    private double[] doubles = null;
+    private int[] codes = null;
+    private String[] dictionary = null;
+
+    private Column(String elementKey, ElementDataType type) {
+      nulls = new long[(numberOfRows + 63) >>> 6];
+      String[] raw = new String[numberOfRows];
+      for (int i = 0; i < numberOfRows; i++) {
+        try {
+          raw[i] = rows.getRowAtIndex(i).getStringValueByKey(elementKey);
+        } catch (IllegalArgumentException e) {
+          // not a column of this table, every row is null
+          raw[i] = null;
+        }
+      }
+      if (type == ElementDataType.integer && parseLongs(raw)) {
+        kind = Kind.INTEGER;
+      } else if (type == ElementDataType.integer || type == ElementDataType.number) {
+        // an integer column with something like "1.0" in it gets compared as a number
+        kind = Kind.NUMBER;
+        parseDoubles(raw);
+      } else {
+        kind = Kind.DICTIONARY;
+        encode(raw);
+      }
+    }
+
+    private boolean parseLongs(String[] raw) {
+      longs = new long[numberOfRows];
+      for (int i = 0; i < numberOfRows; i++) {
+        if (raw[i] == null) {
+          setNull(i);
+          continue;
+        }
+        try {
+          longs[i] = Long.parseLong(raw[i]);
+        } catch (NumberFormatException e) {
+          longs = null;
+          Arrays.fill(nulls, 0L);
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void parseDoubles(String[] raw) {
+      doubles = new double[numberOfRows];
+      for (int i = 0; i < numberOfRows; i++) {
+        if (raw[i] == null) {
+          setNull(i);
+          continue;
+        }
+        try {
+          doubles[i] = Double.parseDouble(raw[i]);
+        } catch (NumberFormatException e) {
+          setNull(i);
+        }
+      }
+    }
+
+    private void encode(String[] raw) {
+      TreeSet<String> distinct = new TreeSet<>();
+      for (int i = 0; i < numberOfRows; i++) {
+        if (raw[i] == null) {
+          setNull(i);
+        } else {
+          distinct.add(raw[i]);
+        }
+      }
+      dictionary = distinct.toArray(new String[distinct.size()]);
+      codes = new int[numberOfRows];
+      for (int i = 0; i < numberOfRows; i++) {
+        codes[i] = raw[i] == null ? -1 : Arrays.binarySearch(dictionary, raw[i]);
+      }
+    }
+
+    private void setNull(int row) {
+      nulls[row >>> 6] |= 1L << (row & 63);
+    }
+
+    /**
+     * @param word the index of a word of the bitmap, covering rows 64 * word to 64 * word + 63
+     * @return the null bitmap for those rows, a set bit means the row is null
+     */
+    long getNullBits(int word) {
+      return nulls[word];
+    }
+
+    /**
+     * @param row the index of the row in the store
+     * @return the value of an INTEGER or NUMBER column, undefined if the row is null
+     */
+    double getDouble(int row) {
+      return kind == Kind.INTEGER ? (double) longs[row] : doubles[row];
+    }
+
+    /**
+     * @param row the index of the row in the store
+     * @return the code of a DICTIONARY column's value, the index of the value in the sorted
+     * distinct values, or -1 if the row is null
+     */
+    int getCode(int row) {
+      return codes[row];
+    }
+
+    /**
+     * @return the number of distinct values in a DICTIONARY column
+     */
+    int getDictionarySize() {
+      return dictionary.length;
+    }
+
+    /**
+     * Turns a value into something the rows of this column can be compared to without parsing.
+     * A DICTIONARY column's row compares to it as twice the row's code does, any other column's
+     * row as {@link #getDouble(int)} does.
+     *
+     * @param value the value to compare against, as it would appear in the database
+     * @return the operand, or null if the value can't be compared to this column
+     */
+    Operand toOperand(String value) {
+      if (value == null) {
+        return null;
+      }
+      if (kind == Kind.DICTIONARY) {
+        int index = Arrays.binarySearch(dictionary, value);
+        // if it's missing, position it halfway between its neighbours so no code is equal to it
+        return index >= 0 ? new Operand(2.0 * index) : new Operand(2.0 * (-index - 1) - 1);
+      }
+      try {
+        return new Operand(Double.parseDouble(value));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * A value prepared for comparing against the rows of one particular column
+   */
+  static final class Operand {
+    final double value;
+
+    Operand(double value) {
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import android.util.LruCache;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the results of recent table queries for the whole application, so that relaunching a
+ * TableDisplayActivity (rotating the device, opening a collection view and coming back, etc.)
+ * doesn't run the same queries against the database service again.
+ * <p>
+ * Results are keyed by app name, table id and the query, and bounded by an estimate of the memory
+ * they take up, so a few wide tables with long text can't take as much as many narrow ones.
+ * Every table has a data version, which is bumped whenever Tables changes or might have
+ * changed its data. A result only counts as a hit if it was queried at the current version, so a
+ * query that was already running when the data changed can't put an out of date result back.
+ * <p>
+ * It is safe to use from any thread.
+ */
+public final class QueryResultCache {
+
+  /**
+   * The most memory, as estimated by {@link #estimateSize(UserTable)}, kept across every cached
+   * result. A result bigger than this is never cached at all.
+   */
+  private static final int MAX_CACHED_BYTES = (int) Math
+      .min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+  /**
+   * Roughly what a cache entry costs apart from its rows: its key, the entry and the table
+   */
+  private static final int ENTRY_OVERHEAD = 256;
+  /**
+   * Roughly what a row costs apart from its cells: the row object and its array of values
+   */
+  private static final int ROW_OVERHEAD = 48;
+  /**
+   * Roughly what a cell costs apart from its characters: the String, its array header and the
+   * reference to it
+   */
+  private static final int CELL_OVERHEAD = 44;
+  /**
+   * The number of rows whose text is measured to estimate the size of a result
+   */
+  private static final int SAMPLED_ROWS = 32;
+  /**
+   * Separates the parts of a key, it can't appear in a table id or in SQL
+   */
+  private static final char SEPARATOR = '\u0000';
+
+  private final LruCache<String, Entry> results = new LruCache<String, Entry>(MAX_CACHED_BYTES) {
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+      return entry.size;
+    }
+  };
+  /**
+   * The current data version of every table that has had something cached, keyed by
+   * {@link #getTableKey(String, String)}
+   */
+  private final Map<String, Integer> dataVersions = new HashMap<>();
+
+  private static String getTableKey(String appName, String tableId) {
+    return appName + SEPARATOR + tableId + SEPARATOR;
+  }
+
+  private static String getResultKey(String appName, String tableId, SQLQueryStruct query,
+      Integer limit, Integer offset) {
+    return getTableKey(appName, tableId) + query.getCanonicalString() + SEPARATOR + limit
+        + SEPARATOR + offset;
+  }
+
+  private static String getCountKey(String appName, String tableId, SQLQueryStruct query) {
+    return getTableKey(appName, tableId) + query.getCanonicalString() + SEPARATOR + "count";
+  }
+
+  /**
+   * Gets the data version of a table. Read it before running a query and pass it to the put
+   * method afterwards.
+   *
+   * @param appName the app name
+   * @param tableId the table id
+   * @return the table's current data version
+   */
+  public synchronized int getDataVersion(String appName, String tableId) {
+    Integer version = dataVersions.get(getTableKey(appName, tableId));
+    if (version == null) {
+      dataVersions.put(getTableKey(appName, tableId), 0);
+      return 0;
+    }
+    return version;
+  }
+
+  /**
+   * Gets the cached rows of a query
+   *
+   * @param appName the app name
+   * @param tableId the table id
+   * @param query   the where clause, group by and sort order of the query
+   * @param limit   the limit the query was run with, or null
+   * @param offset  the offset the query was run with, or null
+   * @return the rows, or null if they aren't cached or the table changed since
+   */
+  public synchronized UserTable getTable(String appName, String tableId, SQLQueryStruct query,
+      Integer limit, Integer offset) {
+    Object value = get(appName, tableId, getResultKey(appName, tableId, query, limit, offset));
+    return value instanceof UserTable ? (UserTable) value : null;
+  }
+
+  /**
+   * Caches the rows of a query
+   *
+   * @param appName     the app name
+   * @param tableId     the table id
+   * @param query       the where clause, group by and sort order of the query
+   * @param limit       the limit the query was run with, or null
+   * @param offset      the offset the query was run with, or null
+   * @param dataVersion the data version of the table from before the query was run
+   * @param table       the rows that were returned
+   */
+  public synchronized void putTable(String appName, String tableId, SQLQueryStruct query,
+      Integer limit, Integer offset, int dataVersion, UserTable table) {
+    put(appName, tableId, getResultKey(appName, tableId, query, limit, offset), dataVersion,
+        table, estimateSize(table));
+  }
+
+  /**
+   * Gets the cached row count of a query
+   *
+   * @param appName the app name
+   * @param tableId the table id
+   * @param query   the where clause, group by and sort order of the query
+   * @return the number of rows, or null if it isn't cached or the table changed since
+   */
+  public synchronized Integer getRowCount(String appName, String tableId, SQLQueryStruct query) {
+    Object value = get(appName, tableId, getCountKey(appName, tableId, query));
+    return value instanceof Integer ? (Integer) value : null;
+  }
+
+  /**
+   * Caches the row count of a query
+   *
+   * @param appName     the app name
+   * @param tableId     the table id
+   * @param query       the where clause, group by and sort order of the query
+   * @param dataVersion the data version of the table from before the query was run
+   * @param count       the number of rows
+   */
+  public synchronized void putRowCount(String appName, String tableId, SQLQueryStruct query,
+      int dataVersion, int count) {
+    put(appName, tableId, getCountKey(appName, tableId, query), dataVersion, count,
+        ENTRY_OVERHEAD);
+  }
+
+  /**
+   * Drops everything cached for a table, called when its data changed
+   *
+   * @param appName the app name
+   * @param tableId the table id
+   */
+  public synchronized void invalidateTable(String appName, String tableId) {
+    String tableKey = getTableKey(appName, tableId);
+    dataVersions.put(tableKey, getDataVersion(appName, tableId) + 1);
+    evictMatching(tableKey);
+  }
+
+  /**
+   * Drops everything cached for every table in an app, used when something changed data but we
+   * don't know which table
+   *
+   * @param appName the app name
+   */
+  public synchronized void invalidateApp(String appName) {
+    String appKey = appName + SEPARATOR;
+    for (Map.Entry<String, Integer> version : dataVersions.entrySet()) {
+      if (version.getKey().startsWith(appKey)) {
+        version.setValue(version.getValue() + 1);
+      }
+    }
+    evictMatching(appKey);
+  }
+
+  /**
+   * Drops everything, for when memory is low or the data may have been changed by another app
+   */
+  public synchronized void clear() {
+    for (Map.Entry<String, Integer> version : dataVersions.entrySet()) {
+      version.setValue(version.getValue() + 1);
+    }
+    results.evictAll();
+  }
+
+  private Object get(String appName, String tableId, String key) {
+    Entry entry = results.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.dataVersion != getDataVersion(appName, tableId)) {
+      results.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  private void put(String appName, String tableId, String key, int dataVersion, Object value,
+      int size) {
+    if (dataVersion != getDataVersion(appName, tableId)) {
+      // the table changed while the query was running
+      return;
+    }
+    results.put(key, new Entry(dataVersion, value, size));
+  }
+
+  /**
+   * Estimates the memory taken by the rows of a result. The length of the text is measured on
+   * the first few rows and assumed to be the same for the rest, so this is cheap next to the
+   * query itself.
+   *
+   * @param table the rows
+   * @return the estimated size in bytes
+   */
+  static int estimateSize(UserTable table) {
+    int numberOfRows = table.getNumberOfRows();
+    int width = table.getWidth();
+    int sampled = Math.min(numberOfRows, SAMPLED_ROWS);
+    long chars = 0;
+    for (int i = 0; i < sampled; i++) {
+      TypedRow row = table.getRowAtIndex(i);
+      for (int j = 0; j < width; j++) {
+        String value = row.getStringValueByKey(table.getElementKey(j));
+        if (value != null) {
+          chars += value.length();
+        }
+      }
+    }
+    // two bytes a char
+    long rowBytes = ROW_OVERHEAD + (long) width * CELL_OVERHEAD + (sampled == 0 ?
+        0 :
+        2 * chars / sampled);
+    return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + rowBytes * numberOfRows);
+  }
+
+  private void evictMatching(String prefix) {
+    for (String key : results.snapshot().keySet()) {
+      if (key.startsWith(prefix)) {
+        results.remove(key);
+      }
+    }
+  }
+
+  private static final class Entry {
+    final int dataVersion;
+    final Object value;
+    final int size;
+
+    Entry(int dataVersion, Object value, int size) {
+      this.dataVersion = dataVersion;
+      this.value = value;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+/**
+ * The result of evaluating a group of color rules against a run of rows, from
+ * {@link ColorRuleEvaluator}. For each row it holds whether any rule matched it and, if one did,
+ * that rule's foreground and background colors.
+ */
+public final class RowColors {
+
+  private final int firstRow;
+  private final int numberOfRows;
+  /**
+   * A set bit means a rule matched the row
+   */
+  private final long[] matched;
+  private final int[] foreground;
+  private final int[] background;
+
+  RowColors(int firstRow, int numberOfRows, long[] matched, int[] foreground,
+      int[] background) {
+    this.firstRow = firstRow;
+    this.numberOfRows = numberOfRows;
+    this.matched = matched;
+    this.foreground = foreground;
+    this.background = background;
+  }
+
+  /**
+   * @return the index of the first row, in the whole result set
+   */
+  public int getFirstRow() {
+    return firstRow;
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int getNumberOfRows() {
+    return numberOfRows;
+  }
+
+  /**
+   * @param rowIndex the index of the row in the whole result set
+   * @return whether a rule matched the row
+   */
+  public boolean isMatched(int rowIndex) {
+    int i = rowIndex - firstRow;
+    return (matched[i >>> 6] & (1L << (i & 63))) != 0;
+  }
+
+  /**
+   * @param rowIndex the index of the row in the whole result set
+   * @return the foreground color of the rule that matched the row, undefined if none did
+   */
+  public int getForeground(int rowIndex) {
+    return foreground[rowIndex - firstRow];
+  }
+
+  /**
+   * @param rowIndex the index of the row in the whole result set
+   * @return the background color of the rule that matched the row, undefined if none did
+   */
+  public int getBackground(int rowIndex) {
+    return background[rowIndex - firstRow];
+  }
+}
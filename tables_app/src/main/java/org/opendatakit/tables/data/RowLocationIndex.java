@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index of the locations of the rows of a table, from its configured latitude and
+ * longitude columns. The map uses it to find the markers and clusters of markers that are on
+ * screen, and it answers nearest row queries. Each location is parsed once, when the index is
+ * built, after that nothing looks at the row strings again.
+ * <p>
+ * Locations are projected to Web Mercator, the same projection the map draws with, normalized to
+ * [0, 1) in both directions. The points are bucketed in a fixed grid over the world, stored as
+ * one sorted array of point ids plus the offset of each bucket in it, so a query only looks at
+ * the buckets it overlaps. For clustering, the points are grouped with a grid whose cells are a
+ * fixed size on screen, so the number of markers is bounded by the size of the screen rather
+ * than the number of rows.
+ * <p>
+ * Building it is the expensive part and should be done off the main thread. Once built it is
+ * never modified, so it can be queried from any thread.
+ */
+public final class RowLocationIndex {
+
+  /**
+   * Returned by {@link #nearest(double, double)} when there are no locations
+   */
+  public static final int NO_ROW = -1;
+
+  /**
+   * The index grid is 2^GRID_BITS buckets in each direction
+   */
+  private static final int GRID_BITS = 8;
+  private static final int GRID_SIZE = 1 << GRID_BITS;
+  /**
+   * The width of the world in dp at zoom level 0, the maps API doubles it at each level
+   */
+  private static final double WORLD_SIZE_DP = 256;
+  /**
+   * Mercator goes to infinity at the poles, the map stops at about 85 degrees
+   */
+  private static final double MAX_LATITUDE = 85.05112878;
+  /**
+   * The mean radius of the earth in meters, distances are measured on a sphere
+   */
+  private static final double EARTH_RADIUS = 6371008.8;
+
+  /**
+   * The location of every row, undefined if the row doesn't have one
+   */
+  private final double[] latitudes;
+  private final double[] longitudes;
+  /**
+   * A set bit means the row has a valid location
+   */
+  private final long[] valid;
+  /**
+   * The projected location of each point
+   */
+  private final double[] x;
+  private final double[] y;
+  /**
+   * The index of the row that each point came from
+   */
+  private final int[] rows;
+  /**
+   * bucketPoints[bucketStart[b]] to bucketPoints[bucketStart[b + 1] - 1] are the points in
+   * bucket b
+   */
+  private final int[] bucketStart;
+  private final int[] bucketPoints;
+  private final LatLngBounds bounds;
+
+  /**
+   * What the index was built from, see {@link #isIndexOf(UserTable, String, String)}
+   */
+  private UserTable table = null;
+  private String latitudeElementKey = null;
+  private String longitudeElementKey = null;
+
+  private RowLocationIndex(double[] latitudes, double[] longitudes, long[] valid) {
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.valid = valid;
+    int numberOfRows = latitudes.length;
+    x = new double[numberOfRows];
+    y = new double[numberOfRows];
+    rows = new int[numberOfRows];
+    int count = 0;
+    double south = Double.POSITIVE_INFINITY;
+    double north = Double.NEGATIVE_INFINITY;
+    double west = Double.POSITIVE_INFINITY;
+    double east = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < numberOfRows; i++) {
+      if (!hasLocation(i)) {
+        continue;
+      }
+      south = Math.min(south, latitudes[i]);
+      north = Math.max(north, latitudes[i]);
+      west = Math.min(west, longitudes[i]);
+      east = Math.max(east, longitudes[i]);
+      x[count] = projectX(longitudes[i]);
+      y[count] = projectY(latitudes[i]);
+      rows[count] = i;
+      count++;
+    }
+    bounds = count == 0 ? null : new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+
+    // counting sort of the points into their buckets
+    bucketStart = new int[GRID_SIZE * GRID_SIZE + 1];
+    int[] bucketOf = new int[count];
+    for (int p = 0; p < count; p++) {
+      bucketOf[p] = bucket(gridCell(y[p]), gridCell(x[p]));
+      bucketStart[bucketOf[p] + 1]++;
+    }
+    for (int b = 0; b < GRID_SIZE * GRID_SIZE; b++) {
+      bucketStart[b + 1] += bucketStart[b];
+    }
+    int[] next = new int[GRID_SIZE * GRID_SIZE];
+    System.arraycopy(bucketStart, 0, next, 0, next.length);
+    bucketPoints = new int[count];
+    for (int p = 0; p < count; p++) {
+      bucketPoints[next[bucketOf[p]]++] = p;
+    }
+  }
+
+  /**
+   * Reads the location of every row and indexes it. Rows with a missing or unparseable location
+   * are left out.
+   *
+   * @param table               the rows to index
+   * @param latitudeElementKey  the column holding the latitude
+   * @param longitudeElementKey the column holding the longitude
+   * @return the index
+   */
+  public static RowLocationIndex build(UserTable table, String latitudeElementKey,
+      String longitudeElementKey) {
+    int numberOfRows = table.getNumberOfRows();
+    double[] latitudes = new double[numberOfRows];
+    double[] longitudes = new double[numberOfRows];
+    long[] valid = new long[(numberOfRows + 63) >>> 6];
+    for (int i = 0; i < numberOfRows; i++) {
+      TypedRow row = table.getRowAtIndex(i);
+      latitudes[i] = parse(row.getStringValueByKey(latitudeElementKey));
+      longitudes[i] = parse(row.getStringValueByKey(longitudeElementKey));
+      if (isValid(latitudes[i], longitudes[i])) {
+        valid[i >>> 6] |= 1L << (i & 63);
+      }
+    }
+    RowLocationIndex index = new RowLocationIndex(latitudes, longitudes, valid);
+    index.table = table;
+    index.latitudeElementKey = latitudeElementKey;
+    index.longitudeElementKey = longitudeElementKey;
+    return index;
+  }
+
+  /**
+   * Indexes locations that have already been parsed
+   *
+   * @param latitudes  the latitude of each row, NaN if it doesn't have a location
+   * @param longitudes the longitude of each row, NaN if it doesn't have a location
+   * @return the index, it keeps both arrays
+   */
+  public static RowLocationIndex build(double[] latitudes, double[] longitudes) {
+    if (latitudes.length != longitudes.length) {
+      throw new IllegalArgumentException("latitudes and longitudes are different lengths");
+    }
+    long[] valid = new long[(latitudes.length + 63) >>> 6];
+    for (int i = 0; i < latitudes.length; i++) {
+      if (isValid(latitudes[i], longitudes[i])) {
+        valid[i >>> 6] |= 1L << (i & 63);
+      }
+    }
+    return new RowLocationIndex(latitudes, longitudes, valid);
+  }
+
+  private static boolean isValid(double latitude, double longitude) {
+    return !Double.isNaN(latitude) && !Double.isNaN(longitude) && !Double.isInfinite(latitude)
+        && !Double.isInfinite(longitude);
+  }
+
+  private static double parse(String value) {
+    if (value == null || value.isEmpty()) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * @param table               a table
+   * @param latitudeElementKey  the column holding the latitude
+   * @param longitudeElementKey the column holding the longitude
+   * @return whether this index was built from exactly that table and those columns
+   */
+  public boolean isIndexOf(UserTable table, String latitudeElementKey,
+      String longitudeElementKey) {
+    return this.table == table && this.latitudeElementKey != null && this.latitudeElementKey
+        .equals(latitudeElementKey) && this.longitudeElementKey != null && this.longitudeElementKey
+        .equals(longitudeElementKey);
+  }
+
+  /**
+   * @return the table the index was built from, or null if it was built from parsed locations
+   */
+  public UserTable getTable() {
+    return table;
+  }
+
+  /**
+   * @return the number of rows with a valid location
+   */
+  public int size() {
+    return bucketPoints.length;
+  }
+
+  /**
+   * @return the smallest bounds containing every location, or null if there are none
+   */
+  public LatLngBounds getBounds() {
+    return bounds;
+  }
+
+  /**
+   * @param row the index of the row in the table
+   * @return whether the row has a valid location
+   */
+  public boolean hasLocation(int row) {
+    return row >= 0 && row < latitudes.length && (valid[row >>> 6] & (1L << (row & 63))) != 0;
+  }
+
+  /**
+   * @param row the index of the row in the table
+   * @return the latitude of the row, undefined if it doesn't have a location
+   */
+  public double getLatitude(int row) {
+    return latitudes[row];
+  }
+
+  /**
+   * @param row the index of the row in the table
+   * @return the longitude of the row, undefined if it doesn't have a location
+   */
+  public double getLongitude(int row) {
+    return longitudes[row];
+  }
+
+  /**
+   * Finds the row closest to a location, measured on a sphere
+   *
+   * @param latitude  the latitude of the location
+   * @param longitude the longitude of the location
+   * @return the index of the closest row, or {@link #NO_ROW} if no row has a location
+   */
+  public int nearest(double latitude, double longitude) {
+    if (size() == 0) {
+      return NO_ROW;
+    }
+    int centerRow = gridCell(projectY(latitude));
+    int centerColumn = gridCell(projectX(longitude));
+    int best = NO_ROW;
+    double bestDistance = Double.POSITIVE_INFINITY;
+
+    // find a first candidate in the closest ring of buckets that has anything in it
+    for (int ring = 0; best == NO_ROW && ring < GRID_SIZE; ring++) {
+      for (int gridRow = centerRow - ring; gridRow <= centerRow + ring; gridRow++) {
+        if (gridRow < 0 || gridRow >= GRID_SIZE) {
+          continue;
+        }
+        boolean edge = gridRow == centerRow - ring || gridRow == centerRow + ring;
+        int step = edge ? 1 : Math.max(1, 2 * ring);
+        for (int column = centerColumn - ring; column <= centerColumn + ring; column += step) {
+          int b = bucket(gridRow, wrapColumn(column));
+          for (int i = bucketStart[b]; i < bucketStart[b + 1]; i++) {
+            int row = rows[bucketPoints[i]];
+            double distance = distance(latitude, longitude, latitudes[row], longitudes[row]);
+            if (distance < bestDistance) {
+              bestDistance = distance;
+              best = row;
+            }
+          }
+        }
+      }
+    }
+
+    // the buckets are far from square away from the equator, so anything within bestDistance
+    // could still be closer. Check every bucket that overlaps that circle.
+    double angle = bestDistance / EARTH_RADIUS;
+    double north = latitude + Math.toDegrees(angle);
+    double south = latitude - Math.toDegrees(angle);
+    int firstRow = gridCell(projectY(north));
+    int lastRow = gridCell(projectY(south));
+    int firstColumn = 0;
+    int lastColumn = GRID_SIZE - 1;
+    double spread = Math.sin(angle) / Math.cos(Math.toRadians(latitude));
+    if (north < 90 && south > -90 && spread < 1) {
+      double halfWidth = Math.toDegrees(Math.asin(spread));
+      firstColumn = (int) Math.floor(projectX(longitude - halfWidth) * GRID_SIZE);
+      lastColumn = (int) Math.floor(projectX(longitude + halfWidth) * GRID_SIZE);
+      if (lastColumn - firstColumn >= GRID_SIZE) {
+        firstColumn = 0;
+        lastColumn = GRID_SIZE - 1;
+      }
+    }
+    for (int gridRow = firstRow; gridRow <= lastRow; gridRow++) {
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        int b = bucket(gridRow, wrapColumn(column));
+        for (int i = bucketStart[b]; i < bucketStart[b + 1]; i++) {
+          int row = rows[bucketPoints[i]];
+          double distance = distance(latitude, longitude, latitudes[row], longitudes[row]);
+          if (distance < bestDistance) {
+            bestDistance = distance;
+            best = row;
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * The great circle distance between two locations, on a sphere
+   *
+   * @return the distance in meters
+   */
+  public static double distance(double latitude1, double longitude1, double latitude2,
+      double longitude2) {
+    double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+    double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+    double a = sinLatitude * sinLatitude
+        + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinLongitude
+        * sinLongitude;
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  /**
+   * Clusters the points that are on screen. A cluster cell that is partly on screen is returned
+   * with all of its points, so a cluster's count and position don't change as the map is panned.
+   *
+   * @param visible the bounds of the map on screen
+   * @param zoom    the zoom level of the camera, only the whole part is used
+   * @param cellDp  the size of a cluster cell on screen, in dp
+   * @return a cluster for every cell with points in it, a single point is a cluster of one
+   */
+  public List<Cluster> cluster(LatLngBounds visible, float zoom, float cellDp) {
+    int zoomLevel = Math.max(0, (int) zoom);
+    double cellSize = cellDp / (WORLD_SIZE_DP * Math.pow(2, zoomLevel));
+    double top = snapDown(projectY(visible.northeast.latitude), cellSize);
+    double bottom = snapUp(projectY(visible.southwest.latitude), cellSize);
+    double left = projectX(visible.southwest.longitude);
+    double right = projectX(visible.northeast.longitude);
+
+    Map<Long, Cluster> clusters = new HashMap<>();
+    if (left <= right) {
+      collect(snapDown(left, cellSize), snapUp(right, cellSize), top, bottom, zoomLevel,
+          cellSize, clusters);
+    } else {
+      // the screen crosses the antimeridian
+      collect(snapDown(left, cellSize), 1, top, bottom, zoomLevel, cellSize, clusters);
+      collect(0, snapUp(right, cellSize), top, bottom, zoomLevel, cellSize, clusters);
+    }
+    List<Cluster> result = new ArrayList<>(clusters.size());
+    for (Cluster cluster : clusters.values()) {
+      result.add(cluster.finish());
+    }
+    return result;
+  }
+
+  private void collect(double left, double right, double top, double bottom, int zoomLevel,
+      double cellSize, Map<Long, Cluster> clusters) {
+    int firstColumn = gridCell(left);
+    int lastColumn = gridCell(right);
+    int firstRow = gridCell(top);
+    int lastRow = gridCell(bottom);
+    for (int gridRow = firstRow; gridRow <= lastRow; gridRow++) {
+      for (int gridColumn = firstColumn; gridColumn <= lastColumn; gridColumn++) {
+        int b = bucket(gridRow, gridColumn);
+        for (int i = bucketStart[b]; i < bucketStart[b + 1]; i++) {
+          int p = bucketPoints[i];
+          if (x[p] < left || x[p] >= right || y[p] < top || y[p] >= bottom) {
+            continue;
+          }
+          long cellX = (long) (x[p] / cellSize);
+          long cellY = (long) (y[p] / cellSize);
+          // unique across zoom levels, and negative so it never collides with a row index
+          long key = -1 - (((long) zoomLevel << 50) | (cellX << 25) | cellY);
+          Cluster cluster = clusters.get(key);
+          if (cluster == null) {
+            cluster = new Cluster(key);
+            clusters.put(key, cluster);
+          }
+          cluster.add(x[p], y[p], rows[p]);
+        }
+      }
+    }
+  }
+
+  private static double snapDown(double value, double cellSize) {
+    return Math.max(0, Math.floor(value / cellSize) * cellSize);
+  }
+
+  private static double snapUp(double value, double cellSize) {
+    return Math.min(1, (Math.floor(value / cellSize) + 1) * cellSize);
+  }
+
+  private static int gridCell(double projected) {
+    int cell = (int) (projected * GRID_SIZE);
+    return cell < 0 ? 0 : (cell >= GRID_SIZE ? GRID_SIZE - 1 : cell);
+  }
+
+  private static int wrapColumn(int column) {
+    return ((column % GRID_SIZE) + GRID_SIZE) % GRID_SIZE;
+  }
+
+  private static int bucket(int gridRow, int gridColumn) {
+    return (gridRow << GRID_BITS) | gridColumn;
+  }
+
+  private static double projectX(double longitude) {
+    return (longitude + 180) / 360;
+  }
+
+  private static double projectY(double latitude) {
+    double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+    double sin = Math.sin(Math.toRadians(clamped));
+    return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+  }
+
+  private static double unprojectLongitude(double projected) {
+    return projected * 360 - 180;
+  }
+
+  private static double unprojectLatitude(double projected) {
+    return 90 - Math.toDegrees(2 * Math.atan(Math.exp((projected - 0.5) * 2 * Math.PI)));
+  }
+
+  /**
+   * One or more points that are close together at the zoom level they were clustered at
+   */
+  public static final class Cluster {
+    private long key;
+    private int count = 0;
+    private int row = NO_ROW;
+    private LatLng position = null;
+    private double sumX = 0;
+    private double sumY = 0;
+
+    private Cluster(long key) {
+      this.key = key;
+    }
+
+    private void add(double pointX, double pointY, int pointRow) {
+      if (count == 0) {
+        row = pointRow;
+      }
+      count++;
+      sumX += pointX;
+      sumY += pointY;
+    }
+
+    private Cluster finish() {
+      if (count == 1) {
+        key = row;
+      }
+      position = new LatLng(unprojectLatitude(sumY / count), unprojectLongitude(sumX / count));
+      return this;
+    }
+
+    /**
+     * @return identifies the cluster across queries at the same zoom level. For a cluster of one
+     * it is the row index instead, so the same row always has the same key.
+     */
+    public long getKey() {
+      return key;
+    }
+
+    /**
+     * @return the number of rows in the cluster
+     */
+    public int getCount() {
+      return count;
+    }
+
+    /**
+     * @return the index of the first row in the cluster, the only one if the count is 1
+     */
+    public int getRow() {
+      return row;
+    }
+
+    /**
+     * @return where to put the marker, the row itself or the middle of the cluster's rows
+     */
+    public LatLng getPosition() {
+      return position;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The query the spreadsheet is populated with, with everything it needs to run read up front.
+ * It is built on the main thread by TableDisplayActivity from its intent and props, and after
+ * that it never looks at the activity again, so it can be run on any thread, even after the
+ * activity has gone away.
+ */
+public final class SpreadsheetQuery {
+
+  private static final String TAG = SpreadsheetQuery.class.getSimpleName();
+
+  /**
+   * The name of the column the row count is returned in
+   */
+  private static final String ROW_COUNT_COLUMN = "rowCount";
+
+  private final String appName;
+  private final String tableId;
+  private final OrderedColumns columns;
+  private final UserDbInterface dbInterface;
+  private final SQLQueryStruct sqlQueryStruct;
+  /**
+   * The user's sort order followed by a tie-break on a unique key, so that every row has exactly
+   * one place in the result and windows of it never overlap or skip rows
+   */
+  private final String[] orderByKeys;
+  private final String[] orderByDirections;
+
+  /**
+   * @param appName        the app name
+   * @param tableId        the table to query, it is put in the SQL as is, so it must have come
+   *                       from the intent rather than from a web page
+   * @param columns        the columns of the table
+   * @param dbInterface    the database
+   * @param sqlQueryStruct the where clause, group by and sort order, must not be changed
+   *                       afterwards
+   */
+  public SpreadsheetQuery(String appName, String tableId, OrderedColumns columns,
+      UserDbInterface dbInterface, SQLQueryStruct sqlQueryStruct) {
+    this.appName = appName;
+    this.tableId = tableId;
+    this.columns = columns;
+    this.dbInterface = dbInterface;
+    this.sqlQueryStruct = sqlQueryStruct;
+
+    List<String> keys = new ArrayList<>();
+    List<String> directions = new ArrayList<>();
+    String[] sortKeys = QueryUtil.convertStringToArray(sqlQueryStruct.orderByElementKey);
+    String[] sortDirections = QueryUtil.convertStringToArray(sqlQueryStruct.orderByDirection);
+    if (sortKeys != null) {
+      for (int i = 0; i < sortKeys.length; i++) {
+        keys.add(sortKeys[i]);
+        directions.add(sortDirections != null && i < sortDirections.length ? sortDirections[i]
+            : "ASC");
+      }
+    }
+    // grouped rows are unique on the group by columns, any other row is unique on its _id
+    List<String> tieBreak = sqlQueryStruct.groupBy != null && sqlQueryStruct.groupBy.length != 0
+        ? Arrays.asList(sqlQueryStruct.groupBy) : Arrays.asList(DataTableColumns.ID);
+    for (String key : tieBreak) {
+      if (!keys.contains(key)) {
+        keys.add(key);
+        directions.add("ASC");
+      }
+    }
+    this.orderByKeys = keys.toArray(new String[keys.size()]);
+    this.orderByDirections = directions.toArray(new String[directions.size()]);
+  }
+
+  /**
+   * @return the where clause, group by and sort order the query was built with
+   */
+  public SQLQueryStruct getSqlQueryStruct() {
+    return sqlQueryStruct;
+  }
+
+  /**
+   * Queries the rows of the table, or a window of them. Uses the shared
+   * {@link QueryResultCache} if the same window was already queried for the current data.
+   *
+   * @param limit  the maximum number of rows to return, or null for all of them
+   * @param offset the index of the first row to return, or null to start at the beginning
+   * @return the rows, or null if the database was unavailable
+   */
+  public UserTable getRows(Integer limit, Integer offset) {
+    // the same query may well have been run by another instance of the activity
+    QueryResultCache cache = Tables.getInstance().getQueryCache();
+    int dataVersion = cache.getDataVersion(appName, tableId);
+    UserTable cached = cache.getTable(appName, tableId, sqlQueryStruct, limit, offset);
+    if (cached != null) {
+      return cached;
+    }
+    String[] emptyArray = {};
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+
+      UserTable table = dbInterface
+          .simpleQuery(appName, db, tableId, columns, sqlQueryStruct.whereClause,
+              sqlQueryStruct.selectionArgs,
+              sqlQueryStruct.groupBy == null ? emptyArray : sqlQueryStruct.groupBy,
+              sqlQueryStruct.having,
+              orderByKeys, orderByDirections, limit, offset);
+      if (table != null) {
+        cache.putTable(appName, tableId, sqlQueryStruct, limit, offset, dataVersion, table);
+      }
+      return table;
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return null;
+    } finally {
+      close(db);
+    }
+  }
+
+  /**
+   * Counts the rows that {@link #getRows(Integer, Integer)} would return, without fetching any
+   * of them
+   *
+   * @return the number of rows, or 0 if the database was unavailable
+   */
+  public int getRowCount() {
+    QueryResultCache cache = Tables.getInstance().getQueryCache();
+    int dataVersion = cache.getDataVersion(appName, tableId);
+    Integer cached = cache.getRowCount(appName, tableId, sqlQueryStruct);
+    if (cached != null) {
+      return cached;
+    }
+    BaseTable result = arbitraryQuery(
+        "SELECT COUNT(*) AS " + ROW_COUNT_COLUMN + " FROM (" + getSql() + ")",
+        sqlQueryStruct.selectionArgs);
+    if (result == null || result.getNumberOfRows() == 0) {
+      return 0;
+    }
+    String count = result.getRowAtIndex(0).getRawStringByKey(ROW_COUNT_COLUMN);
+    int rowCount = count == null ? 0 : Integer.parseInt(count);
+    cache.putRowCount(appName, tableId, sqlQueryStruct, dataVersion, rowCount);
+    return rowCount;
+  }
+
+  /**
+   * Builds the SQL for the rows, in the same order as {@link #getRows(Integer, Integer)}, to be
+   * used as a subquery
+   *
+   * @return a select statement, its bind args are the selection args of the query
+   */
+  public String getSql() {
+    StringBuilder sql = new StringBuilder();
+    sql.append("SELECT * FROM ").append(tableId);
+    if (sqlQueryStruct.whereClause != null && !sqlQueryStruct.whereClause.isEmpty()) {
+      sql.append(" WHERE ").append(sqlQueryStruct.whereClause);
+    }
+    if (sqlQueryStruct.groupBy != null && sqlQueryStruct.groupBy.length != 0) {
+      sql.append(" GROUP BY ");
+      for (int i = 0; i < sqlQueryStruct.groupBy.length; i++) {
+        if (i != 0) {
+          sql.append(", ");
+        }
+        sql.append(sqlQueryStruct.groupBy[i]);
+      }
+      if (sqlQueryStruct.having != null && !sqlQueryStruct.having.isEmpty()) {
+        sql.append(" HAVING ").append(sqlQueryStruct.having);
+      }
+    }
+    sql.append(getOrderBySql());
+    return sql.toString();
+  }
+
+  /**
+   * Builds the ORDER BY clause {@link #getRows(Integer, Integer)} pages with, for queries that
+   * filter {@link #getSql()} and need their rows in the same order
+   *
+   * @return the clause, starting with a space
+   */
+  public String getOrderBySql() {
+    StringBuilder sql = new StringBuilder(" ORDER BY ");
+    for (int i = 0; i < orderByKeys.length; i++) {
+      if (i != 0) {
+        sql.append(", ");
+      }
+      sql.append(orderByKeys[i]).append(' ').append(orderByDirections[i]);
+    }
+    return sql.toString();
+  }
+
+  /**
+   * Runs a query against the table, opening and closing the database around it
+   *
+   * @param sql      the query, usually wrapped around {@link #getSql()}
+   * @param bindArgs the values of the ?s in the query
+   * @return the result, or null if the database was unavailable
+   */
+  public BaseTable arbitraryQuery(String sql, BindArgs bindArgs) {
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+      return dbInterface.arbitrarySqlQuery(appName, db, tableId, sql, bindArgs, null, null);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return null;
+    } finally {
+      close(db);
+    }
+  }
+
+  private void close(DbHandle db) {
+    if (db == null) {
+      return;
+    }
+    try {
+      dbInterface.closeDatabase(appName, db);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).e(TAG, "unable to close the database");
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.tables.activities.AbsTableActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
+import org.opendatakit.tables.data.SpreadsheetQuery;
 
 /**
  * The base class for any {@link Fragment} that displays a table.
@@ -57,12 +58,13 @@ public abstract class AbsTableDisplayFragment extends AbsTablesFragment {
   }
 
   /**
-   * Get the {@link UserTable} being held by the {@link TableDisplayActivity}.
+   * Get the query behind the {@link UserTable}, to page its rows in without loading the whole
+   * table. Must be called on the main thread, the query it returns can be run on any thread.
    *
-   * @return the user table (data in the table) from the enclosing activity
+   * @return the enclosing activity's query for the current props
    */
-  public UserTable getUserTable() {
-    return ((TableDisplayActivity) getActivity()).getUserTable();
+  public SpreadsheetQuery getSpreadsheetQuery() {
+    return ((TableDisplayActivity) getActivity()).getSpreadsheetQuery();
   }
 
 }
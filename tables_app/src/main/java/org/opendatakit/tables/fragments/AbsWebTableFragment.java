@@ -41,7 +41,16 @@ public abstract class AbsWebTableFragment extends AbsTableDisplayFragment implem
       Bundle savedInstanceState) {
     WebLogger.getLogger(getAppName()).d(TAG, "[onCreateView]");
 
-    return inflater.inflate(R.layout.web_view_container, container, false);
+    ViewGroup newView = (ViewGroup) inflater.inflate(R.layout.web_view_container, container,
+        false);
+    ((IOdkTablesActivity) getActivity()).getWebViewPool().attach(newView);
+    return newView;
+  }
+
+  @Override
+  public void onDestroyView() {
+    ((IOdkTablesActivity) getActivity()).getWebViewPool().recycle(getWebKit());
+    super.onDestroyView();
   }
 
   public void onResume() {
@@ -253,6 +253,7 @@ public class ColorRuleListFragment extends ListFragment {
           mColorRuleGroup.getColorRules().remove(position);
           try {
             mColorRuleGroup.saveRuleList(Tables.getInstance().getDatabase());
+            Tables.getInstance().getColorRuleCache().invalidateTable(getAppName(), getTableId());
           } catch (ServicesAvailabilityException e) {
             WebLogger.getLogger(getAppName()).printStackTrace(e);
             WebLogger.getLogger(getAppName()).e(TAG, "Error while saving color rules");
@@ -302,6 +303,7 @@ public class ColorRuleListFragment extends ListFragment {
       this.mColorRuleAdapter.notifyDataSetChanged();
       break;
     }
+    Tables.getInstance().getColorRuleCache().invalidateTable(getAppName(), getTableId());
   }
 
   /**
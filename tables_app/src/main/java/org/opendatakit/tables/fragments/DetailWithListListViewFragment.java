@@ -22,6 +22,7 @@ import android.view.ViewGroup;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.utils.Constants;
+import org.opendatakit.tables.views.webkits.OdkTablesWebView;
 import org.opendatakit.views.ODKWebView;
 
 /**
@@ -49,4 +50,18 @@ public class DetailWithListListViewFragment extends AbsWebTableFragment {
     webView.setContainerFragmentID(Constants.FragmentTags.DETAIL_WITH_LIST_LIST);
     return newView;
   }
+
+  /**
+   * Tells the loaded list page that its query changed, keeping the page instead of reloading it
+   *
+   * @return whether there was a page to tell
+   */
+  public boolean signalViewQueryChanged() {
+    OdkTablesWebView webView = getWebKit();
+    if (webView == null) {
+      return false;
+    }
+    webView.signalViewQueryChanged();
+    return true;
+  }
 }
\ No newline at end of file
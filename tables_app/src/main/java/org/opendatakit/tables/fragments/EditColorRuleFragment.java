@@ -405,6 +405,7 @@ public class EditColorRuleFragment extends AbsTableLevelPreferenceFragment
       this.mColorRuleGroup.getColorRules().set(mRulePosition, newRule);
     }
     mColorRuleGroup.saveRuleList(Tables.getInstance().getDatabase());
+    Tables.getInstance().getColorRuleCache().invalidateTable(getAppName(), getTableId());
     updateStateOfSaveButton();
   }
 
@@ -26,6 +26,7 @@ import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.activities.AbsTableActivity;
 import org.opendatakit.tables.utils.ActivityUtil;
+import org.opendatakit.tables.utils.DistanceUtil;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.IOException;
@@ -49,6 +50,11 @@ public class LocationDialogFragment extends DialogFragment {
    * JSON stringify of Map<String,Object> for the elementKey -to- value map.
    */
   public static final String ELEMENT_KEY_TO_VALUE_MAP_KEY = "elementKeyToValueMapKey";
+  /**
+   * The key in the argument bundle for the distance in meters to the closest
+   * existing row, if there is one.
+   */
+  public static final String NEAREST_ROW_DISTANCE_KEY = "nearestRowDistanceKey";
 
   /**
    * There is no way to store a map in a bundle, so I had to store it as a list,
@@ -78,7 +84,12 @@ public class LocationDialogFragment extends DialogFragment {
     if (location != null) {
       // Use the Builder class for convenient dialog construction
       AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
-      builder.setMessage("Would you like to add a row at: " + location + "?")
+      String message = "Would you like to add a row at: " + location + "?";
+      if (bundle.containsKey(NEAREST_ROW_DISTANCE_KEY)) {
+        message += "\nThe closest existing row is " + DistanceUtil
+            .getFormatedDistance(bundle.getDouble(NEAREST_ROW_DISTANCE_KEY)) + " away.";
+      }
+      builder.setMessage(message)
           .setPositiveButton("Add", new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int id) {
               AbsTableActivity activity = (AbsTableActivity) getActivity();
@@ -24,6 +24,7 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.RowLocationIndex;
 import org.opendatakit.tables.providers.GeoProvider;
 import org.opendatakit.tables.utils.DistanceUtil;
 import org.opendatakit.tables.views.CompassView;
@@ -79,7 +80,15 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
   private CompassView mCompass;
   private CompassView mDestinationLocation;
 
+  /**
+   * Null until the activity has finished querying it
+   */
   private UserTable mTable;
+  /**
+   * The locations of the rows in mTable, null until it has been built
+   */
+  private RowLocationIndex mLocationIndex;
+  private Button mArriveButton;
   private ColumnDefinition mLatitudeColumn;
   private ColumnDefinition mLongitudeColumn;
 
@@ -125,8 +134,8 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
     mDistanceTextView.setText(getActivity().getString(R.string.distance,
         "-"));
 
-    Button arriveButton = activity .findViewById(R.id.navigate_arrive_button);
-    arriveButton.setOnClickListener(new View.OnClickListener() {
+    mArriveButton = activity .findViewById(R.id.navigate_arrive_button);
+    mArriveButton.setOnClickListener(new View.OnClickListener() {
       public void onClick(View v) {
         arrive(v);
       }
@@ -138,28 +147,60 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
       }
     });
 
-    mTable = activity.getUserTable();
     OrderedColumns orderedDefns = activity.getColumnDefinitions();
 
     UserDbInterface dbInterface = Tables.getInstance().getDatabase();
 
+    DbHandle db = null;
     try {
-      DbHandle db = dbInterface.openDatabase(activity.getAppName());
+      db = dbInterface.openDatabase(activity.getAppName());
 
       mLatitudeColumn = orderedDefns.find(getLatitudeElementKey(db));
       mLongitudeColumn = orderedDefns.find(getLongitudeElementKey(db));
     } catch (ServicesAvailabilityException e) {
       WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
       WebLogger.getLogger(activity.getAppName()).e(TAG, "Unable to access database");
+    } finally {
+      if (db != null) {
+        try {
+          dbInterface.closeDatabase(activity.getAppName(), db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
+        }
+      }
     }
 
-    // Check for a passed in rowId to default to. Only use it if we haven't already restored a
-    // selected index
-    Bundle args = getArguments();
-    if (args != null && this.mSelectedItemIndex == INVALID_INDEX &&
-        args.containsKey(ROW_ID_KEY)) {
-      String rowId = args.getString(ROW_ID_KEY);
-      setIndexOfSelectedItem(mTable.getRowNumFromId(rowId));
+    // Show that the rows are still loading, there is nowhere to navigate to or arrive at yet
+    mDistanceTextView.setText(getActivity().getString(R.string.distance,
+        getActivity().getString(R.string.please_wait)));
+    mArriveButton.setEnabled(false);
+    if (mLatitudeColumn == null || mLongitudeColumn == null) {
+      WebLogger.getLogger(activity.getAppName()).e(TAG, "No latitude or longitude column");
+    } else {
+      // the locations are parsed once and shared with the map
+      activity.getLocationIndexAsync(mLatitudeColumn.getElementKey(),
+          mLongitudeColumn.getElementKey(), new TableDisplayActivity.LocationIndexListener() {
+            @Override
+            public void onLocationIndexLoaded(RowLocationIndex index) {
+              if (!isAdded() || index == null) {
+                return;
+              }
+              mLocationIndex = index;
+              mTable = index.getTable();
+              mArriveButton.setEnabled(true);
+
+              // Check for a passed in rowId to default to. Only use it if we haven't already
+              // restored a selected index
+              Bundle args = getArguments();
+              if (args != null && mSelectedItemIndex == INVALID_INDEX &&
+                  args.containsKey(ROW_ID_KEY)) {
+                String rowId = args.getString(ROW_ID_KEY);
+                setIndexOfSelectedItem(mTable.getRowNumFromId(rowId));
+              } else {
+                resetView();
+              }
+            }
+          });
     }
 
     if (mGeoProvider.isGpsProviderOn() == false
@@ -374,7 +415,12 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
       return;
     }
 
-    if (mSelectedItemIndex == INVALID_INDEX) {
+    if (mTable == null) {
+      // still loading, this is called again once it arrives
+      return;
+    }
+
+    if (mSelectedItemIndex == INVALID_INDEX || !mLocationIndex.hasLocation(mSelectedItemIndex)) {
       mGeoProvider.clearDestinationLocation();
       mDistanceTextView.setText(getActivity().getString(
           R.string.distance, "-"));
@@ -385,13 +431,9 @@ public class NavigateFragment extends Fragment implements IMapListViewCallbacks,
       mDestinationLocation.setVisibility(View.VISIBLE);
     }
 
-    TypedRow selectedRow = mTable.getRowAtIndex(mSelectedItemIndex);
-    String lat = selectedRow.getStringValueByKey(mLatitudeColumn.getElementKey());
-    String lon = selectedRow.getStringValueByKey(mLongitudeColumn.getElementKey());
-
     Location destination = new Location(TAG);
-    destination.setLatitude(Double.parseDouble(lat));
-    destination.setLongitude(Double.parseDouble(lon));
+    destination.setLatitude(mLocationIndex.getLatitude(mSelectedItemIndex));
+    destination.setLongitude(mLocationIndex.getLongitude(mSelectedItemIndex));
 
     mGeoProvider.setDestinationLocation(destination);
     if (mGeoProvider.getCurrentLocation() != null) {
@@ -57,6 +57,7 @@ import org.opendatakit.tables.views.SpreadsheetView;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * Fragment responsible for displaying a spreadsheet view. This class is a hideous monstrosity
@@ -189,6 +190,35 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
     }
   }
 
+  /**
+   * Drops the rows and display text cached by the spreadsheet, called when the underlying data
+   * has changed and everything has to be queried again
+   */
+  public void invalidateCachedData() {
+    if (spreadsheetTable != null) {
+      spreadsheetTable.invalidateCachedData();
+    }
+  }
+
+  /**
+   * Re-queries only the rows that were edited and redraws the spreadsheet, without recreating
+   * it. Called by the activity when a row comes back from Survey.
+   *
+   * @param rowIds the _ids of the rows that changed
+   * @return false if the rows couldn't be refreshed in place and the fragment has to be recreated
+   */
+  public boolean refreshRows(Collection<String> rowIds) {
+    if (spreadsheetTable == null || !spreadsheetTable.refreshRows(rowIds)) {
+      return false;
+    }
+    for (int i = 0; i < theView.getChildCount(); i++) {
+      if (theView.getChildAt(i) instanceof SpreadsheetView) {
+        ((SpreadsheetView) theView.getChildAt(i)).redrawData();
+      }
+    }
+    return true;
+  }
+
   /**
    * Does nothing when the database goes away
    */
@@ -336,6 +366,7 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment
       Tables.getInstance().getDatabase()
           .deleteRowWithId(getAppName(), db, getTableId(), getColumnDefinitions(), rowId);
     } finally {
+      Tables.getInstance().getQueryCache().invalidateTable(getAppName(), getTableId());
       if (db != null) {
         Tables.getInstance().getDatabase().closeDatabase(getAppName(), db);
       }
@@ -16,35 +16,41 @@
 package org.opendatakit.tables.fragments;
 
 import android.Manifest;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.view.ViewCompat;
+import android.view.Gravity;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ProgressBar;
 import android.widget.Toast;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.GoogleMap.OnCameraIdleListener;
 import com.google.android.gms.maps.GoogleMap.OnMapClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMapLongClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerClickListener;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.OnMapReadyCallback;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
-import org.opendatakit.activities.IAppAwareActivity;
-import org.opendatakit.data.ColorGuide;
-import org.opendatakit.data.ColorGuideGroup;
 import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.LocalKeyValueStoreConstants;
 import org.opendatakit.database.data.*;
-import org.opendatakit.database.queries.ArbitraryQuery;
-import org.opendatakit.database.queries.ResumableQuery;
-import org.opendatakit.database.queries.SimpleQuery;
-import org.opendatakit.database.queries.SingleRowQuery;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.exception.ServicesAvailabilityException;
@@ -53,11 +59,15 @@ import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.AbsBaseActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.application.Tables;
-import org.opendatakit.tables.utils.Constants;
+import org.opendatakit.tables.data.ColorRuleEvaluator;
+import org.opendatakit.tables.data.ColumnStore;
+import org.opendatakit.tables.data.RowColors;
+import org.opendatakit.tables.data.RowLocationIndex;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.utilities.RuntimePermissionUtils;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -104,6 +114,23 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    * Minimum distance from a marker to the edge of the screen when setting up the initial camera position
    */
   private static final int PADDING = 50;
+  /**
+   * The size on screen of the grid cells markers are clustered in, in dp
+   */
+  private static final float CLUSTER_CELL_DP = 64;
+  /**
+   * The diameter of a cluster marker, in dp
+   */
+  private static final float CLUSTER_ICON_DP = 40;
+  /**
+   * Counts above this are shown rounded down to one of these, so there are only a few icons
+   */
+  private static final int[] CLUSTER_ICON_BUCKETS = { 10, 20, 50, 100, 200, 500, 1000 };
+  /**
+   * How long to spend adding markers in one frame, the rest are added in the
+   * next frames so the map stays responsive
+   */
+  private static final long MARKER_BATCH_NANOS = 8000000L;
 
   private static final float initCameraValue = -1;
   /**
@@ -115,14 +142,67 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
   private double savedLongitude = initCameraValue;
   private float savedZoom = initCameraValue;
   /**
-   * A mapping of all markers to index to determine which marker is selected.
+   * Every marker on the map, by the key of its cluster. The tag of a marker is
+   * the index of its row, or the {@link RowLocationIndex.Cluster} if it stands
+   * for more than one row.
+   */
+  private LongSparseArray<Marker> mVisibleMarkers = new LongSparseArray<>();
+  /**
+   * Always empty, swapped with mVisibleMarkers when the markers are updated
+   */
+  private LongSparseArray<Marker> mSpareMarkers = new LongSparseArray<>();
+  /**
+   * The icons of cluster markers, by the label on them
+   */
+  private Map<String, BitmapDescriptor> mClusterIcons = new HashMap<>();
+  /**
+   * The locations of every row, or null until they have been indexed
+   */
+  private RowLocationIndex mLocationIndex = null;
+  /**
+   * Waiting on the activity for the current index, anything else it's told about is stale
+   */
+  private TableDisplayActivity.LocationIndexListener mLocationIndexListener = null;
+  /**
+   * Whichever of the background stages before the index is running, see
+   * {@link #clearAndInitializeMap()}
+   */
+  private AsyncTask<Void, Void, ?> mPrepareTask = null;
+  private ClusterTask mClusterTask = null;
+  /**
+   * The markers that are on screen but haven't been added yet, and how many of
+   * them have been added so far
+   */
+  private List<RowLocationIndex.Cluster> mPendingClusters = null;
+  private int mPendingAdded = 0;
+  private final Runnable mAddMarkerBatch = new Runnable() {
+    @Override
+    public void run() {
+      addMarkerBatch();
+    }
+  };
+  /**
+   * Shown across the top of the map while the markers are loading
+   */
+  private ProgressBar mProgressBar = null;
+  /**
+   * Set when the camera was restored from the saved instance, so it isn't moved to fit the
+   * markers once they are loaded
    */
-  private Map<Marker, Integer> mMarkerIds = null;
+  private boolean mKeepCamera = false;
   /**
    * The currently selected marker.
    */
   private Marker mCurrentMarker = null;
-  private ColorGuideGroup mColorGuideGroup = null;
+  /**
+   * The color rules for the markers, or null if they aren't colored
+   */
+  private ColorRuleGroup mColorRuleGroup = null;
+  /**
+   * The hue of every row's marker from the color rules, worked out once when
+   * the rules are applied. Null until then, or if the markers aren't colored.
+   */
+  private float[] mRowHues = null;
   /**
    * the latitide elementKey to use for plotting
    */
@@ -132,9 +212,9 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    */
   private String mLongitudeElementKey = null;
   /**
-   * This value is only set after the activity was saved and then reinstated. It
-   * is used to figure out which marker was selected before the activity was
-   * previously destroyed. It will be set to -1 if no index was selected.
+   * The index of the row of the selected marker, or -1 if no marker is
+   * selected. It is kept while the marker is off screen, and restored after the
+   * activity was saved and then reinstated.
    */
   private int mCurrentIndex = 0;
 
@@ -164,10 +244,7 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     super.onSaveInstanceState(outState);
     AbsBaseActivity activity = (AbsBaseActivity) getActivity();
     WebLogger.getLogger(activity.getAppName()).d(TAG, "[onSaveInstanceState]");
-    int markerIndexToSave = INVALID_INDEX;
-    if (mCurrentMarker != null) {
-      markerIndexToSave = mMarkerIds.get(mCurrentMarker);
-    }
+    int markerIndexToSave = mCurrentIndex;
     WebLogger.getLogger(activity.getAppName())
         .d(TAG, "[onSaveInstanceState] saving markder index: " + markerIndexToSave);
     outState.putInt(SAVE_KEY_INDEX, markerIndexToSave);
@@ -180,6 +257,21 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     }
   }
 
+  @Override
+  public View onCreateView(LayoutInflater inflater, ViewGroup container,
+      Bundle savedInstanceState) {
+    View mapView = super.onCreateView(inflater, container, savedInstanceState);
+    // put a progress bar over the map for while the markers are added
+    FrameLayout frame = new FrameLayout(getActivity());
+    frame.addView(mapView);
+    mProgressBar = new ProgressBar(getActivity(), null,
+        android.R.attr.progressBarStyleHorizontal);
+    mProgressBar.setVisibility(View.GONE);
+    frame.addView(mProgressBar, new FrameLayout.LayoutParams(
+        ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.TOP));
+    return frame;
+  }
+
   @Override
   public void onViewCreated(View view, Bundle savedInstanceState) {
     super.onViewCreated(view, savedInstanceState);
@@ -207,10 +299,18 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
               && savedZoom != initCameraValue) {
         this.map.moveCamera(
                 CameraUpdateFactory.newLatLngZoom(new LatLng(savedLatitude, savedLongitude), savedZoom));
+        mKeepCamera = true;
       }
 
       this.map.setOnMapLongClickListener(getOnMapLongClickListener());
       this.map.setOnMapClickListener(getOnMapClickListener());
+      this.map.setOnMarkerClickListener(getOnMarkerClickListener());
+      this.map.setOnCameraIdleListener(new OnCameraIdleListener() {
+        @Override
+        public void onCameraIdle() {
+          updateVisibleMarkers();
+        }
+      });
 
       String[] permissions = new String[] {
               Manifest.permission.ACCESS_FINE_LOCATION,
@@ -228,7 +328,10 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
   }
 
   /**
-   * Re-initializes the map, including the markers.
+   * Re-initializes the map, including the markers. Nothing slow is done on the
+   * main thread: the columns and color rules are read from the database, the
+   * rows are queried and indexed, and their color rules are applied all in the
+   * background, and then the markers on screen are added a few at a time.
    **/
   public void clearAndInitializeMap() {
     AbsBaseActivity activity = (AbsBaseActivity) getActivity();
@@ -236,13 +339,10 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     if (map != null) {
       map.clear();
     }
-    try {
-      resetColorProperties();
-      setMarkers();
-    } catch (ServicesAvailabilityException e) {
-      WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-      WebLogger.getLogger(activity.getAppName()).e(TAG, "Unable to access database");
-    }
+    clearMarkers();
+    showProgress(0, 0);
+    mPrepareTask = new ColorPropertiesTask();
+    mPrepareTask.execute();
   }
 
   @Override
@@ -252,39 +352,56 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     WebLogger.getLogger(activity.getAppName()).d(TAG, "[onDestroy]");
     // Clear up any memory references. When destroyed, there cannot be any
     // references to the markers, otherwise leaks will happen.
-    if (map != null) {
-      mMarkerIds.clear();
-      mCurrentMarker = null;
-      map = null;
-    }
+    clearMarkers();
+    mClusterIcons.clear();
+    mProgressBar = null;
+    map = null;
   }
 
   /**
-   * Sets up the color properties used for color rules.
-   *
-   * @throws ServicesAvailabilityException if the database is down
+   * Forgets every marker and the index they were placed from, and stops
+   * anything still working on them. The markers must already be off the map.
    */
-  public void resetColorProperties() throws ServicesAvailabilityException {
-    findColorGroupAndDbConfiguration();
+  private void clearMarkers() {
+    if (mPrepareTask != null) {
+      mPrepareTask.cancel(false);
+      mPrepareTask = null;
+    }
+    mLocationIndexListener = null;
+    if (mClusterTask != null) {
+      mClusterTask.cancel(false);
+      mClusterTask = null;
+    }
+    cancelMarkerBatches();
+    mLocationIndex = null;
+    mRowHues = null;
+    mVisibleMarkers.clear();
+    mCurrentMarker = null;
+    hideProgress();
   }
 
   /**
-   * Finds the color group that will be needed when making color rules.
+   * Finds the location columns and the color group that will be needed when
+   * making color rules. Safe to call from a background thread, it doesn't touch
+   * the fragment.
    *
+   * @param activity the activity the fragment is in, getActivity() can't be
+   *                 used off the main thread
+   * @return what was found, to be set on the fragment on the main thread
    * @throws ServicesAvailabilityException if the database is down
    */
-  private void findColorGroupAndDbConfiguration() throws ServicesAvailabilityException {
+  private static MapProperties findColorGroupAndDbConfiguration(TableDisplayActivity activity)
+      throws ServicesAvailabilityException {
     // Grab the color group
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-
     UserDbInterface dbInterface = Tables.getInstance().getDatabase();
     DbHandle db = null;
     try {
       db = dbInterface.openDatabase(activity.getAppName());
 
+      MapProperties properties = new MapProperties();
       // get the elementKey for the latitude and longitude columns
-      mLatitudeElementKey = getLatitudeElementKey(db);
-      mLongitudeElementKey = getLongitudeElementKey(db);
+      properties.latitudeElementKey = getLatitudeElementKey(activity, db);
+      properties.longitudeElementKey = getLongitudeElementKey(activity, db);
 
       String[] adminColumns = dbInterface.getAdminColumns();
 
@@ -298,20 +415,18 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    */
       ColorRuleGroup mColorGroup = null;
       if (colorRuleInfo.colorType != null && colorRuleInfo.colorType.equals(LocalKeyValueStoreConstants.Map.COLOR_TYPE_TABLE)) {
-        mColorGroup = ColorRuleGroup
+        mColorGroup = Tables.getInstance().getColorRuleCache()
             .getTableColorRuleGroup(dbInterface, activity.getAppName(), db, activity.getTableId(),
                 adminColumns);
       }
       if (colorRuleInfo.colorType != null && colorRuleInfo.colorType.equals(LocalKeyValueStoreConstants.Map.COLOR_TYPE_STATUS)) {
-        mColorGroup = ColorRuleGroup
+        mColorGroup = Tables.getInstance().getColorRuleCache()
             .getStatusColumnRuleGroup(dbInterface, activity.getAppName(), db, activity.getTableId(),
                 adminColumns);
       }
 
-      if (mColorGroup != null) {
-        UserTable userTableForColor = activity.getUserTable();
-        mColorGuideGroup = new ColorGuideGroup(mColorGroup, userTableForColor);
-      }
+      properties.colorRuleGroup = mColorGroup;
+      return properties;
     } finally {
       if (db != null) {
         dbInterface.closeDatabase(activity.getAppName(), db);
@@ -321,16 +436,12 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
 
   /**
    * Sets the location markers based off of the columns set in the table
-   * properties.
+   * properties. The locations are indexed in the background, and then only the
+   * markers on screen are added to the map, see {@link #updateVisibleMarkers()}.
+   * The rows are the ones of the view's query, shared with the navigate view.
    */
   private void setMarkers() {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-
-    if (mMarkerIds != null) {
-      mMarkerIds.clear();
-    }
-
-    mMarkerIds = new HashMap<>();
+    clearMarkers();
 
     if (mLatitudeElementKey == null || mLongitudeElementKey == null) {
       Toast.makeText(getActivity(), getActivity().getString(R.string.lat_long_not_set),
@@ -338,85 +449,229 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
       return;
     }
 
-    OrderedColumns orderedDefns = activity.getColumnDefinitions();
-    ResumableQuery resumableQuery = activity.getViewQuery(Constants.FragmentTags.MAP_INNER_MAP);
+    if (map != null) {
+      showProgress(0, 0);
+      mLocationIndexListener = new TableDisplayActivity.LocationIndexListener() {
+        @Override
+        public void onLocationIndexLoaded(RowLocationIndex index) {
+          if (mLocationIndexListener != this || map == null || !isAdded()) {
+            return;
+          }
+          mLocationIndexListener = null;
+          if (index == null) {
+            hideProgress();
+            return;
+          }
+          mPrepareTask = new ColorGuideTask(index);
+          mPrepareTask.execute();
+        }
+      };
+      ((TableDisplayActivity) getActivity())
+          .getLocationIndexAsync(mLatitudeElementKey, mLongitudeElementKey,
+              mLocationIndexListener);
+    }
+  }
 
-    UserTable table;
-    try {
-      if (resumableQuery instanceof ArbitraryQuery) {
-        ArbitraryQuery query = (ArbitraryQuery) resumableQuery;
-        table = Tables.getInstance().getDatabase().arbitrarySqlQuery(activity.getAppName(),
-            Tables.getInstance().getDatabase().openDatabase(activity.getAppName()),
-            query.getTableId(), orderedDefns, query.getSqlCommand(), query.getSqlBindArgs(), -1, 0);
-      } else if (resumableQuery instanceof SimpleQuery || resumableQuery instanceof SingleRowQuery) {
-        SimpleQuery query = (SimpleQuery) resumableQuery;
-        table = Tables.getInstance().getDatabase().simpleQuery(activity.getAppName(),
-            Tables.getInstance().getDatabase().openDatabase(activity.getAppName()),
-            query.getTableId(), orderedDefns, query.getWhereClause(), query.getSqlBindArgs(),
-            query.getGroupByArgs(), query.getHavingClause(), query.getOrderByColNames(),
-            query.getOrderByDirections(), -1, 0);
-      } else {
-        String appName = ((IAppAwareActivity) getActivity()).getAppName();
-        WebLogger.getLogger(appName).e(TAG, "invalid query type");
-        return;
-      }
-    } catch (ServicesAvailabilityException sae) {
-      String appName = ((IAppAwareActivity) getActivity()).getAppName();
-      WebLogger.getLogger(appName).e(TAG, "simpleQuery failed");
-      WebLogger.getLogger(appName).printStackTrace(sae);
+  /**
+   * Called on the main thread once the locations of the rows have been indexed.
+   * Moves the camera to show all of them, unless it was restored from the saved
+   * instance, and adds the markers that are on screen.
+   *
+   * @param index the locations of the rows
+   */
+  private void onIndexBuilt(RowLocationIndex index) {
+    mLocationIndex = index;
+    AbsBaseActivity activity = (AbsBaseActivity) getActivity();
+    WebLogger.getLogger(activity.getAppName())
+        .d(TAG, "[onIndexBuilt] rows with a location: " + index.size());
+
+    LatLngBounds bounds = index.getBounds();
+    if (mKeepCamera || bounds == null) {
+      mKeepCamera = false;
+    } else if (index.size() > 1) {
+      map.moveCamera(CameraUpdateFactory.newLatLngBounds(bounds, PADDING));
+    } else {
+      map.moveCamera(CameraUpdateFactory.newLatLngZoom(bounds.northeast, 12f));
+    }
+    updateVisibleMarkers();
+  }
+
+  /**
+   * Works out which markers and clusters are on screen at the current zoom
+   * level, in the background, and then updates the map to show just those.
+   */
+  private void updateVisibleMarkers() {
+    if (map == null || mLocationIndex == null) {
       return;
     }
+    if (mClusterTask != null) {
+      mClusterTask.cancel(false);
+    }
+    mClusterTask = new ClusterTask(mLocationIndex,
+        map.getProjection().getVisibleRegion().latLngBounds, map.getCameraPosition().zoom);
+    mClusterTask.execute();
+  }
 
-    if (table != null && orderedDefns != null) {
-      // Try to find the map columns in the store.
-      ColumnDefinition latitudeColumn = orderedDefns.find(mLatitudeElementKey);
-      ColumnDefinition longitudeColumn = orderedDefns.find(mLongitudeElementKey);
-
-      // Find the locations from entries in the table.
-      LatLngBounds.Builder builder = new LatLngBounds.Builder();
-      int markers = 0;
-      LatLng onlyLocation = null;
-
-      // Go through each row and create a marker at the specified location.
-      for (int i = 0; i < table.getNumberOfRows(); i++) {
-        TypedRow row = table.getRowAtIndex(i);
-        String latitudeString = row.getStringValueByKey(latitudeColumn.getElementKey());
-        String longitudeString = row.getStringValueByKey(longitudeColumn.getElementKey());
-        if (latitudeString == null || longitudeString == null || latitudeString.isEmpty()
-                || longitudeString.isEmpty()) {
-          continue;
-        }
+  /**
+   * Updates the markers on the map to the clusters that are on screen. Markers
+   * that are still on screen are left alone, so after a small pan only the
+   * markers at the edges change. Markers that are off screen are removed
+   * straight away, new ones are added over the next few frames.
+   *
+   * @param clusters the clusters on screen
+   */
+  private void showClusters(List<RowLocationIndex.Cluster> clusters) {
+    cancelMarkerBatches();
+    LongSparseArray<Marker> previous = mVisibleMarkers;
+    mVisibleMarkers = mSpareMarkers;
+    for (RowLocationIndex.Cluster cluster : clusters) {
+      Marker marker = previous.get(cluster.getKey());
+      if (marker != null) {
+        previous.remove(cluster.getKey());
+        mVisibleMarkers.put(cluster.getKey(), marker);
+      }
+    }
 
-        // Create a LatLng from the latitude and longitude strings.
-        LatLng location = parseLocationFromString(latitudeString, longitudeString);
-        if (location == null) {
-          continue;
-        }
-        markers++;
-        builder.include(location);
-        onlyLocation = location;
-
-        if (map != null) {
-          Marker marker = map.addMarker(new MarkerOptions().position(location).draggable(false)
-                  .icon(BitmapDescriptorFactory.defaultMarker(getHueForRow(i))));
-          mMarkerIds.put(marker, i);
-          if (mCurrentIndex == i) {
-            WebLogger.getLogger(activity.getAppName())
-                    .d(TAG, "[setMarkers] selecting marker: " + i);
-            selectMarker(marker);
-          }
-        }
+    // whatever is left is off screen now
+    for (int i = 0; i < previous.size(); i++) {
+      Marker marker = previous.valueAt(i);
+      marker.remove();
+      if (marker.equals(mCurrentMarker)) {
+        // the row stays selected, its marker is selected again when it comes back
+        mCurrentMarker = null;
       }
+    }
+    previous.clear();
+    mSpareMarkers = previous;
+
+    mPendingClusters = clusters;
+    mPendingAdded = 0;
+    addMarkerBatch();
+  }
 
-      if (markers > 1) {
-        map.moveCamera(CameraUpdateFactory.newLatLngBounds(builder.build(), PADDING));
-      } else if (markers == 1) {
-        map.moveCamera(CameraUpdateFactory.newLatLngZoom(onlyLocation, 12f));
+  /**
+   * Adds pending markers until the frame's time is up, then schedules itself
+   * for the next frame if there are any left.
+   */
+  private void addMarkerBatch() {
+    if (map == null || mPendingClusters == null) {
+      return;
+    }
+    long deadline = System.nanoTime() + MARKER_BATCH_NANOS;
+    int total = mPendingClusters.size();
+    while (mPendingAdded < total && System.nanoTime() < deadline) {
+      RowLocationIndex.Cluster cluster = mPendingClusters.get(mPendingAdded);
+      if (mVisibleMarkers.get(cluster.getKey()) == null) {
+        mVisibleMarkers.put(cluster.getKey(), addMarker(cluster));
       }
-      map.setOnMarkerClickListener(getOnMarkerClickListener());
+      mPendingAdded++;
+    }
+    if (mPendingAdded < total && getView() != null) {
+      showProgress(mPendingAdded, total);
+      ViewCompat.postOnAnimation(getView(), mAddMarkerBatch);
+    } else {
+      mPendingClusters = null;
+      hideProgress();
+    }
+  }
+
+  private void cancelMarkerBatches() {
+    if (getView() != null) {
+      getView().removeCallbacks(mAddMarkerBatch);
+    }
+    mPendingClusters = null;
+  }
+
+  /**
+   * Shows the progress bar
+   *
+   * @param progress how many markers have been added
+   * @param max      how many there are to add, or 0 if that isn't known yet
+   */
+  private void showProgress(int progress, int max) {
+    if (mProgressBar == null) {
+      return;
+    }
+    mProgressBar.setIndeterminate(max == 0);
+    mProgressBar.setMax(max);
+    mProgressBar.setProgress(progress);
+    mProgressBar.setVisibility(View.VISIBLE);
+  }
+
+  private void hideProgress() {
+    if (mProgressBar != null) {
+      mProgressBar.setVisibility(View.GONE);
     }
   }
 
+  /**
+   * Adds the marker for a cluster to the map. A cluster of one row gets a
+   * normal marker in the row's color, a bigger cluster gets a circle with the
+   * number of rows in it.
+   *
+   * @param cluster the cluster to add
+   * @return the new marker
+   */
+  private Marker addMarker(RowLocationIndex.Cluster cluster) {
+    if (cluster.getCount() > 1) {
+      Marker marker = map.addMarker(new MarkerOptions().position(cluster.getPosition())
+          .draggable(false).anchor(0.5f, 0.5f).icon(getClusterIcon(cluster.getCount())));
+      marker.setTag(cluster);
+      return marker;
+    }
+
+    Marker marker = map.addMarker(new MarkerOptions().position(cluster.getPosition())
+        .draggable(false)
+        .icon(BitmapDescriptorFactory.defaultMarker(getHueForRow(cluster.getRow()))));
+    marker.setTag(cluster.getRow());
+    if (mCurrentIndex == cluster.getRow()) {
+      AbsBaseActivity activity = (AbsBaseActivity) getActivity();
+      WebLogger.getLogger(activity.getAppName())
+              .d(TAG, "[addMarker] selecting marker: " + cluster.getRow());
+      selectMarker(marker);
+    }
+    return marker;
+  }
+
+  /**
+   * Gets the icon for a cluster marker, drawing it the first time it's used
+   *
+   * @param count the number of rows in the cluster
+   * @return a circle with the count on it
+   */
+  private BitmapDescriptor getClusterIcon(int count) {
+    String label = Integer.toString(count);
+    for (int i = CLUSTER_ICON_BUCKETS.length - 1; i >= 0; i--) {
+      if (count >= CLUSTER_ICON_BUCKETS[i]) {
+        label = CLUSTER_ICON_BUCKETS[i] + "+";
+        break;
+      }
+    }
+    BitmapDescriptor icon = mClusterIcons.get(label);
+    if (icon != null) {
+      return icon;
+    }
+
+    float density = getResources().getDisplayMetrics().density;
+    int size = (int) (CLUSTER_ICON_DP * density);
+    Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    Canvas canvas = new Canvas(bitmap);
+    Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    paint.setColor(Color.WHITE);
+    canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+    paint.setColor(Color.HSVToColor(new float[] { DEFAULT_MARKER_HUE, 0.8f, 0.9f }));
+    canvas.drawCircle(size / 2f, size / 2f, size / 2f - 2 * density, paint);
+    paint.setColor(Color.WHITE);
+    paint.setTextAlign(Paint.Align.CENTER);
+    paint.setTextSize(14 * density);
+    paint.setFakeBoldText(true);
+    canvas.drawText(label, size / 2f, size / 2f - (paint.descent() + paint.ascent()) / 2, paint);
+
+    icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+    mClusterIcons.put(label, icon);
+    return icon;
+  }
+
   /**
    * Retrieves the hue of the specified row depending on the current color
    * rules.
@@ -426,73 +681,48 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    * marker color if no rules apply to the row.
    */
   private float getHueForRow(int index) {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-
-    UserTable table = activity.getUserTable();
-    // Create a guide depending on the color group.
-    if (table != null && mColorGuideGroup != null) {
-      ColorGuide guide = mColorGuideGroup.getColorGuideForRowIndex(index);
-      // Based on if the guide matched or not, grab the hue.
-      if (guide != null) {
-        float[] hsv = new float[3];
-        Color.colorToHSV(guide.getBackground(), hsv);
-        return hsv[0];
+    return mRowHues == null ? DEFAULT_MARKER_HUE : mRowHues[index];
+  }
+
+  /**
+   * Works out the hue of every row's marker. Safe to call from a background
+   * thread.
+   *
+   * @param rowColors the color rules evaluated against the rows
+   * @return the hue for each row, the default marker color where no rules apply
+   */
+  private static float[] getRowHues(RowColors rowColors) {
+    int numberOfRows = rowColors.getNumberOfRows();
+    float[] hues = new float[numberOfRows];
+    float[] hsv = new float[3];
+    for (int i = 0; i < numberOfRows; i++) {
+      // Based on if a rule matched or not, grab the hue.
+      if (rowColors.isMatched(i)) {
+        Color.colorToHSV(rowColors.getBackground(i), hsv);
+        hues[i] = hsv[0];
+      } else {
+        hues[i] = DEFAULT_MARKER_HUE;
       }
     }
-
-    return DEFAULT_MARKER_HUE;
+    return hues;
   }
 
-  private String getLatitudeElementKey(DbHandle dbHandle) throws ServicesAvailabilityException {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
-
+  private static String getLatitudeElementKey(TableDisplayActivity activity, DbHandle dbHandle)
+      throws ServicesAvailabilityException {
     OrderedColumns orderedDefns = activity.getColumnDefinitions();
     return TableUtil.get()
         .getMapListViewLatitudeElementKey(Tables.getInstance().getDatabase(),
             activity.getAppName(), dbHandle, activity.getTableId(), orderedDefns);
   }
 
-  private String getLongitudeElementKey(DbHandle dbHandle) throws ServicesAvailabilityException {
-    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+  private static String getLongitudeElementKey(TableDisplayActivity activity, DbHandle dbHandle)
+      throws ServicesAvailabilityException {
     OrderedColumns orderedDefns = activity.getColumnDefinitions();
     return TableUtil.get()
         .getMapListViewLongitudeElementKey(Tables.getInstance().getDatabase(),
             activity.getAppName(), dbHandle, activity.getTableId(), orderedDefns);
   }
 
-  /**
-   * Parses the location string and creates a LatLng. The format of the string
-   * should be: lat,lng
-   */
-  @SuppressWarnings("unused")
-  private LatLng parseLocationFromString(String location) {
-    String[] split = location.split(",");
-    try {
-      return new LatLng(Double.parseDouble(split[0]), Double.parseDouble(split[1]));
-    } catch (Exception e) {
-      String appName = ((IAppAwareActivity) getActivity()).getAppName();
-      WebLogger.getLogger(appName)
-          .e(TAG, "The following location is not in the proper lat,lng form: " + location);
-      WebLogger.getLogger(appName).printStackTrace(e);
-    }
-    return null;
-  }
-
-  /**
-   * Parses the latitude and longitude strings and creates a LatLng.
-   */
-  private LatLng parseLocationFromString(String latitude, String longitude) {
-    try {
-      return new LatLng(Double.parseDouble(latitude), Double.parseDouble(longitude));
-    } catch (Exception e) {
-      String appName = ((IAppAwareActivity) getActivity()).getAppName();
-      WebLogger.getLogger(appName)
-          .e(TAG, "The following location did not parse correctly: " + latitude + "," + longitude);
-      WebLogger.getLogger(appName).printStackTrace(e);
-    }
-    return null;
-  }
-
   /**
    * If a marker is selected, deselect it.
    */
@@ -536,6 +766,15 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
         b.putString(LocationDialogFragment.ELEMENT_KEY_TO_VALUE_MAP_KEY,
             jsonStringifyElementKeyToValueMap);
         b.putString(LocationDialogFragment.LOCATION_KEY, location.toString());
+        if (mLocationIndex != null) {
+          // let the user see if they are about to add a row on top of an existing one
+          int nearest = mLocationIndex.nearest(location.latitude, location.longitude);
+          if (nearest != RowLocationIndex.NO_ROW) {
+            b.putDouble(LocationDialogFragment.NEAREST_ROW_DISTANCE_KEY, RowLocationIndex
+                .distance(location.latitude, location.longitude,
+                    mLocationIndex.getLatitude(nearest), mLocationIndex.getLongitude(nearest)));
+          }
+        }
         LocationDialogFragment dialog = new LocationDialogFragment();
         dialog.setArguments(b);
         dialog.show(getFragmentManager(), "LocationDialogFragment");
@@ -551,16 +790,23 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
     return new OnMarkerClickListener() {
       @Override
       public boolean onMarkerClick(Marker clickedMarker) {
-        int index = mCurrentMarker == null ? INVALID_INDEX : mMarkerIds.get(mCurrentMarker);
+        if (clickedMarker.getTag() instanceof RowLocationIndex.Cluster) {
+          RowLocationIndex.Cluster cluster = (RowLocationIndex.Cluster) clickedMarker.getTag();
+          // zoom in on the cluster to split it up
+          map.animateCamera(CameraUpdateFactory
+              .newLatLngZoom(cluster.getPosition(), map.getCameraPosition().zoom + 2));
+          return true;
+        }
+        int index = mCurrentIndex;
         // Make the marker visible if it is either invisible or a
         // new marker.
         // Make the marker invisible if clicking on the already
         // selected marker.
-        if (index != mMarkerIds.get(clickedMarker)) {
+        int clickedIndex = (Integer) clickedMarker.getTag();
+        if (index != clickedIndex) {
           deselectCurrentMarker();
-          int newIndex = mMarkerIds.get(clickedMarker);
           selectMarker(clickedMarker);
-          listener.onSetSelectedItemIndex(newIndex);
+          listener.onSetSelectedItemIndex(clickedIndex);
         } else {
           deselectCurrentMarker();
         }
@@ -580,6 +826,7 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
       return;
     marker.setIcon(BitmapDescriptorFactory.defaultMarker(DEFAULT_SELECTED_MARKER_HUE));
     mCurrentMarker = marker;
+    mCurrentIndex = (Integer) marker.getTag();
   }
 
   /**
@@ -587,15 +834,126 @@ public class TableMapInnerFragment extends SupportMapFragment implements OnMapRe
    * changing the marker back to a default color.
    */
   private void deselectCurrentMarker() {
-    if (mCurrentMarker == null) {
+    if (mCurrentIndex == INVALID_INDEX) {
       return;
     }
-    int index = mMarkerIds.get(mCurrentMarker);
-    mCurrentMarker.setIcon(BitmapDescriptorFactory.defaultMarker(getHueForRow(index)));
+    if (mCurrentMarker != null) {
+      mCurrentMarker.setIcon(BitmapDescriptorFactory.defaultMarker(getHueForRow(mCurrentIndex)));
+    }
     mCurrentMarker = null;
+    mCurrentIndex = INVALID_INDEX;
     listener.setNoItemSelected();
   }
 
+  /**
+   * Reads the latitude and longitude columns and the color rules from the
+   * database off the main thread, then asks for the rows' locations
+   */
+  private final class ColorPropertiesTask extends AsyncTask<Void, Void, MapProperties> {
+    private final TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    private final String appName = activity.getAppName();
+
+    @Override
+    protected MapProperties doInBackground(Void... params) {
+      try {
+        return findColorGroupAndDbConfiguration(activity);
+      } catch (ServicesAvailabilityException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, "Unable to access database");
+        return null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(MapProperties properties) {
+      if (mPrepareTask != this || !isAdded()) {
+        return;
+      }
+      mPrepareTask = null;
+      if (properties == null) {
+        hideProgress();
+        return;
+      }
+      mLatitudeElementKey = properties.latitudeElementKey;
+      mLongitudeElementKey = properties.longitudeElementKey;
+      mColorRuleGroup = properties.colorRuleGroup;
+      setMarkers();
+    }
+  }
+
+  /**
+   * The location columns and color rules read by {@link ColorPropertiesTask}
+   */
+  private static final class MapProperties {
+    String latitudeElementKey = null;
+    String longitudeElementKey = null;
+    ColorRuleGroup colorRuleGroup = null;
+  }
+
+  /**
+   * Applies the color rules to the rows off the main thread, then shows the
+   * markers
+   */
+  private final class ColorGuideTask extends AsyncTask<Void, Void, float[]> {
+    private final RowLocationIndex index;
+    private final ColorRuleGroup colorRuleGroup = mColorRuleGroup;
+    private final OrderedColumns columns;
+
+    ColorGuideTask(RowLocationIndex index) {
+      this.index = index;
+      this.columns = ((TableDisplayActivity) getActivity()).getColumnDefinitions();
+    }
+
+    @Override
+    protected float[] doInBackground(Void... params) {
+      UserTable table = index.getTable();
+      if (colorRuleGroup == null || table == null || columns == null) {
+        return null;
+      }
+      ColumnStore store = new ColumnStore(table, ColumnStore.getDataTypes(columns));
+      return getRowHues(ColorRuleEvaluator.evaluate(colorRuleGroup, store, 0));
+    }
+
+    @Override
+    protected void onPostExecute(float[] rowHues) {
+      if (mPrepareTask != this || map == null || !isAdded()) {
+        return;
+      }
+      mPrepareTask = null;
+      mRowHues = rowHues;
+      onIndexBuilt(index);
+    }
+  }
+
+  /**
+   * Clusters the markers on screen off the main thread
+   */
+  private final class ClusterTask extends AsyncTask<Void, Void, List<RowLocationIndex.Cluster>> {
+    private final RowLocationIndex index;
+    private final LatLngBounds visible;
+    private final float zoom;
+
+    ClusterTask(RowLocationIndex index, LatLngBounds visible, float zoom) {
+      this.index = index;
+      this.visible = visible;
+      this.zoom = zoom;
+    }
+
+    @Override
+    protected List<RowLocationIndex.Cluster> doInBackground(Void... params) {
+      return index.cluster(visible, zoom, CLUSTER_CELL_DP);
+    }
+
+    @Override
+    protected void onPostExecute(List<RowLocationIndex.Cluster> clusters) {
+      if (mClusterTask != this || map == null || !isAdded()) {
+        return;
+      }
+      mClusterTask = null;
+      showClusters(clusters);
+    }
+  }
+
   /**
    * Interface for listening to different events that may be triggered by this
    * inner fragment.
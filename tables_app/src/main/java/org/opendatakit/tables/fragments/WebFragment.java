@@ -22,6 +22,7 @@ import android.view.ViewGroup;
 import android.webkit.WebView;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.activities.IOdkTablesActivity;
 import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.views.webkits.OdkTablesWebView;
 
@@ -43,7 +44,16 @@ public class WebFragment extends AbsTablesFragment implements IWebFragment {
     WebLogger.getLogger(getAppName())
         .d(TAG, "[onCreateView] activity is: " + getActivity().getClass().getSimpleName());
 
-    return inflater.inflate(R.layout.web_view_container, container, false);
+    ViewGroup newView = (ViewGroup) inflater.inflate(R.layout.web_view_container, container,
+        false);
+    ((IOdkTablesActivity) getActivity()).getWebViewPool().attach(newView);
+    return newView;
+  }
+
+  @Override
+  public void onDestroyView() {
+    ((IOdkTablesActivity) getActivity()).getWebViewPool().recycle(getWebKit());
+    super.onDestroyView();
   }
 
   @Override
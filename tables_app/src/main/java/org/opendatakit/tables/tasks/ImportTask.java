@@ -117,6 +117,10 @@ public class ImportTask extends AsyncTask<ImportRequest, Integer, Boolean>
    * message, or one of the three failure messages.
    */
   protected void onPostExecute(Boolean result) {
+    // even a failed import may have written some rows
+    Tables.getInstance().getQueryCache().invalidateApp(appName);
+    // and a table definition import may have brought new color rules
+    Tables.getInstance().getColorRuleCache().invalidateApp(appName);
     ImportExportDialogFragment.activeDialogFragment.dismiss();
     if (result) {
       ImportExportDialogFragment
@@ -17,6 +17,8 @@ package org.opendatakit.tables.utils;
 
 import org.opendatakit.database.queries.BindArgs;
 
+import java.util.Locale;
+
 /**
  * Basic holder for the components of a SQL query.
  *
@@ -69,4 +71,39 @@ public class SQLQueryStruct {
     this.orderByDirection = orderByDirection;
   }
 
+  /**
+   * Builds a string that is the same for any two structs that would run the same query, for use
+   * as a cache key. Null and empty clauses are treated the same, bind args are compared by type
+   * and value, and the sort direction is ignored when there is no sort column.
+   *
+   * @return a canonical form of the query
+   */
+  public String getCanonicalString() {
+    StringBuilder b = new StringBuilder();
+    b.append("where=").append(normalize(whereClause));
+    b.append("\u0001args=");
+    if (selectionArgs != null && selectionArgs.bindArgs != null) {
+      for (Object arg : selectionArgs.bindArgs) {
+        b.append(arg == null ? "null" : arg.getClass().getSimpleName()).append(':')
+            .append(arg).append('\u0002');
+      }
+    }
+    b.append("\u0001groupBy=");
+    if (groupBy != null) {
+      for (String column : groupBy) {
+        b.append(column).append('\u0002');
+      }
+    }
+    b.append("\u0001having=").append(normalize(having));
+    String sort = normalize(orderByElementKey);
+    b.append("\u0001orderBy=").append(sort);
+    if (!sort.isEmpty()) {
+      b.append(' ').append(normalize(orderByDirection).toUpperCase(Locale.US));
+    }
+    return b.toString();
+  }
+
+  private static String normalize(String clause) {
+    return clause == null ? "" : clause.trim();
+  }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.graphics.Paint;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.UserTable;
+
+/**
+ * The display text of every cell in one page of a {@link SpreadsheetUserTable}, along with how
+ * wide each string is when drawn. A column is formatted and measured the first time any of its
+ * cells in the page is asked for, after that getting a cell's text is just an array read.
+ * <p>
+ * Columns are indexed by their position in the spreadsheet (the column order), rows by their
+ * position in the page.
+ */
+final class SpreadsheetDisplayCache {
+
+  /**
+   * Returned as the width of a cell that has no text or that couldn't be measured
+   */
+  static final float UNKNOWN_WIDTH = -1;
+
+  private final UserTable rows;
+  private final ColumnDefinition[] columns;
+  private final Paint measurePaint;
+  private final String[][] text;
+  private final float[][] widths;
+
+  /**
+   * Creates an empty cache for a page, nothing is formatted until it is asked for
+   *
+   * @param rows         the rows in the page
+   * @param columns      the columns of the spreadsheet, in display order
+   * @param measurePaint the paint the text will be drawn with, or null to skip measuring
+   */
+  SpreadsheetDisplayCache(UserTable rows, ColumnDefinition[] columns, Paint measurePaint) {
+    this.rows = rows;
+    this.columns = columns;
+    this.measurePaint = measurePaint;
+    this.text = new String[columns.length][];
+    this.widths = new float[columns.length][];
+  }
+
+  /**
+   * @param column the index of the column in the spreadsheet
+   * @param row    the index of the row in the page
+   * @return the display text of the cell, or null if the cell has no data
+   */
+  String getText(int column, int row) {
+    ensureColumn(column);
+    return text[column][row];
+  }
+
+  /**
+   * @param column the index of the column in the spreadsheet
+   * @param row    the index of the row in the page
+   * @return the width of the cell's display text in pixels, or {@link #UNKNOWN_WIDTH}
+   */
+  float getWidth(int column, int row) {
+    ensureColumn(column);
+    return widths[column][row];
+  }
+
+  /**
+   * Formats and measures every cell of a column in this page, if that hasn't been done already
+   *
+   * @param column the index of the column in the spreadsheet
+   */
+  void ensureColumn(int column) {
+    if (text[column] != null) {
+      return;
+    }
+    ColumnDefinition cd = columns[column];
+    int numberOfRows = rows.getNumberOfRows();
+    String[] columnText = new String[numberOfRows];
+    float[] columnWidths = new float[numberOfRows];
+    for (int i = 0; i < numberOfRows; i++) {
+      String datum = rows.getDisplayTextOfData(i, cd.getType(), cd.getElementKey());
+      columnText[i] = datum;
+      columnWidths[i] = datum == null || measurePaint == null ?
+          UNKNOWN_WIDTH :
+          measurePaint.measureText(datum);
+    }
+    widths[column] = columnWidths;
+    text[column] = columnText;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.data.utilities.ColumnUtil;
+import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.KeyValueStoreUtils;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.ColorRuleGroupCache;
+import org.opendatakit.utilities.LocalizationUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything a spreadsheet needs from the key value store before it can be drawn: the column
+ * order, the index column, the localized column headers, the column widths and the color rules.
+ * <p>
+ * It is loaded once, by {@link SpreadsheetUserTable}, and read from there by
+ * {@link SpreadsheetView}. Each setting is read for every column at once, so opening a table
+ * costs the same number of calls to the database service however many columns it has. The color
+ * rules come from the application's {@link ColorRuleGroupCache}.
+ */
+final class SpreadsheetMetadata {
+
+  final String indexColumnElementKey;
+  final ArrayList<String> columnOrder;
+  /**
+   * The localized display name of every column in the column order, by element key
+   */
+  final Map<String, String> displayNames;
+  /**
+   * The width of every user defined column, by element key
+   */
+  final Map<String, Integer> columnWidths;
+  /**
+   * The color rules of the user defined columns that have any, by element key
+   */
+  final Map<String, ColorRuleGroup> columnColorRules;
+  final ColorRuleGroup statusColorRules;
+  final ColorRuleGroup tableColorRules;
+
+  private SpreadsheetMetadata(String indexColumnElementKey, ArrayList<String> columnOrder,
+      Map<String, String> displayNames, Map<String, Integer> columnWidths,
+      Map<String, ColorRuleGroup> columnColorRules, ColorRuleGroup statusColorRules,
+      ColorRuleGroup tableColorRules) {
+    this.indexColumnElementKey = indexColumnElementKey;
+    this.columnOrder = columnOrder;
+    this.displayNames = Collections.unmodifiableMap(displayNames);
+    this.columnWidths = Collections.unmodifiableMap(columnWidths);
+    this.columnColorRules = Collections.unmodifiableMap(columnColorRules);
+    this.statusColorRules = statusColorRules;
+    this.tableColorRules = tableColorRules;
+  }
+
+  /**
+   * Reads everything the spreadsheet of a table needs
+   *
+   * @param dbInterface               a database interface to use
+   * @param appName                   the app name
+   * @param db                        an open database handle to use
+   * @param tableId                   the table id
+   * @param columns                   the table's columns
+   * @param userSelectedDefaultLocale the locale to show the column headers in
+   * @param props                     the spreadsheet's properties if it has its own, the index
+   *                                  column is taken from them instead of the table's settings
+   * @return the spreadsheet's metadata
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  static SpreadsheetMetadata load(UserDbInterface dbInterface, String appName, DbHandle db,
+      String tableId, OrderedColumns columns, String userSelectedDefaultLocale,
+      SpreadsheetProps props) throws ServicesAvailabilityException {
+    String indexColumnElementKey;
+    if (props != null) {
+      indexColumnElementKey = props.getFrozen();
+    } else {
+      indexColumnElementKey = TableUtil.get().getIndexColumn(dbInterface, appName, db, tableId);
+    }
+    ArrayList<String> columnOrder = TableUtil.get()
+        .getColumnOrder(dbInterface, appName, db, tableId, columns);
+
+    // every column's display name in one read, rather than one per column
+    List<KeyValueStoreEntry> entries = dbInterface
+        .getTableMetadata(appName, db, tableId, KeyValueStoreConstants.PARTITION_COLUMN, null,
+            KeyValueStoreConstants.COLUMN_DISPLAY_NAME, null).getEntries();
+    Map<String, String> rawDisplayNames = new HashMap<>();
+    for (KeyValueStoreEntry entry : entries) {
+      rawDisplayNames.put(entry.aspect, KeyValueStoreUtils.getString(entry));
+    }
+    Map<String, String> displayNames = new HashMap<>();
+    for (String elementKey : columnOrder) {
+      String rawDisplayName = rawDisplayNames.get(elementKey);
+      if (rawDisplayName != null) {
+        displayNames.put(elementKey, LocalizationUtils
+            .getLocalizedDisplayName(appName, tableId, userSelectedDefaultLocale,
+                rawDisplayName));
+      } else {
+        // no display name set, let ColumnUtil make one up the way it always has
+        displayNames.put(elementKey, ColumnUtil.get()
+            .getLocalizedDisplayName(userSelectedDefaultLocale, dbInterface, appName, db,
+                tableId, elementKey));
+      }
+    }
+
+    Map<String, Integer> columnWidths = ColumnUtil.get()
+        .getColumnWidths(dbInterface, appName, db, tableId, columns);
+
+    ColorRuleGroupCache colorRuleCache = Tables.getInstance().getColorRuleCache();
+    String[] adminColumns = dbInterface.getAdminColumns();
+    // which columns have rules in one read, then only those columns' groups are read, and those
+    // only the first time the table is shown. A column without rules has no group in the map.
+    Set<String> columnsWithRules = colorRuleCache
+        .getColumnsWithColorRules(dbInterface, appName, db, tableId);
+    Map<String, ColorRuleGroup> columnColorRules = new HashMap<>();
+    for (ColumnDefinition cd : columns.getColumnDefinitions()) {
+      if (columnsWithRules.contains(cd.getElementKey())) {
+        columnColorRules.put(cd.getElementKey(), colorRuleCache
+            .getColumnColorRuleGroup(dbInterface, appName, db, tableId, cd.getElementKey(),
+                adminColumns));
+      }
+    }
+    ColorRuleGroup statusColorRules = colorRuleCache
+        .getStatusColumnRuleGroup(dbInterface, appName, db, tableId, adminColumns);
+    ColorRuleGroup tableColorRules = colorRuleCache
+        .getTableColorRuleGroup(dbInterface, appName, db, tableId, adminColumns);
+
+    return new SpreadsheetMetadata(indexColumnElementKey, columnOrder, displayNames, columnWidths,
+        columnColorRules, statusColorRules, tableColorRules);
+  }
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.graphics.Paint;
+import android.os.AsyncTask;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.tables.data.ColorRuleEvaluator;
+import org.opendatakit.tables.data.ColumnStore;
+import org.opendatakit.tables.data.RowColors;
+import org.opendatakit.tables.data.SpreadsheetQuery;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The backing store for the rows of a {@link SpreadsheetUserTable}. Rather than holding the
+ * whole result set, it holds a bounded number of fixed-size windows ("pages") of it, fetched on
+ * demand with the limit/offset arguments of simpleQuery. When more than {@link #MAX_PAGES} pages
+ * are loaded, the least recently used one is dropped.
+ * <p>
+ * Only the total row count is fetched up front, so opening a table costs one page regardless of
+ * how many rows it has. Pages the user is about to scroll to can be loaded and formatted ahead of
+ * time on a background thread with {@link #prefetch(int, int, int, int)}.
+ */
+final class SpreadsheetRowPages {
+
+  /**
+   * The number of rows fetched in a single query
+   */
+  static final int PAGE_SIZE = 256;
+  /**
+   * The number of pages kept in memory at once. Must be at least the number of pages that can be
+   * on screen at the same time, which is two for any reasonable screen height.
+   */
+  static final int MAX_PAGES = 8;
+
+  private final PageLoader loader;
+  private final ColumnDefinition[] columns;
+  private final Map<String, ElementDataType> dataTypes;
+  /**
+   * The loaded pages, in no particular order, with null for unused slots. Looked up with a linear
+   * scan rather than a map so that finding a page doesn't box the page number on every cell drawn.
+   */
+  private final Page[] pages = new Page[MAX_PAGES];
+  /**
+   * Incremented every time a page is used, to find the least recently used one
+   */
+  private long useCounter = 0;
+  private int numberOfRows = -1;
+  private Paint measurePaint = null;
+  /**
+   * A copy of measurePaint for the prefetch thread to use, paints aren't thread safe
+   */
+  private Paint prefetchPaint = null;
+  /**
+   * The running prefetch, or null if there isn't one
+   */
+  private PrefetchTask prefetchTask = null;
+  /**
+   * Incremented by {@link #clear()}, so pages prefetched from before the data changed are dropped
+   */
+  private int generation = 0;
+
+  /**
+   * Creates an empty set of pages, nothing is loaded until it is asked for
+   *
+   * @param loader    used to run the count and window queries
+   * @param columns   the columns of the spreadsheet, in display order
+   * @param dataTypes the data type of every user defined column in the table, by element key
+   */
+  SpreadsheetRowPages(PageLoader loader, ColumnDefinition[] columns,
+      Map<String, ElementDataType> dataTypes) {
+    this.loader = loader;
+    this.columns = columns;
+    this.dataTypes = dataTypes;
+  }
+
+  /**
+   * Gets the number of rows in the whole result set, querying for it the first time
+   *
+   * @return the number of rows in the result set
+   */
+  int getNumberOfRows() {
+    if (numberOfRows < 0) {
+      SpreadsheetQuery query = loader.getQuery();
+      if (query == null) {
+        return 0;
+      }
+      numberOfRows = query.getRowCount();
+    }
+    return numberOfRows;
+  }
+
+  /**
+   * Makes sure every page overlapping the given range of rows is loaded. Called with the range of
+   * rows that is about to be drawn.
+   *
+   * @param firstRow the index of the first row needed
+   * @param lastRow  the index of the last row needed
+   */
+  void loadRows(int firstRow, int lastRow) {
+    if (firstRow < 0) {
+      firstRow = 0;
+    }
+    for (int page = firstRow / PAGE_SIZE; page <= lastRow / PAGE_SIZE; page++) {
+      getPage(page);
+    }
+  }
+
+  /**
+   * Gets the row at the requested index, loading its page if needed
+   *
+   * @param rowIndex the index of the row in the whole result set
+   * @return the row, or null if it is out of bounds or the database was unavailable
+   */
+  TypedRow getRowAtIndex(int rowIndex) {
+    Page page = getPageForRow(rowIndex);
+    if (page == null) {
+      return null;
+    }
+    return page.rows.getRowAtIndex(rowIndex - page.offset);
+  }
+
+  /**
+   * Gets the id of the row at the requested index, loading its page if needed
+   *
+   * @param rowIndex the index of the row in the whole result set
+   * @return the row's _id, or null if it is out of bounds or the database was unavailable
+   */
+  String getRowId(int rowIndex) {
+    Page page = getPageForRow(rowIndex);
+    if (page == null) {
+      return null;
+    }
+    return page.rows.getRowId(rowIndex - page.offset);
+  }
+
+  /**
+   * Gets the text to display for a cell, loading its page if needed
+   *
+   * @param rowIndex the index of the row in the whole result set
+   * @param column   the index of the column in the spreadsheet
+   * @return the display text of the cell, or null if there isn't one
+   */
+  String getDisplayText(int rowIndex, int column) {
+    Page page = getPageForRow(rowIndex);
+    if (page == null) {
+      return null;
+    }
+    return page.getDisplayCache(columns, measurePaint).getText(column, rowIndex - page.offset);
+  }
+
+  /**
+   * Gets the width of the text to display for a cell, loading its page if needed
+   *
+   * @param rowIndex the index of the row in the whole result set
+   * @param column   the index of the column in the spreadsheet
+   * @return the width in pixels, or {@link SpreadsheetDisplayCache#UNKNOWN_WIDTH}
+   */
+  float getDisplayTextWidth(int rowIndex, int column) {
+    Page page = getPageForRow(rowIndex);
+    if (page == null) {
+      return SpreadsheetDisplayCache.UNKNOWN_WIDTH;
+    }
+    return page.getDisplayCache(columns, measurePaint).getWidth(column, rowIndex - page.offset);
+  }
+
+  /**
+   * Sets the paint used to measure display text. Any text already measured with a different
+   * paint is thrown away.
+   *
+   * @param measurePaint a paint with the same text size and typeface the cells are drawn with
+   */
+  void setMeasurePaint(Paint measurePaint) {
+    cancelPrefetch();
+    this.measurePaint = measurePaint;
+    this.prefetchPaint = measurePaint == null ? null : new Paint(measurePaint);
+    for (Page page : pages) {
+      if (page != null) {
+        page.displayCache = null;
+      }
+    }
+  }
+
+  /**
+   * Evaluates a group of color rules against the page holding a row. The rules are evaluated a
+   * page at a time by {@link ColorRuleEvaluator} and the results kept with the page, so they are
+   * dropped along with it. The {@link ColumnStore} they are evaluated against is thrown away
+   * straight after, a page already holds its rows and their display text, it doesn't need a
+   * third copy of them.
+   *
+   * @param crg      the color rules to evaluate, may be null
+   * @param rowIndex the index of the row in the whole result set
+   * @return the colors of every row in the page, indexed by row in the whole result set, or null
+   * if there are no rules or the row couldn't be loaded
+   */
+  RowColors getRowColors(ColorRuleGroup crg, int rowIndex) {
+    if (crg == null) {
+      return null;
+    }
+    Page page = getPageForRow(rowIndex);
+    if (page == null) {
+      return null;
+    }
+    return page.getRowColors(crg, dataTypes);
+  }
+
+  /**
+   * Re-queries just the loaded pages that hold the given rows, after they were edited. This only
+   * works if every row is in a loaded page and no row moved, so the pages are checked to still
+   * hold the same rows in the same order. If they don't, nothing is changed.
+   *
+   * @param rowIds the _ids of the rows that changed
+   * @return whether the rows were refreshed, if not everything has to be cleared instead
+   */
+  boolean refreshRows(Collection<String> rowIds) {
+    boolean[] stale = new boolean[pages.length];
+    for (String rowId : rowIds) {
+      int slot = findLoadedRow(rowId);
+      if (slot < 0) {
+        return false;
+      }
+      stale[slot] = true;
+    }
+    SpreadsheetQuery query = loader.getQuery();
+    if (query == null) {
+      return false;
+    }
+    Page[] refreshed = new Page[pages.length];
+    for (int i = 0; i < pages.length; i++) {
+      if (!stale[i]) {
+        continue;
+      }
+      UserTable rows = query.getRows(PAGE_SIZE, pages[i].offset);
+      if (rows == null || !hasSameRows(pages[i].rows, rows)) {
+        return false;
+      }
+      refreshed[i] = new Page(pages[i].offset, rows);
+      refreshed[i].lastUsed = pages[i].lastUsed;
+    }
+    // anything being prefetched was queried before the edit
+    cancelPrefetch();
+    generation++;
+    for (int i = 0; i < pages.length; i++) {
+      if (refreshed[i] != null) {
+        pages[i] = refreshed[i];
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param rowId the _id of a row
+   * @return the slot of the loaded page the row is in, or -1 if it isn't loaded
+   */
+  private int findLoadedRow(String rowId) {
+    for (int i = 0; i < pages.length; i++) {
+      if (pages[i] == null) {
+        continue;
+      }
+      UserTable rows = pages[i].rows;
+      for (int j = 0; j < rows.getNumberOfRows(); j++) {
+        if (rowId.equals(rows.getRowId(j))) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static boolean hasSameRows(UserTable before, UserTable after) {
+    if (before.getNumberOfRows() != after.getNumberOfRows()) {
+      return false;
+    }
+    for (int i = 0; i < before.getNumberOfRows(); i++) {
+      String rowId = before.getRowId(i);
+      if (rowId == null ? after.getRowId(i) != null : !rowId.equals(after.getRowId(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drops every loaded page and the row count, so everything is re-queried on next use
+   */
+  void clear() {
+    cancelPrefetch();
+    generation++;
+    Arrays.fill(pages, null);
+    numberOfRows = -1;
+  }
+
+  private Page getPageForRow(int rowIndex) {
+    if (rowIndex < 0 || rowIndex >= getNumberOfRows()) {
+      return null;
+    }
+    Page page = getPage(rowIndex / PAGE_SIZE);
+    if (page == null || rowIndex - page.offset >= page.rows.getNumberOfRows()) {
+      // the table changed between the count and the page query
+      return null;
+    }
+    return page;
+  }
+
+  private Page getPage(int pageNumber) {
+    int offset = pageNumber * PAGE_SIZE;
+    int evict = 0;
+    for (int i = 0; i < pages.length; i++) {
+      Page page = pages[i];
+      if (page != null && page.offset == offset) {
+        page.lastUsed = ++useCounter;
+        return page;
+      }
+      // prefer an empty slot, otherwise the least recently used page
+      if (pages[evict] != null && (page == null || page.lastUsed < pages[evict].lastUsed)) {
+        evict = i;
+      }
+    }
+    if (offset >= getNumberOfRows()) {
+      return null;
+    }
+    SpreadsheetQuery query = loader.getQuery();
+    if (query == null) {
+      return null;
+    }
+    UserTable rows = query.getRows(PAGE_SIZE, offset);
+    if (rows == null) {
+      return null;
+    }
+    Page page = new Page(offset, rows);
+    page.lastUsed = ++useCounter;
+    pages[evict] = page;
+    return page;
+  }
+
+  private boolean isLoaded(int pageNumber) {
+    int offset = pageNumber * PAGE_SIZE;
+    for (Page page : pages) {
+      if (page != null && page.offset == offset) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds a page loaded by the prefetch thread, unless the same page was loaded in the meantime.
+   * It replaces the least recently used page but isn't marked as used itself, so a page that is
+   * never scrolled to is the first to go.
+   *
+   * @param page the prefetched page
+   */
+  private void addPrefetchedPage(Page page) {
+    int evict = 0;
+    for (int i = 0; i < pages.length; i++) {
+      if (pages[i] != null && pages[i].offset == page.offset) {
+        return;
+      }
+      if (pages[evict] != null && (pages[i] == null || pages[i].lastUsed < pages[evict].lastUsed)) {
+        evict = i;
+      }
+    }
+    pages[evict] = page;
+  }
+
+  /**
+   * Starts loading, on a background thread, the pages just past the given rows in the direction
+   * the user is scrolling, and the page just before them. The rows are formatted and measured as
+   * well, so drawing them later is only array reads.
+   * <p>
+   * Does nothing if a prefetch is already running; call {@link #cancelPrefetch()} first when the
+   * direction changes and the running one is no longer useful.
+   *
+   * @param firstRow   the first row on screen
+   * @param lastRow    the last row on screen
+   * @param direction  1 if scrolling down, -1 if scrolling up
+   * @param pagesAhead how many pages to load in the direction of the scroll
+   */
+  void prefetch(int firstRow, int lastRow, int direction, int pagesAhead) {
+    if (prefetchTask != null || firstRow < 0 || lastRow < firstRow) {
+      return;
+    }
+    int lastPage = (getNumberOfRows() - 1) / PAGE_SIZE;
+    int firstVisiblePage = firstRow / PAGE_SIZE;
+    int lastVisiblePage = lastRow / PAGE_SIZE;
+    int[] wanted = new int[pagesAhead + 1];
+    int count = 0;
+    // the pages we're heading towards first, nearest first, then the one behind us
+    int leading = direction < 0 ? firstVisiblePage : lastVisiblePage;
+    int trailing = direction < 0 ? lastVisiblePage : firstVisiblePage;
+    int step = direction < 0 ? -1 : 1;
+    for (int i = 1; i <= pagesAhead; i++) {
+      int pageNumber = leading + step * i;
+      if (pageNumber >= 0 && pageNumber <= lastPage && !isLoaded(pageNumber)) {
+        wanted[count++] = pageNumber;
+      }
+    }
+    int behind = trailing - step;
+    if (behind >= 0 && behind <= lastPage && !isLoaded(behind)) {
+      wanted[count++] = behind;
+    }
+    if (count == 0) {
+      return;
+    }
+    // the task only ever sees this, it mustn't touch the fragment or the activity
+    SpreadsheetQuery query = loader.getQuery();
+    if (query == null) {
+      return;
+    }
+    prefetchTask = new PrefetchTask(query, Arrays.copyOf(wanted, count), generation,
+        prefetchPaint);
+    prefetchTask.execute();
+  }
+
+  /**
+   * Stops the running prefetch, if there is one. Pages it already finished are kept.
+   */
+  void cancelPrefetch() {
+    if (prefetchTask != null) {
+      prefetchTask.cancel(false);
+      prefetchTask = null;
+    }
+  }
+
+  /**
+   * Provides the query that backs the pages. Implemented by SpreadsheetUserTable on top of the
+   * enclosing activity's query.
+   */
+  interface PageLoader {
+
+    /**
+     * Only called on the main thread. The query is run there for the pages that are needed
+     * right away, and handed to the prefetch thread for the others.
+     *
+     * @return the query for the current props, or null if the fragment has gone away
+     */
+    SpreadsheetQuery getQuery();
+  }
+
+  /**
+   * Loads and formats a list of pages in the background, handing each one back to the main thread
+   * as soon as it is ready
+   */
+  private final class PrefetchTask extends AsyncTask<Void, Page, Void> {
+    private final SpreadsheetQuery query;
+    private final int[] pageNumbers;
+    private final int taskGeneration;
+    private final Paint paint;
+
+    PrefetchTask(SpreadsheetQuery query, int[] pageNumbers, int taskGeneration, Paint paint) {
+      this.query = query;
+      this.pageNumbers = pageNumbers;
+      this.taskGeneration = taskGeneration;
+      this.paint = paint;
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+      for (int pageNumber : pageNumbers) {
+        if (isCancelled()) {
+          return null;
+        }
+        int offset = pageNumber * PAGE_SIZE;
+        UserTable rows = query.getRows(PAGE_SIZE, offset);
+        if (rows == null) {
+          return null;
+        }
+        Page page = new Page(offset, rows);
+        SpreadsheetDisplayCache displayCache = page.getDisplayCache(columns, paint);
+        for (int i = 0; i < columns.length; i++) {
+          if (isCancelled()) {
+            return null;
+          }
+          displayCache.ensureColumn(i);
+        }
+        publishProgress(page);
+      }
+      return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(Page... loaded) {
+      if (isCancelled() || taskGeneration != generation) {
+        return;
+      }
+      for (Page page : loaded) {
+        addPrefetchedPage(page);
+      }
+    }
+
+    @Override
+    protected void onPostExecute(Void result) {
+      if (prefetchTask == this) {
+        prefetchTask = null;
+      }
+    }
+  }
+
+  /**
+   * A single window of the result set
+   */
+  private static final class Page {
+    final int offset;
+    final UserTable rows;
+    private final Map<ColorRuleGroup, RowColors> rowColors = new IdentityHashMap<>();
+    private SpreadsheetDisplayCache displayCache = null;
+    private long lastUsed = 0;
+
+    Page(int offset, UserTable rows) {
+      this.offset = offset;
+      this.rows = rows;
+    }
+
+    SpreadsheetDisplayCache getDisplayCache(ColumnDefinition[] columns, Paint measurePaint) {
+      if (displayCache == null) {
+        displayCache = new SpreadsheetDisplayCache(rows, columns, measurePaint);
+      }
+      return displayCache;
+    }
+
+    RowColors getRowColors(ColorRuleGroup crg, Map<String, ElementDataType> dataTypes) {
+      RowColors colors = rowColors.get(crg);
+      if (colors == null) {
+        // only the columns the rules look at are converted
+        colors = ColorRuleEvaluator.evaluate(crg, new ColumnStore(rows, dataTypes), offset);
+        rowColors.put(crg, colors);
+      }
+      return colors;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.os.SystemClock;
+import android.view.ViewTreeObserver;
+
+/**
+ * Watches the vertical scroll of a {@link SpreadsheetView} and asks its table to load the row
+ * pages the user is heading towards before they are drawn. It listens to every scroll change in
+ * the view tree, so it keeps up with flings as well as drags.
+ * <p>
+ * The faster the user is scrolling, the more pages ahead are requested. When the direction of
+ * the scroll changes, whatever was being loaded for the old direction is cancelled.
+ */
+final class SpreadsheetRowPrefetcher implements ViewTreeObserver.OnScrollChangedListener {
+
+  /**
+   * How far ahead to look, in milliseconds of scrolling at the current speed
+   */
+  private static final int LOOKAHEAD_MILLIS = 1000;
+  /**
+   * The most pages that will be requested ahead of the screen, regardless of speed. Together with
+   * the page behind and the pages on screen it has to fit in SpreadsheetRowPages.MAX_PAGES.
+   */
+  private static final int MAX_PAGES_AHEAD = 3;
+  /**
+   * How much weight a new speed sample gets against the running average, out of 1
+   */
+  private static final float VELOCITY_SMOOTHING = 0.5f;
+
+  private final TabularView.Controller controller;
+  private final SpreadsheetUserTable table;
+  private final TabularView dataView;
+  private final int screenHeight;
+
+  private int lastScrollY = -1;
+  private long lastTime = 0;
+  private int direction = 0;
+  /**
+   * Smoothed scroll speed, in pixels per millisecond
+   */
+  private float velocity = 0;
+
+  /**
+   * @param controller   used to get the current scroll position
+   * @param table        the table whose rows will be loaded
+   * @param dataView     the scrolling data view, used to turn pixels into rows
+   * @param screenHeight the height of the screen in pixels
+   */
+  SpreadsheetRowPrefetcher(TabularView.Controller controller, SpreadsheetUserTable table,
+      TabularView dataView, int screenHeight) {
+    this.controller = controller;
+    this.table = table;
+    this.dataView = dataView;
+    this.screenHeight = screenHeight;
+  }
+
+  @Override
+  public void onScrollChanged() {
+    int scrollY = Math.max(controller.getMainScrollY(), 0);
+    long now = SystemClock.uptimeMillis();
+    if (lastScrollY < 0) {
+      lastScrollY = scrollY;
+      lastTime = now;
+      return;
+    }
+    int dy = scrollY - lastScrollY;
+    long dt = now - lastTime;
+    if (dy == 0) {
+      // only the horizontal scroll changed
+      return;
+    }
+    lastScrollY = scrollY;
+    lastTime = now;
+
+    int newDirection = dy > 0 ? 1 : -1;
+    if (newDirection != direction) {
+      // anything being loaded for the old direction is in the wrong place now
+      table.cancelPrefetch();
+      direction = newDirection;
+      velocity = 0;
+    }
+    if (dt > 0) {
+      velocity += VELOCITY_SMOOTHING * (Math.abs(dy) / (float) dt - velocity);
+    }
+
+    int rowHeight = dataView.getRowHeightWithBorder();
+    int pagesAhead = 1 + (int) (velocity * LOOKAHEAD_MILLIS / rowHeight)
+        / SpreadsheetRowPages.PAGE_SIZE;
+    if (pagesAhead > MAX_PAGES_AHEAD) {
+      pagesAhead = MAX_PAGES_AHEAD;
+    }
+    int firstRow = scrollY / rowHeight;
+    int lastRow = (scrollY + screenHeight) / rowHeight;
+    int numberOfRows = table.getNumberOfRows();
+    if (lastRow >= numberOfRows) {
+      lastRow = numberOfRows - 1;
+    }
+    table.prefetchRows(firstRow, lastRow, direction, pagesAhead);
+  }
+}
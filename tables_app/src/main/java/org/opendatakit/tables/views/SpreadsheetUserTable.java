@@ -16,9 +16,9 @@
 package org.opendatakit.tables.views;
 
 import android.app.Activity;
+import android.graphics.Paint;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.data.ColorRuleGroup;
-import org.opendatakit.data.utilities.ColumnUtil;
-import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.data.*;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
@@ -27,9 +27,13 @@ import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.activities.ISpreadsheetFragmentContainer;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.ColumnStore;
+import org.opendatakit.tables.data.RowColors;
+import org.opendatakit.tables.data.SpreadsheetQuery;
 import org.opendatakit.tables.fragments.AbsTableDisplayFragment;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -52,7 +56,15 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
   private final String[] spreadsheetIndexToElementKey;
   private final Map<String, Integer> elementKeyToSpreadsheetIndex;
   private SpreadsheetProps props;
-  private UserTable userTable;
+  // The column order, headers, widths and color rules, read once when the table is opened
+  private final SpreadsheetMetadata metadata;
+  // The rows of the table, loaded a window at a time as they're drawn
+  private final SpreadsheetRowPages rowPages;
+  /**
+   * Incremented every time the cached data is thrown away, so that anything rendered from the old
+   * data can tell it is out of date
+   */
+  private int dataVersion = 0;
 
   /**
    * Constructs a SpreadsheetUserTable
@@ -78,17 +90,11 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
     DbHandle db = null;
     try {
       db = dbInterface.openDatabase(frag.getAppName());
-      userTable = getUserTable();
-      if (this.props != null) {
-        indexColumnElementKey = this.props.getFrozen();
-      } else {
-        indexColumnElementKey = TableUtil.get()
-            .getIndexColumn(dbInterface, getAppName(), db, getTableId());
-        //indexColumnElementKey = null;
-      }
-      colOrder = TableUtil.get()
-          .getColumnOrder(dbInterface, frag.getAppName(), db, frag.getTableId(),
-              frag.getColumnDefinitions());
+      metadata = SpreadsheetMetadata
+          .load(dbInterface, getAppName(), db, getTableId(), frag.getColumnDefinitions(),
+              userSelectedDefaultLocale, this.props);
+      indexColumnElementKey = metadata.indexColumnElementKey;
+      colOrder = metadata.columnOrder;
 
       header = new String[colOrder.size()];
       header_keys = new String[colOrder.size()];
@@ -97,16 +103,27 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
 
       for (int i = 0; i < colOrder.size(); ++i) {
         String elementKey = colOrder.get(i);
-        String localizedDisplayName;
-        localizedDisplayName = ColumnUtil.get()
-            .getLocalizedDisplayName(userSelectedDefaultLocale, dbInterface, getAppName(), db,
-                frag.getTableId(), elementKey);
-
-        header[i] = localizedDisplayName;
+        header[i] = metadata.displayNames.get(elementKey);
         header_keys[i] = elementKey;
         spreadsheetIndexToElementKey[i] = elementKey;
         elementKeyToSpreadsheetIndex.put(elementKey, i);
       }
+
+      ColumnDefinition[] columns = new ColumnDefinition[colOrder.size()];
+      for (int i = 0; i < columns.length; ++i) {
+        columns[i] = getColumnByElementKey(spreadsheetIndexToElementKey[i]);
+      }
+      Map<String, ElementDataType> dataTypes = ColumnStore
+          .getDataTypes(getColumnDefinitions());
+      rowPages = new SpreadsheetRowPages(new SpreadsheetRowPages.PageLoader() {
+        @Override
+        public SpreadsheetQuery getQuery() {
+          if (!fragment.isAdded()) {
+            return null;
+          }
+          return fragment.getSpreadsheetQuery();
+        }
+      }, columns, dataTypes);
     } finally {
       if (db != null) {
         dbInterface.closeDatabase(frag.getAppName(), db);
@@ -131,28 +148,14 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
   }
 
   /**
-   * TODO document
-   *
-   * @param dbInterface
-   * @param db
-   * @param elementKey
-   * @param adminColumns
-   * @return
-   * @throws ServicesAvailabilityException
+   * @return the column order, headers, widths and color rules, read when the table was opened
    */
-  ColorRuleGroup getColumnColorRuleGroup(UserDbInterface dbInterface, DbHandle db,
-      String elementKey, String[] adminColumns) throws ServicesAvailabilityException {
-    return ColorRuleGroup
-        .getColumnColorRuleGroup(dbInterface, getAppName(), db, getTableId(), elementKey,
-            adminColumns);
+  SpreadsheetMetadata getMetadata() {
+    return metadata;
   }
 
   int getNumberOfRows() {
-    UserTable table = fragment.getUserTable();
-    if (table == null) {
-      return 0;
-    }
-    return table.getNumberOfRows();
+    return rowPages.getNumberOfRows();
   }
 
   /**
@@ -162,19 +165,111 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
    * @return the requested row or null
    */
   public TypedRow getRowAtIndex(int index) {
-    UserTable table = fragment.getUserTable();
-    if (table == null) {
-      return null;
+    return rowPages.getRowAtIndex(index);
+  }
+
+  /**
+   * Makes sure the rows in the given range are loaded before they're drawn
+   *
+   * @param firstRow the index of the first visible row
+   * @param lastRow  the index of the last visible row
+   */
+  void loadRows(int firstRow, int lastRow) {
+    rowPages.loadRows(firstRow, lastRow);
+  }
+
+  /**
+   * Gets the text to display for the given cell. The text for a column is formatted once per
+   * page of rows and cached, so this is cheap enough to call from onDraw.
+   *
+   * @param rowIndex the index of the row
+   * @param colNum   the index of the column in the spreadsheet
+   * @return the display text, or null if the cell has no data
+   */
+  String getDisplayText(int rowIndex, int colNum) {
+    return rowPages.getDisplayText(rowIndex, colNum);
+  }
+
+  /**
+   * Gets the width of the text to display for the given cell, as measured with the paint passed
+   * to {@link #setMeasurePaint(Paint)}
+   *
+   * @param rowIndex the index of the row
+   * @param colNum   the index of the column in the spreadsheet
+   * @return the width in pixels, or {@link SpreadsheetDisplayCache#UNKNOWN_WIDTH}
+   */
+  float getDisplayTextWidth(int rowIndex, int colNum) {
+    return rowPages.getDisplayTextWidth(rowIndex, colNum);
+  }
+
+  /**
+   * Sets the paint the cells will be drawn with, so the cached display text can be measured
+   *
+   * @param measurePaint a paint with the text size and typeface of the data cells
+   */
+  void setMeasurePaint(Paint measurePaint) {
+    rowPages.setMeasurePaint(measurePaint);
+  }
+
+  /**
+   * Drops all the cached rows and display text, so that they are queried again when next drawn
+   */
+  public void invalidateCachedData() {
+    rowPages.clear();
+    dataVersion++;
+  }
+
+  /**
+   * Re-queries only the given rows, rather than everything, after they were edited. See
+   * {@link SpreadsheetRowPages#refreshRows(Collection)} for when that's possible.
+   *
+   * @param rowIds the _ids of the rows that changed
+   * @return false if nothing was refreshed and {@link #invalidateCachedData()} is needed instead
+   */
+  public boolean refreshRows(Collection<String> rowIds) {
+    if (!rowPages.refreshRows(rowIds)) {
+      return false;
     }
-    return table.getRowAtIndex(index);
+    dataVersion++;
+    return true;
   }
 
-  UserTable getUserTable() {
-    return fragment.getUserTable();
+  /**
+   * Starts loading the rows around the screen in the background, see
+   * {@link SpreadsheetRowPages#prefetch(int, int, int, int)}
+   *
+   * @param firstRow   the first row on screen
+   * @param lastRow    the last row on screen
+   * @param direction  1 if scrolling down, -1 if scrolling up
+   * @param pagesAhead how many pages to load in the direction of the scroll
+   */
+  void prefetchRows(int firstRow, int lastRow, int direction, int pagesAhead) {
+    rowPages.prefetch(firstRow, lastRow, direction, pagesAhead);
   }
 
-  UserTable getCachedUserTable() {
-    return userTable;
+  /**
+   * Stops any background loading started by {@link #prefetchRows(int, int, int, int)}
+   */
+  void cancelPrefetch() {
+    rowPages.cancelPrefetch();
+  }
+
+  /**
+   * @return a number that changes every time the cached data is invalidated
+   */
+  int getDataVersion() {
+    return dataVersion;
+  }
+
+  /**
+   * Evaluates the given color rules against the rows around a row
+   *
+   * @param crg      the color rules, may be null
+   * @param rowIndex the index of the row
+   * @return the colors of the row and the rest of its page, or null if there are no rules
+   */
+  RowColors getRowColors(ColorRuleGroup crg, int rowIndex) {
+    return rowPages.getRowColors(crg, rowIndex);
   }
 
   // Whether or not we have a frozen column...
@@ -196,8 +291,7 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
    * @return whether there is data in the user table
    */
   public boolean hasData() {
-    UserTable table = fragment.getUserTable();
-    return !(table == null || header.length == 0);
+    return header.length != 0 && rowPages.getNumberOfRows() != 0;
   }
 
   /**
@@ -208,15 +302,13 @@ public class SpreadsheetUserTable implements ISpreadsheetFragmentContainer {
    */
   public SpreadsheetCell getSpreadsheetCell(CellInfo cellInfo) {
     SpreadsheetCell cell = new SpreadsheetCell();
-    userTable = getUserTable();
     cell.rowNum = cellInfo.rowId;
-    cell.row = userTable.getRowAtIndex(cellInfo.rowId);
+    cell.row = getRowAtIndex(cellInfo.rowId);
     cell.elementKey = cellInfo.elementKey;
     OrderedColumns orderedDefns = getColumnDefinitions();
     ColumnDefinition cd = orderedDefns.find(cellInfo.elementKey);
-    getTableId();
-    cell.displayText = userTable
-        .getDisplayTextOfData(cellInfo.rowId, cd.getType(), cellInfo.elementKey);
+    cell.displayText = getDisplayText(cellInfo.rowId,
+        getColumnIndexOfElementKey(cd.getElementKey()));
     cell.value = cell.row.getStringValueByKey(cellInfo.elementKey);
     return cell;
   }
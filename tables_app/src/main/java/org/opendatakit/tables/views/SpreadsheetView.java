@@ -16,6 +16,7 @@
 package org.opendatakit.tables.views;
 
 import android.content.Context;
+import android.graphics.Paint;
 import android.view.ContextMenu;
 import android.view.MotionEvent;
 import android.view.View;
@@ -25,7 +26,6 @@ import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.Toast;
 import org.opendatakit.data.ColorRuleGroup;
-import org.opendatakit.data.utilities.ColumnUtil;
 import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.service.DbHandle;
@@ -36,7 +36,6 @@ import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -60,12 +59,18 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
   private static final int MIN_CLICK_DURATION = 0;
   private static final int MAX_DOUBLE_CLICK_TIME = 500;
   private static final int MIN_LONG_CLICK_DURATION = 1000;
+  // Tables with more rows than this draw their data from pre-rendered tiles
+  private static final int MIN_ROWS_FOR_TILED_RENDERING = SpreadsheetRowPages.PAGE_SIZE;
 
   private final Context context;
   private final Controller controller;
   private final SpreadsheetUserTable table;
   private final int fontSize;
   private final int completeColWidths[];
+  /**
+   * The memory the tile caches of the index and main data views share
+   */
+  private final TabularTileCache.Budget mTileBudget = new TabularTileCache.Budget();
 
   private final Map<String, ColorRuleGroup> mElementKeyToColorRuleGroup;
 
@@ -89,6 +94,11 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
   private View.OnTouchListener indexDataCellClickListener;
   private View.OnTouchListener indexHeaderCellClickListener;
 
+  /**
+   * Loads rows ahead of the scroll, created once the data view exists
+   */
+  private SpreadsheetRowPrefetcher prefetcher = null;
+
   private CellInfo lastHighlightedCellId;
   /**
    * used for making sure the user double tapped the same cell twice instead of differenct cells
@@ -118,7 +128,11 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     this.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
 
     // We have to initialize the items that will be shared across the TabularView objects.
-    this.mElementKeyToColorRuleGroup = new HashMap<>();
+    SpreadsheetMetadata metadata = table.getMetadata();
+    this.mElementKeyToColorRuleGroup = metadata.columnColorRules;
+    mStatusColumnRuleGroup = metadata.statusColorRules;
+    mTableColorRuleGroup = metadata.tableColorRules;
+    completeColWidths = getColumnWidths();
 
     // if a custom font size is defined in the KeyValueStore, use that if not, use the general
     // font size defined in preferences
@@ -127,16 +141,6 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     DbHandle db = null;
     try {
       db = dbInterface.openDatabase(appName);
-      String[] adminColumns = dbInterface.getAdminColumns();
-      for (ColumnDefinition cd : table.getColumnDefinitions().getColumnDefinitions()) {
-        mElementKeyToColorRuleGroup.put(cd.getElementKey(),
-            table.getColumnColorRuleGroup(dbInterface, db, cd.getElementKey(), adminColumns));
-      }
-      mStatusColumnRuleGroup = ColorRuleGroup
-          .getStatusColumnRuleGroup(dbInterface, appName, db, table.getTableId(), adminColumns);
-      mTableColorRuleGroup = ColorRuleGroup
-          .getTableColorRuleGroup(dbInterface, appName, db, table.getTableId(), adminColumns);
-      completeColWidths = getColumnWidths(db);
       fontSize = TableUtil.get()
           .getSpreadsheetViewFontSize(getContext(), dbInterface, appName, db, table.getTableId());
     } finally {
@@ -145,6 +149,12 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
       }
     }
 
+    // let the table measure the cached display text the same way the TabularViews will draw it
+    Paint measurePaint = new Paint();
+    measurePaint.setAntiAlias(true);
+    measurePaint.setTextSize(fontSize);
+    table.setMeasurePaint(measurePaint);
+
     initListeners();
     if (!table.isIndexed()) {
       buildNonIndexedTable();
@@ -155,6 +165,21 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     }
     mainData.setOnTouchListener(mainDataCellClickListener);
     mainHeader.setOnTouchListener(mainHeaderCellClickListener);
+    prefetcher = new SpreadsheetRowPrefetcher(this, table, mainData,
+        getResources().getDisplayMetrics().heightPixels);
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    getViewTreeObserver().addOnScrollChangedListener(prefetcher);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    getViewTreeObserver().removeOnScrollChangedListener(prefetcher);
+    table.cancelPrefetch();
+    super.onDetachedFromWindow();
   }
 
   /**
@@ -181,6 +206,17 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     }
   }
 
+  /**
+   * Redraws the data cells after some of the table's rows were refreshed. The headers and column
+   * widths don't depend on the rows, so they are left alone.
+   */
+  public void redrawData() {
+    mainData.invalidate();
+    if (indexData != null) {
+      indexData.invalidate();
+    }
+  }
+
   /**
    * Initializes the click listeners. There are four right now
    */
@@ -533,6 +569,9 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
               this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
     }
 
+    dataTable.setTileCacheEnabled(table.getNumberOfRows() > MIN_ROWS_FOR_TILED_RENDERING,
+        mTileBudget);
+
     ScrollView dataScroll = new ScrollView(context);
     dataScroll.addView(dataTable,
         new ViewGroup.LayoutParams(dataTable.getTableWidth(), dataTable.getTableHeight()));
@@ -663,21 +702,15 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
    * NB: If getting this from outside of spreadsheet view, you should really
    * consider if you need to be accessing column widths.
    *
-   * @param db The database to use
-   * @return an array of the widths for each column, taken from the database
-   * @throws ServicesAvailabilityException if the database is down
+   * @return an array of the widths for each column, read when the table was opened
    */
-  public int[] getColumnWidths(DbHandle db) throws ServicesAvailabilityException {
-    // So what we want to do is go through and get the column widths for each
-    // column. A problem here is that there is no caching, and if you have a
-    // lot of columns you're really working the gut of the database.
+  public int[] getColumnWidths() {
+    // The widths of every column were read in one go along with the rest of the table's
+    // metadata, see SpreadsheetMetadata
     int numberOfDisplayColumns = table.getNumberOfDisplayColumns();
     int[] columnWidths = new int[numberOfDisplayColumns];
-    String appName = table.getAppName();
 
-    Map<String, Integer> colWidths = ColumnUtil.get()
-        .getColumnWidths(Tables.getInstance().getDatabase(), appName, db,
-            table.getTableId(), table.getColumnDefinitions());
+    Map<String, Integer> colWidths = table.getMetadata().columnWidths;
 
     for (int i = 0; i < numberOfDisplayColumns; i++) {
       ColumnDefinition cd = table.getColumnByIndex(i);
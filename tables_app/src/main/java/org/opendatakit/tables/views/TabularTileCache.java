@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+/**
+ * A bounded cache of pre-rendered, fixed-size square tiles of a {@link TabularView}. Each tile is
+ * rasterized once and then just copied to the screen while scrolling, instead of laying out and
+ * drawing every cell's text again each frame.
+ * <p>
+ * Tiles are identified by their position in the grid of tiles and by the data version of the
+ * table they were rendered from, so a tile rendered before the data changed is never shown. The
+ * tiles live in a fixed number of slots, and when they are all in use the least recently used
+ * tile's bitmap is drawn over, so once the cache is full scrolling doesn't allocate anything.
+ */
+final class TabularTileCache {
+
+  /**
+   * The width and height of a tile, in pixels
+   */
+  static final int TILE_SIZE = 256;
+  /**
+   * Four bytes per pixel would double the memory for no visible gain, the cells are opaque
+   */
+  private static final Bitmap.Config TILE_CONFIG = Bitmap.Config.RGB_565;
+  private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 2;
+
+  private final Tile[] tiles;
+  private final Canvas canvas = new Canvas();
+  private long useCounter = 0;
+
+  /**
+   * @param maxTiles the number of tiles to keep, must be at least the number of tiles that can be
+   *                 on screen at once
+   */
+  TabularTileCache(int maxTiles) {
+    this.tiles = new Tile[maxTiles];
+  }
+
+  /**
+   * Works out how many tiles a view needs to keep to cover about two screens of itself, and never
+   * fewer than can be on screen at once.
+   *
+   * @param screenWidth  the width of the screen in pixels
+   * @param screenHeight the height of the screen in pixels
+   * @param viewWidth    the width of the view being cached, it may be narrower than the screen
+   * @return the number of tiles
+   */
+  static int getTileCountForScreen(int screenWidth, int screenHeight, int viewWidth) {
+    int width = Math.max(1, Math.min(screenWidth, viewWidth));
+    int height = Math.max(1, screenHeight);
+    // a tile that is partly on screen at each edge
+    int onScreen = (width / TILE_SIZE + 2) * (height / TILE_SIZE + 2);
+    long tilePixels = TILE_SIZE * TILE_SIZE;
+    int twoScreens = (int) ((2L * width * height + tilePixels - 1) / tilePixels);
+    return Math.max(onScreen, twoScreens);
+  }
+
+  /**
+   * @return the memory the tiles take once they have all been rendered, in bytes
+   */
+  long getByteCount() {
+    return (long) tiles.length * TILE_BYTES;
+  }
+
+  /**
+   * @param tileCount a number of tiles
+   * @return the memory that many tiles take, in bytes
+   */
+  static long getByteCount(int tileCount) {
+    return (long) tileCount * TILE_BYTES;
+  }
+
+  /**
+   * Gets a rendered tile, rendering it if it isn't cached or was rendered from older data
+   *
+   * @param tileX       the column of the tile in the grid of tiles
+   * @param tileY       the row of the tile in the grid of tiles
+   * @param dataVersion the current data version of the table
+   * @param background  the color to fill the tile with before rendering it
+   * @param renderer    draws the contents of the tile if needed
+   * @return the rendered tile, to be drawn at (tileX * TILE_SIZE, tileY * TILE_SIZE)
+   */
+  Bitmap getTile(int tileX, int tileY, int dataVersion, int background, Renderer renderer) {
+    int evict = 0;
+    for (int i = 0; i < tiles.length; i++) {
+      Tile tile = tiles[i];
+      if (tile != null && tile.valid && tile.tileX == tileX && tile.tileY == tileY
+          && tile.dataVersion == dataVersion) {
+        tile.lastUsed = ++useCounter;
+        return tile.bitmap;
+      }
+      // prefer an empty slot, then one holding a stale tile, then the least recently used
+      if (tiles[evict] != null && (tile == null || !tile.valid
+          || (tiles[evict].valid && tile.lastUsed < tiles[evict].lastUsed))) {
+        evict = i;
+      }
+    }
+    Tile tile = tiles[evict];
+    if (tile == null) {
+      tile = new Tile(Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, TILE_CONFIG));
+      tiles[evict] = tile;
+    }
+    tile.tileX = tileX;
+    tile.tileY = tileY;
+    tile.dataVersion = dataVersion;
+    tile.lastUsed = ++useCounter;
+
+    int left = tileX * TILE_SIZE;
+    int top = tileY * TILE_SIZE;
+    tile.bitmap.eraseColor(background);
+    canvas.setBitmap(tile.bitmap);
+    canvas.save();
+    canvas.translate(-left, -top);
+    canvas.clipRect(left, top, left + TILE_SIZE, top + TILE_SIZE);
+    // if the renderer couldn't draw everything, render it again next time rather than keep it
+    tile.valid = renderer.renderTile(canvas, left, top, left + TILE_SIZE - 1,
+        top + TILE_SIZE - 1);
+    canvas.restore();
+    canvas.setBitmap(null);
+    return tile.bitmap;
+  }
+
+  /**
+   * Marks every tile as needing to be rendered again, without freeing their bitmaps
+   */
+  void invalidate() {
+    for (Tile tile : tiles) {
+      if (tile != null) {
+        tile.valid = false;
+      }
+    }
+  }
+
+  /**
+   * Frees every tile's bitmap. The cache can still be used afterwards, it will just allocate them
+   * again.
+   */
+  void release() {
+    for (int i = 0; i < tiles.length; i++) {
+      if (tiles[i] != null) {
+        tiles[i].bitmap.recycle();
+        tiles[i] = null;
+      }
+    }
+  }
+
+  /**
+   * The memory the tile caches of one spreadsheet's views may take between them, an eighth of
+   * the heap. Only used on the UI thread.
+   */
+  static final class Budget {
+    private long remainingBytes = Runtime.getRuntime().maxMemory() / 8;
+
+    /**
+     * @param bytes the memory a cache will take
+     * @return whether it fits, if it does it is taken out of the budget
+     */
+    boolean reserve(long bytes) {
+      if (bytes > remainingBytes) {
+        return false;
+      }
+      remainingBytes -= bytes;
+      return true;
+    }
+
+    /**
+     * @param bytes the memory of a cache that is no longer used
+     */
+    void giveBack(long bytes) {
+      remainingBytes += bytes;
+    }
+  }
+
+  /**
+   * Draws the contents of a tile
+   */
+  interface Renderer {
+
+    /**
+     * Draws the part of the view inside the given bounds. The canvas is already translated and
+     * clipped so the view's own coordinates can be used.
+     *
+     * @param canvas the canvas to draw on
+     * @param left   the x coordinate of the leftmost pixel of the tile
+     * @param top    the y coordinate of the topmost pixel of the tile
+     * @param right  the x coordinate of the rightmost pixel of the tile
+     * @param bottom the y coordinate of the bottommost pixel of the tile
+     * @return false if something couldn't be drawn and the tile shouldn't be kept
+     */
+    boolean renderTile(Canvas canvas, int left, int top, int right, int bottom);
+  }
+
+  private static final class Tile {
+    final Bitmap bitmap;
+    int tileX;
+    int tileY;
+    int dataVersion;
+    long lastUsed = 0;
+    boolean valid = false;
+
+    Tile(Bitmap bitmap) {
+      this.bitmap = bitmap;
+    }
+  }
+}
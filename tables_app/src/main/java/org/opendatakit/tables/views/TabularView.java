@@ -24,20 +24,15 @@ import android.util.DisplayMetrics;
 import android.view.ContextMenu;
 import android.view.View;
 import org.opendatakit.activities.IAppAwareActivity;
-import org.opendatakit.data.ColorGuide;
-import org.opendatakit.data.ColorGuideGroup;
 import org.opendatakit.data.ColorRuleGroup;
-import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.logging.WebLogger;
-import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.data.RowColors;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * A view that draws a single table. A single table is essentially a grid of of
@@ -70,6 +65,10 @@ final class TabularView extends View {
   private static final int BORDER_WIDTH = 1;
   //private static final String NULL_DATA_TEXT = "(NULL)";
   private static final String NULL_DATA_TEXT = "null";
+  // Typeface.create looks the style up every time it is called, so only do it once
+  private static final Typeface DATA_TYPEFACE = Typeface.create(Typeface.DEFAULT, Typeface.NORMAL);
+  private static final Typeface NULL_DATA_TYPEFACE = Typeface
+      .create(Typeface.DEFAULT, Typeface.ITALIC);
   private final Controller controller;
   private final int defaultBackgroundColor;
   private final int defaultForegroundColor;
@@ -90,13 +89,44 @@ final class TabularView extends View {
    * displaying. It is a (not strict) subset.
    */
   private final List<String> mElementKeys;
+  /**
+   * The correspondence between the displayed elementKeys and the column index in the
+   * SpreadsheetUserTable, or -1 for the dummy status column.
+   */
+  private final int[] mUserDataIndex;
   // trying to get the dimensions of the screen
   private final DisplayMetrics metrics;
   private int totalHeight;
   private int totalWidth;
   private CellInfo highlightedCellInfo;
-  private Map<String, ColorGuideGroup> mColumnColorGuideGroup = null;
-  private ColorGuideGroup mRowColorGuideGroup = null;
+  /**
+   * Pre-rendered tiles of this view, or null if it is drawn directly every frame
+   */
+  private TabularTileCache tileCache = null;
+  /**
+   * Where the memory for tileCache was reserved from
+   */
+  private TabularTileCache.Budget tileBudget = null;
+  private final TabularTileCache.Renderer tileRenderer = new TabularTileCache.Renderer() {
+    @Override
+    public boolean renderTile(Canvas canvas, int left, int top, int right, int bottom) {
+      return drawRegion(canvas, left, top, right, bottom);
+    }
+  };
+  /**
+   * The color rules for each displayed column, by position in mElementKeys, or null if the column
+   * has none. Evaluated against the rows as they are paged in.
+   */
+  private final ColorRuleGroup[] mColumnColorRuleGroup;
+  /**
+   * The background color of each displayed column, by position in mElementKeys. For a header this
+   * already accounts for the column being grouped by, sorted by or frozen.
+   */
+  private final int[] mColumnBackgroundColor;
+  /**
+   * The color rules for the whole row (or the status column).
+   */
+  private final ColorRuleGroup mRowColorRuleGroup;
   // this should hold the x location of the column. so xs[12] should hold the
   // x displacement of the left side of that column.
   private int[] xs;
@@ -144,6 +174,11 @@ final class TabularView extends View {
     this.controller = controller;
     this.mTable = table;
     this.mElementKeys = elementKeys;
+    this.mUserDataIndex = new int[elementKeys.size()];
+    for (int j = 0; j < mUserDataIndex.length; ++j) {
+      Integer idx = table.getColumnIndexOfElementKey(elementKeys.get(j));
+      mUserDataIndex[j] = idx == null ? -1 : idx;
+    }
     this.defaultBackgroundColor = defaultBackgroundColor;
     this.defaultForegroundColor = defaultForegroundColor;
     this.columnWidths = columnWidths;
@@ -159,29 +194,35 @@ final class TabularView extends View {
           .e(TAG, "Unrecognized TableType in constructor: " + this.type.name());
       this.mNumberOfRows = this.mTable.getNumberOfRows();
     }
-    /*
-    The map of element key to {@link ColorRuleGroup} objects for the columns of
-    the table. This will be responsible for coloring the cells of a column.
-   */
-
-    /*
-    The {@link ColorRuleGroup} object for the table. This will be responsible
-    for things like determining row color.
-   */
-
-    // Initialized the ColorGuideGroups
-    if (mTable != null) {
-      this.mRowColorGuideGroup = new ColorGuideGroup(rowColorRuleGroup, mTable.getUserTable());
-
-      for (Map.Entry<String, ColorRuleGroup> stringColorRuleGroupEntry : elementKeyToColorRuleGroup
-          .entrySet()) {
-        ColorRuleGroup crg = stringColorRuleGroupEntry.getValue();
-        if (crg != null) {
-          if (this.mColumnColorGuideGroup == null) {
-            this.mColumnColorGuideGroup = new TreeMap<>();
-          }
-          this.mColumnColorGuideGroup.put(stringColorRuleGroupEntry.getKey(),
-              new ColorGuideGroup(crg, mTable.getUserTable()));
+    // The rules are evaluated by the table a page of rows at a time, as the rows are drawn
+    this.mRowColorRuleGroup = rowColorRuleGroup;
+    this.mColumnColorRuleGroup = new ColorRuleGroup[elementKeys.size()];
+    this.mColumnBackgroundColor = new int[elementKeys.size()];
+    boolean isHeader = this.type == TableLayoutType.INDEX_HEADER
+        || this.type == TableLayoutType.MAIN_HEADER || this.type == TableLayoutType.STATUS_HEADER;
+    // Changing the group by, sort or frozen column recreates the fragment, so the props can't
+    // change underneath us and we only need to look at them once
+    SpreadsheetProps props = table.getProps();
+    List<String> groupBy = props == null || props.getGroupBy() == null ?
+        new ArrayList<String>() :
+        Arrays.asList(props.getGroupBy());
+    for (int j = 0; j < elementKeys.size(); ++j) {
+      mColumnColorRuleGroup[j] = elementKeyToColorRuleGroup == null ?
+          null :
+          elementKeyToColorRuleGroup.get(elementKeys.get(j));
+      mColumnBackgroundColor[j] = defaultBackgroundColor;
+      if (isHeader && props != null) {
+        String columnKey = table.getHeaderKey(mUserDataIndex[j]);
+        if (columnKey == null) {
+          continue;
+        }
+        if (groupBy.contains(columnKey)) {
+          mColumnBackgroundColor[j] = GROUP_BY_COLOR;
+        } else if (columnKey.equals(props.getSort())) {
+          mColumnBackgroundColor[j] = SORT_COLOR;
+        }
+        if (columnKey.equals(props.getFrozen())) {
+          mColumnBackgroundColor[j] = FROZEN_COLOR;
         }
       }
     }
@@ -386,6 +427,13 @@ final class TabularView extends View {
     return totalWidth;
   }
 
+  /**
+   * @return the distance in pixels from the top of one row to the top of the next
+   */
+  int getRowHeightWithBorder() {
+    return rowHeight + BORDER_WIDTH;
+  }
+
   public CellInfo getCellInfo(int x, int y) {
     int row = y / (rowHeight + BORDER_WIDTH);
     int col = -1;
@@ -411,6 +459,46 @@ final class TabularView extends View {
     return info;
   }
 
+  /**
+   * Turns on or off drawing this view from a cache of pre-rendered tiles. Only useful for the data
+   * portions of the table, which are scrolled; headers are cheap to draw directly.
+   * <p>
+   * Tiled rendering makes scrolling a large table much cheaper, at the cost of the memory for
+   * about two screens worth of this view in bitmaps. If that much is no longer left in the
+   * budget it stays off.
+   *
+   * @param enabled whether to draw from pre-rendered tiles
+   * @param budget  the memory budget shared by the spreadsheet's views, only used if enabled
+   */
+  public void setTileCacheEnabled(boolean enabled, TabularTileCache.Budget budget) {
+    if (!enabled) {
+      if (tileCache != null) {
+        tileCache.release();
+        tileBudget.giveBack(tileCache.getByteCount());
+        tileCache = null;
+        tileBudget = null;
+      }
+    } else if (tileCache == null) {
+      int tiles = TabularTileCache
+          .getTileCountForScreen(metrics.widthPixels, metrics.heightPixels, totalWidth);
+      if (budget.reserve(TabularTileCache.getByteCount(tiles))) {
+        tileCache = new TabularTileCache(tiles);
+        tileBudget = budget;
+      }
+    }
+    invalidate();
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    if (tileCache != null) {
+      // free the bitmaps now rather than waiting on the garbage collector, they get allocated
+      // again if we're reattached
+      tileCache.release();
+    }
+  }
+
   public void highlight(CellInfo highlightedCellInfo) {
     this.highlightedCellInfo = highlightedCellInfo;
     invalidate();
@@ -424,9 +512,6 @@ final class TabularView extends View {
       return;
     }
 
-    // drawing the background--so you're redrawing the background every time...
-    canvas.drawRect(0, 0, totalWidth, totalHeight, bgPaint);
-
     /*
      * SS: I am going to try and fix this method. There are several things that
      * need to be considered. First, a spreadsheet view is composed of several
@@ -553,6 +638,63 @@ final class TabularView extends View {
     if (yScroll < 0) {
       yScroll = 0;
     }
+
+    if (tileCache == null || !drawTiles(canvas, xScroll, yScroll)) {
+      // drawing the background--so you're redrawing the background every time...
+      canvas.drawRect(0, 0, totalWidth, totalHeight, bgPaint);
+      drawRegion(canvas, xScroll, yScroll, xScroll + metrics.widthPixels,
+          yScroll + metrics.heightPixels);
+    }
+
+    // highlighting cell (if necessary). This is drawn on top of the tiles rather than into them,
+    // so moving the highlight doesn't make us render anything again
+    if (highlightedCellInfo != null) {
+      int rowNum = highlightedCellInfo.rowId;
+      int colPos = highlightedCellInfo.colPos;
+      highlightCell(canvas, xs[colPos], (rowNum + 1) * BORDER_WIDTH + rowNum * rowHeight,
+          columnWidths[colPos]);
+    }
+  }
+
+  /**
+   * Draws the tiles that cover the screen from the tile cache, rendering any that aren't cached.
+   *
+   * @param canvas  the canvas to draw on
+   * @param xScroll the x coordinate of the left edge of the screen
+   * @param yScroll the y coordinate of the top edge of the screen
+   * @return false if the tiles couldn't be drawn and the region should be drawn directly
+   */
+  private boolean drawTiles(Canvas canvas, int xScroll, int yScroll) {
+    int tileSize = TabularTileCache.TILE_SIZE;
+    int firstTileX = xScroll / tileSize;
+    int lastTileX = Math.min(xScroll + metrics.widthPixels, totalWidth - 1) / tileSize;
+    int firstTileY = yScroll / tileSize;
+    int lastTileY = Math.min(yScroll + metrics.heightPixels, totalHeight - 1) / tileSize;
+    if (lastTileX < firstTileX || lastTileY < firstTileY) {
+      return false;
+    }
+    int dataVersion = mTable.getDataVersion();
+    for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+      for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+        canvas.drawBitmap(tileCache
+                .getTile(tileX, tileY, dataVersion, defaultBackgroundColor, tileRenderer),
+            tileX * tileSize, tileY * tileSize, null);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Draws the borders and cells of every row and column that overlaps the given region.
+   *
+   * @param canvas the canvas to draw on
+   * @param left   the leftmost x coordinate to draw
+   * @param top    the topmost y coordinate to draw
+   * @param right  the rightmost x coordinate to draw
+   * @param bottom the bottommost y coordinate to draw
+   * @return false if a row couldn't be fetched, so not everything was drawn
+   */
+  private boolean drawRegion(Canvas canvas, int left, int top, int right, int bottom) {
     int topmost;
     int topmostBorder;
     int leftmostBorder;
@@ -575,12 +717,14 @@ final class TabularView extends View {
     } else {
       // Otherwise, we need to compute the value.
       // First let's get the row.
-      topmost = yScroll / (BORDER_WIDTH + rowHeight);
-      bottommost = (yScroll + metrics.heightPixels) / (BORDER_WIDTH + rowHeight);
+      topmost = top / (BORDER_WIDTH + rowHeight);
+      bottommost = bottom / (BORDER_WIDTH + rowHeight);
       if (bottommost >= this.mNumberOfRows) {
         bottommost = this.mNumberOfRows - 1; // don't want to go beyond the last
         // row
       }
+      // page in the visible rows before we start drawing them
+      this.mTable.loadRows(topmost, bottommost);
     }
     topmostBorder = topmost * (BORDER_WIDTH + rowHeight);
     topTopmost = topmostBorder + BORDER_WIDTH;
@@ -588,12 +732,12 @@ final class TabularView extends View {
     bottomBottommost = topBottommostBorder + BORDER_WIDTH + rowHeight;
     // And now let's get the correct column. The math here can't be as simple,
     // b/c unlike rowHeight, columnWidth is not a fixed unit.
-    int indexOfLeftmostColumn = getLeftmostColumnBasedOnXScroll(xScroll);
+    int indexOfLeftmostColumn = getLeftmostColumnBasedOnXScroll(left);
     @SuppressWarnings("unused") String leftmostElementKey = this.mElementKeys
         .get(indexOfLeftmostColumn);
     leftLeftmost = xs[indexOfLeftmostColumn];
     leftmostBorder = leftLeftmost - BORDER_WIDTH;
-    int indexOfRightmostColumn = getLeftmostColumnBasedOnXScroll(xScroll + metrics.widthPixels);
+    int indexOfRightmostColumn = getLeftmostColumnBasedOnXScroll(right);
     @SuppressWarnings("unused") String rightmostElementKey = this.mElementKeys
         .get(indexOfRightmostColumn);
     leftRightmost = xs[indexOfRightmostColumn];
@@ -617,14 +761,9 @@ final class TabularView extends View {
       xCoord += i == this.mElementKeys.size() ? 0 : columnWidths[i] + BORDER_WIDTH;
     }
 
-    // precompute the correspondence between the displayed elementKeys and the
-    // SpreadsheetUserTable userData index
-    int[] userDataIndex = new int[indexOfRightmostColumn + 1];
-    for (int j = indexOfLeftmostColumn; j < indexOfRightmostColumn + 1; ++j) {
-      String elementKey = this.mElementKeys.get(j);
-      Integer idx = this.mTable.getColumnIndexOfElementKey(elementKey);
-      userDataIndex[j] = idx == null ? -1 : idx;
-    }
+    int[] userDataIndex = this.mUserDataIndex;
+    ColorRuleGroup[] columnColorRuleGroup = this.mColumnColorRuleGroup;
+    int[] columnBackgroundColor = this.mColumnBackgroundColor;
 
     // drawing the cells
     int y = topTopmost;
@@ -632,7 +771,7 @@ final class TabularView extends View {
       TypedRow theRow = null;
 
       // we only need to fetch this once for a given row...
-      ColorGuide rowGuide = null;
+      RowColors rowColors = null;
       if (this.type == TableLayoutType.STATUS_DATA || this.type == TableLayoutType.INDEX_DATA
           || this.type == TableLayoutType.MAIN_DATA) {
         // these are the only cases (below) where this value is used...
@@ -645,86 +784,69 @@ final class TabularView extends View {
             appName = ((IAppAwareActivity) controller.getContext()).getAppName();
           }
           WebLogger.getLogger(appName).e(TAG, "Out of bounds exception bug AGAIN");
-          return;
+          return false;
+        }
+        rowColors = mTable.getRowColors(mRowColorRuleGroup, theRowIndex);
+        if (rowColors != null && !rowColors.isMatched(theRowIndex)) {
+          rowColors = null;
         }
-        //rowGuide = mRowColorRuleGroup.getColorGuide(this.mTable.getColumnDefinitions(), theRow);
-        rowGuide = mRowColorGuideGroup
-            .getColorGuideForRowId(theRow.getStringValueByKey(DataTableColumns.ID));
       }
 
       for (int j = indexOfLeftmostColumn; j < indexOfRightmostColumn + 1; j++) {
 
         String datum;
-        String columnKey = null;
+        float datumWidth = SpreadsheetDisplayCache.UNKNOWN_WIDTH;
         if (this.type == TableLayoutType.STATUS_DATA
             || this.type == TableLayoutType.STATUS_HEADER) {
           datum = DEFAULT_STATUS_COLUMN_VALUE;
         } else if (this.type == TableLayoutType.INDEX_HEADER
             || this.type == TableLayoutType.MAIN_HEADER) {
           datum = this.mTable.getHeader(userDataIndex[j]);
-          columnKey = mTable.getHeaderKey(userDataIndex[j]);
         } else if (this.type == TableLayoutType.INDEX_DATA
             || this.type == TableLayoutType.MAIN_DATA) {
 
-          ColumnDefinition cd = this.mTable.getColumnByIndex(userDataIndex[j]);
-          datum = this.mTable.getCachedUserTable()
-              .getDisplayTextOfData(theRowIndex, cd.getType(), cd.getElementKey());
+          datum = this.mTable.getDisplayText(theRowIndex, userDataIndex[j]);
+          datumWidth = this.mTable.getDisplayTextWidth(theRowIndex, userDataIndex[j]);
         } else {
           WebLogger.getLogger(this.mTable.getAppName())
               .e(TAG, "unrecognized table type: " + this.type.name());
           datum = null;
         }
         int foregroundColor = this.defaultForegroundColor;
-        int backgroundColor = this.defaultBackgroundColor;
+        int backgroundColor = columnBackgroundColor[j];
         if (type == TableLayoutType.INDEX_DATA || type == TableLayoutType.MAIN_DATA) {
           // First we check for a row rule.
-          if (rowGuide != null) {
-            foregroundColor = rowGuide.getForeground();
-            backgroundColor = rowGuide.getBackground();
+          if (rowColors != null) {
+            foregroundColor = rowColors.getForeground(theRowIndex);
+            backgroundColor = rowColors.getBackground(theRowIndex);
           }
-          //ColorGuide columnGuide = mColumnColorRules.get(this.mElementKeys.get(j)).getColorGuide(this.mTable.getColumnDefinitions(), theRow);
-          ColorGuide columnGuide = mColumnColorGuideGroup.get(this.mElementKeys.get(j))
-              .getColorGuideForRowId(theRow.getStringValueByKey(DataTableColumns.ID));
+          RowColors columnColors = mTable.getRowColors(columnColorRuleGroup[j], theRowIndex);
           // Override the role rule if a column rule matched.
-          if (columnGuide != null) {
-            foregroundColor = columnGuide.getForeground();
-            backgroundColor = columnGuide.getBackground();
+          if (columnColors != null && columnColors.isMatched(theRowIndex)) {
+            foregroundColor = columnColors.getForeground(theRowIndex);
+            backgroundColor = columnColors.getBackground(theRowIndex);
           }
         }
         if (type == TableLayoutType.STATUS_DATA) {
-          if (rowGuide != null) {
-            foregroundColor = rowGuide.getForeground();
-            backgroundColor = rowGuide.getBackground();
-          }
-        }
-        if (type == TableLayoutType.MAIN_HEADER || type == TableLayoutType.INDEX_HEADER
-            || type == TableLayoutType.STATUS_HEADER) {
-          if (Arrays.asList(mTable.getProps().getGroupBy()).contains(columnKey)) {
-            backgroundColor = GROUP_BY_COLOR;
-          } else if (columnKey != null && columnKey.equals(mTable.getProps().getSort())) {
-            backgroundColor = SORT_COLOR;
-          }
-          if (columnKey != null && columnKey.equals(mTable.getProps().getFrozen())) {
-            backgroundColor = FROZEN_COLOR;
+          if (rowColors != null) {
+            foregroundColor = rowColors.getForeground(theRowIndex);
+            backgroundColor = rowColors.getBackground(theRowIndex);
           }
         }
         // Override any of that if the data is actually null
-        if (datum == null) {
+        boolean isNull = datum == null;
+        if (isNull) {
           datum = NULL_DATA_TEXT;
+          datumWidth = SpreadsheetDisplayCache.UNKNOWN_WIDTH;
           foregroundColor = NULL_COLOR;
         }
-        drawCell(canvas, xs[j], y, datum, backgroundColor, foregroundColor, columnWidths[j]);
+        drawCell(canvas, xs[j], y, datum, isNull, datumWidth, backgroundColor, foregroundColor,
+            columnWidths[j]);
       }
       y += rowHeight + BORDER_WIDTH;
       // adding to try and fix draw
     }
-    // highlighting cell (if necessary)
-    if (highlightedCellInfo != null) {
-      int rowNum = highlightedCellInfo.rowId;
-      int colPos = highlightedCellInfo.colPos;
-      highlightCell(canvas, xs[colPos], (rowNum + 1) * BORDER_WIDTH + rowNum * rowHeight,
-          columnWidths[colPos]);
-    }
+    return true;
   }
 
   /**
@@ -754,8 +876,8 @@ final class TabularView extends View {
     }
   }
 
-  private void drawCell(Canvas canvas, int x, int y, String datum, int backgroundColor,
-      int foregroundColor, int columnWidth) {
+  private void drawCell(Canvas canvas, int x, int y, String datum, boolean isNull,
+      float datumWidth, int backgroundColor, int foregroundColor, int columnWidth) {
     // have to do this check to reset to the default, otherwise it uses the
     // old object which was previously saved and paints all the columns the
     // wrong color.
@@ -765,18 +887,21 @@ final class TabularView extends View {
       bgPaint.setColor(this.defaultBackgroundColor);
     }
     canvas.drawRect(x, y, x + columnWidth, y + rowHeight, bgPaint);
-    canvas.save();
-    canvas.clipRect(x + HORIZONTAL_CELL_PADDING, y, x + columnWidth - 2 * HORIZONTAL_CELL_PADDING,
-        y + rowHeight);
-    textPaint.setColor(foregroundColor);
-    if (datum.equals(NULL_DATA_TEXT)) {
-      textPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.ITALIC));
-    } else {
-      textPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.NORMAL));
+    // only clip if we don't already know that the text fits in the cell
+    boolean clip = datumWidth == SpreadsheetDisplayCache.UNKNOWN_WIDTH
+        || datumWidth > columnWidth - 3 * HORIZONTAL_CELL_PADDING;
+    if (clip) {
+      canvas.save();
+      canvas.clipRect(x + HORIZONTAL_CELL_PADDING, y,
+          x + columnWidth - 2 * HORIZONTAL_CELL_PADDING, y + rowHeight);
     }
+    textPaint.setColor(foregroundColor);
+    textPaint.setTypeface(isNull ? NULL_DATA_TYPEFACE : DATA_TYPEFACE);
     canvas.drawText(datum, x + HORIZONTAL_CELL_PADDING, y + rowHeight - VERTICAL_CELL_PADDING,
         textPaint);
-    canvas.restore();
+    if (clip) {
+      canvas.restore();
+    }
   }
 
   private void highlightCell(Canvas canvas, int x, int y, int columnWidth) {
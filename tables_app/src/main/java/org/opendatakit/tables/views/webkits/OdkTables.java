@@ -19,13 +19,19 @@ package org.opendatakit.tables.views.webkits;
 import android.content.Context;
 import android.os.Bundle;
 import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.activities.IOdkTablesActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.data.ViewFragmentType;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.IntentUtil;
+import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.views.ODKWebView;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * TODO what does this class do?
@@ -35,8 +41,8 @@ class OdkTables {
   /**
    * Used for logging
    */
-  @SuppressWarnings("unused")
   private static final String TAG = OdkTables.class.getSimpleName();
+
   private Context mActivity;
   private WeakReference<ODKWebView> mWebView;
 
@@ -102,7 +108,7 @@ class OdkTables {
           + "support updates. Currently only DetailWithListView's Sub List supports this action");
     }
     BindArgs bindArgs = new BindArgs(sqlSelectionArgsJSON);
-    final Bundle bundle = new Bundle();
+    Bundle bundle = new Bundle();
 
     IntentUtil.addSQLKeysToBundle(bundle, sqlWhereClause, bindArgs, sqlGroupBy, sqlHaving,
         sqlOrderByElementKey, sqlOrderByDirection);
@@ -110,19 +116,92 @@ class OdkTables {
     IntentUtil.addFragmentViewTypeToBundle(bundle, viewType);
     IntentUtil.addFileNameToBundle(bundle, relativePath);
 
-    if (mActivity instanceof TableDisplayActivity) {
-      final TableDisplayActivity activity = (TableDisplayActivity) mActivity;
-      // Run on ui thread to try and prevent a race condition with the two webkits
-      activity.runOnUiThread(new Runnable() {
-        @Override
-        public void run() {
-          activity.updateFragment(Constants.FragmentTags.DETAIL_WITH_LIST_LIST, bundle);
-        }
-      });
-    } else {
+    postSubListUpdate(bundle);
+  }
+
+  /**
+   * Hands new arguments to the sub list fragment, the activity applies the last of a burst of
+   * them
+   *
+   * @param bundle the sub list fragment's new arguments
+   * @throws IllegalArgumentException if the activity doesn't have a sub list
+   */
+  private void postSubListUpdate(Bundle bundle) {
+    if (!(mActivity instanceof TableDisplayActivity)) {
       throw new IllegalArgumentException(
           "Cannot update an activity without an updateFragment " + "method");
     }
+    ((TableDisplayActivity) mActivity).postSubListUpdate(bundle);
+  }
+
+  /**
+   * Tell the activity whether this sub list page re-runs its own query when it changes
+   *
+   * @param inPlace whether to keep the page loaded when the sub list's query changes
+   * @return whether this page is a sub list that can be updated in place
+   */
+  boolean helperSetSubListUpdatesInPlace(boolean inPlace) {
+    ODKWebView webView = mWebView.get();
+    if (webView == null || !(mActivity instanceof TableDisplayActivity)
+        || !Constants.FragmentTags.DETAIL_WITH_LIST_LIST.equals(webView.getContainerFragmentID())) {
+      return false;
+    }
+    ((TableDisplayActivity) mActivity).setSubListUpdatesInPlace(inPlace);
+    return true;
+  }
+
+  /**
+   * Tell the activity which optional sections of the query metadata this page reads
+   *
+   * @param sectionsJSON -- JSON.stringify of a String[] array of section names, or null for all
+   * @return whether the sections could be parsed
+   */
+  boolean helperSetQueryMetadataSections(String sectionsJSON) {
+    ODKWebView webView = mWebView.get();
+    if (webView == null || !(mActivity instanceof IOdkTablesActivity)) {
+      return false;
+    }
+    IOdkTablesActivity activity = (IOdkTablesActivity) mActivity;
+    String fragmentID = webView.getContainerFragmentID();
+    if (sectionsJSON == null) {
+      activity.setRequestedQueryMetadata(fragmentID, null);
+      return true;
+    }
+    try {
+      String[] sections = ODKFileUtils.mapper.readValue(sectionsJSON, String[].class);
+      activity.setRequestedQueryMetadata(fragmentID, new HashSet<>(Arrays.asList(sections)));
+      return true;
+    } catch (IOException e) {
+      WebLogger.getLogger(activity.getAppName()).e(TAG, "Unable to parse " + sectionsJSON);
+      WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
+      return false;
+    }
+  }
+
+  /**
+   * Tell the activity the longest response the page in our web view reads in one piece
+   *
+   * @param chunkLength the most characters to hand over at once, or 0 to never split responses
+   */
+  void helperSetResponseChunkLength(int chunkLength) {
+    ODKWebView webView = mWebView.get();
+    if (webView != null && mActivity instanceof IOdkTablesActivity) {
+      ((IOdkTablesActivity) mActivity)
+          .setResponseChunkLength(webView.getContainerFragmentID(), chunkLength);
+    }
+  }
+
+  /**
+   * Get the next chunk of a response that was too long to hand over in one piece
+   *
+   * @param token the response's continuation token
+   * @return the next chunk, or null if there are no more
+   */
+  String helperGetResponseChunk(String token) {
+    if (!(mActivity instanceof IOdkTablesActivity)) {
+      return null;
+    }
+    return ((IOdkTablesActivity) mActivity).getResponseChunk(token);
   }
 
   /**
@@ -158,26 +237,14 @@ class OdkTables {
           + "support updates. Currently only DetailWithListView's Sub List supports this action");
     }
     BindArgs bindArgs = new BindArgs(sqlSelectionArgsJSON);
-    final Bundle bundle = new Bundle();
+    Bundle bundle = new Bundle();
 
     IntentUtil.addArbitraryQueryToBundle(bundle, sqlCommand, bindArgs);
     IntentUtil.addTableIdToBundle(bundle, tableId);
     IntentUtil.addFragmentViewTypeToBundle(bundle, viewType);
     IntentUtil.addFileNameToBundle(bundle, relativePath);
 
-    if (mActivity instanceof TableDisplayActivity) {
-      final TableDisplayActivity activity = (TableDisplayActivity) mActivity;
-      // Run on ui thread to try and prevent a race condition with the two webkits
-      activity.runOnUiThread(new Runnable() {
-        @Override
-        public void run() {
-          activity.updateFragment(Constants.FragmentTags.DETAIL_WITH_LIST_LIST, bundle);
-        }
-      });
-    } else {
-      throw new IllegalArgumentException(
-          "Cannot update an activity without an updateFragment " + "method");
-    }
+    postSubListUpdate(bundle);
   }
 
 }
@@ -45,7 +45,8 @@ class OdkTablesIf {
   }
 
   /**
-   * Set list view portion of a DetailWithList view, restricted by given query.
+   * Set list view portion of a DetailWithList view, restricted by given query. The list is
+   * updated a moment later, and calls made in quick succession only apply the last one.
    *
    * @param tableId              the tableId of the table to open
    * @param whereClause          If null will not restrict the results.
@@ -68,7 +69,8 @@ class OdkTablesIf {
   }
 
   /**
-   * Set list view portion of a DetailWithList view, restricted by given query.
+   * Set list view portion of a DetailWithList view, restricted by given query. The list is
+   * updated a moment later, and calls made in quick succession only apply the last one.
    *
    * @param tableId              the tableId of the table to open
    * @param sqlCommand           the sql command to execute
@@ -88,4 +90,71 @@ class OdkTablesIf {
         .helperSetSubListView(tableId, relativePath, sqlCommand, sqlSelectionArgsJSON);
     return true;
   }
+
+  /**
+   * Called by the list page of a DetailWithList view to keep itself loaded when the list's query
+   * changes. While set, a setSubListView call for the same file doesn't reload the page. Instead
+   * an "odkTablesViewQueryChanged" event is fired on the page's window, and the page should call
+   * odkData.getViewData again. Loading a different file, or any new list page, clears it.
+   *
+   * @param inPlace true to re-run the query in the loaded page, false to reload it
+   * @return true if this page is a list that can be updated in place
+   */
+  @android.webkit.JavascriptInterface
+  public boolean setSubListUpdatesInPlace(boolean inPlace) {
+    if (isInactive())
+      return false;
+    return weakControl.get().helperSetSubListUpdatesInPlace(inPlace);
+  }
+
+  /**
+   * Declare which of the optional sections of the query metadata this page reads, so the others
+   * are not computed for its queries. Until this is called every section is computed, and it
+   * has to be called again by every page loaded into the web view.
+   *
+   * @param sectionsJSON -- JSON.stringify of a String[] array of section names: any of
+   *                     "rowColors", "statusColors" and "columnColors". An empty array skips
+   *                     the color rules entirely. If null, every section is computed again.
+   *                     Adding "colorPalette" switches the color sections from lists of
+   *                     RowColorObjects to run-length arrays of indexes into a shared
+   *                     "colorPalette" list of [foreground, background] pairs.
+   * @return true if the sections were understood
+   */
+  @android.webkit.JavascriptInterface
+  public boolean setQueryMetadataSections(String sectionsJSON) {
+    if (isInactive())
+      return false;
+    return weakControl.get().helperSetQueryMetadataSections(sectionsJSON);
+  }
+
+  /**
+   * Declare that the page can read long responses a chunk at a time. Once this is called, a
+   * response longer than chunkLength is replaced, in what odkData.getResponseJSON returns, by
+   * {"chunkedResponse":{"token":"...","length":...}}. The page then calls getResponseChunk with
+   * the token until it returns null, and joins the chunks to get the response. It only applies to
+   * this page, and only the 8 most recent responses it hasn't finished reading are kept.
+   *
+   * @param chunkLength the most characters to hand over in one call, or 0 to stop splitting
+   *                    responses. Anything less than 4096 is treated as 4096.
+   */
+  @android.webkit.JavascriptInterface
+  public void setResponseChunkLength(int chunkLength) {
+    if (isInactive())
+      return;
+    weakControl.get().helperSetResponseChunkLength(chunkLength);
+  }
+
+  /**
+   * Get the next chunk of a response that was too long to hand over in one call, see
+   * {@link #setResponseChunkLength(int)}
+   *
+   * @param token the continuation token from the chunkedResponse object
+   * @return the next chunk of the response, or null once it has all been read
+   */
+  @android.webkit.JavascriptInterface
+  public String getResponseChunk(String token) {
+    if (isInactive())
+      return null;
+    return weakControl.get().helperGetResponseChunk(token);
+  }
 }
@@ -14,6 +14,18 @@ public class OdkTablesWebView extends ODKWebView {
    // Used for logging
    private static final String TAG = OdkTablesWebView.class.getSimpleName();
 
+   /**
+    * The event fired on the page's window when its view query changes
+    */
+   public static final String VIEW_QUERY_CHANGED_EVENT = "odkTablesViewQueryChanged";
+   /**
+    * Fires {@link #VIEW_QUERY_CHANGED_EVENT}, written so the oldest web views we support run it
+    */
+   private static final String VIEW_QUERY_CHANGED_SCRIPT = "javascript:(function(){"
+       + "var e=document.createEvent('Event');"
+       + "e.initEvent('" + VIEW_QUERY_CHANGED_EVENT + "',false,false);"
+       + "window.dispatchEvent(e);})()";
+
    /**
     * IGNORE THE WARNINGS
     * This has to be a class property, or it will get garbage collected while the javascript is
@@ -58,14 +70,25 @@ public class OdkTablesWebView extends ODKWebView {
    @Override public void reloadPage() {
 
       log.i(TAG, "reloadPage: current loadPageUrl: " + getLoadPageUrl());
-      String baseUrl = ((IOdkTablesActivity) getContext())
-          .getUrlBaseLocation(false, getContainerFragmentID());
+      IOdkTablesActivity activity = (IOdkTablesActivity) getContext();
+      String baseUrl = activity.getUrlBaseLocation(false, getContainerFragmentID());
 
       if (baseUrl != null) {
+         // whatever the old page asked for doesn't apply to the new one
+         activity.resetPageSettings(getContainerFragmentID());
          loadPageOnUiThread(baseUrl, getContainerFragmentID());
       } else {
          log.w(TAG, "reloadPage: framework did not load -- cannot load anything!");
       }
 
    }
+
+   /**
+    * Tells the loaded page that the activity's view query for it has changed, so it can call
+    * odkData.getViewData again instead of being reloaded. Must be called on the UI thread.
+    */
+   public void signalViewQueryChanged() {
+      log.i(TAG, "signalViewQueryChanged: " + getContainerFragmentID());
+      loadUrl(VIEW_QUERY_CHANGED_SCRIPT);
+   }
 }
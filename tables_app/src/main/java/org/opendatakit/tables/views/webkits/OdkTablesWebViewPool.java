@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.tables.views.webkits;
+
+import android.app.Activity;
+import android.graphics.Color;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.LinearLayout;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.R;
+import org.opendatakit.tables.activities.IOdkTablesActivity;
+
+import java.util.ArrayList;
+
+/**
+ * The web views of one activity, kept so that its fragments don't each pay for constructing a new
+ * one. While prewarming is enabled a spare is built whenever the UI thread goes idle and there
+ * isn't one, and the web view of a fragment whose view is destroyed is blanked and kept for the
+ * next fragment.
+ * <p>
+ * A pool can't be shared between activities: the javascript interfaces of an
+ * {@link OdkTablesWebView} are bound to the activity it was constructed with. Only used on the UI
+ * thread.
+ */
+public final class OdkTablesWebViewPool {
+
+  private static final String TAG = OdkTablesWebViewPool.class.getSimpleName();
+
+  /**
+   * The most idle web views to keep, the detail with list view shows two at once
+   */
+  private static final int MAX_IDLE = 2;
+
+  private final Activity mActivity;
+  private final String mAppName;
+  private final ArrayList<OdkTablesWebView> mIdle = new ArrayList<>();
+  private boolean mPrewarmScheduled = false;
+  private boolean mPrewarmEnabled = true;
+  private boolean mDestroyed = false;
+
+  /**
+   * @param activity the activity the web views are for
+   * @param appName  the app name, used for logging
+   */
+  public OdkTablesWebViewPool(Activity activity, String appName) {
+    mActivity = activity;
+    mAppName = appName;
+  }
+
+  /**
+   * Hands out a web view, an idle one if there is one, and adds it as the first child of a
+   * fragment's web_view_container. It has the id R.id.webkit and starts out hidden, like the one
+   * the layout used to construct.
+   *
+   * @param container the LinearLayout of the fragment's web_view_container
+   * @return the web view
+   */
+  public OdkTablesWebView attach(ViewGroup container) {
+    OdkTablesWebView webView;
+    if (mIdle.isEmpty()) {
+      webView = create();
+    } else {
+      webView = mIdle.remove(mIdle.size() - 1);
+    }
+    container.addView(webView, 0,
+        new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+            ViewGroup.LayoutParams.MATCH_PARENT));
+    // have another ready for the next fragment
+    prewarm();
+    return webView;
+  }
+
+  /**
+   * Takes back the web view of a fragment whose view is being destroyed. Its page is unloaded, so
+   * nothing on it keeps running, and the next fragment to get it always loads its own page.
+   *
+   * @param webView the web view, may be null
+   */
+  public void recycle(OdkTablesWebView webView) {
+    if (webView == null) {
+      return;
+    }
+    ViewParent parent = webView.getParent();
+    if (parent instanceof ViewGroup) {
+      ((ViewGroup) parent).removeView(webView);
+    }
+    if (mDestroyed || mIdle.size() >= MAX_IDLE) {
+      webView.destroy();
+      return;
+    }
+    if (mActivity instanceof IOdkTablesActivity) {
+      ((IOdkTablesActivity) mActivity).resetPageSettings(webView.getContainerFragmentID());
+    }
+    webView.stopLoading();
+    webView.loadUrl("about:blank");
+    webView.clearHistory();
+    webView.setContainerFragmentID(null);
+    webView.setVisibility(View.GONE);
+    // otherwise it could decide the next fragment's page is already loaded
+    webView.setForceLoadDuringReload();
+    mIdle.add(webView);
+  }
+
+  /**
+   * Sets whether to build spare web views. An activity that is only showing views without a web
+   * page turns it off, web views are then only built when a fragment asks for one.
+   *
+   * @param enabled whether {@link #prewarm()} builds a spare web view
+   */
+  public void setPrewarmEnabled(boolean enabled) {
+    mPrewarmEnabled = enabled;
+  }
+
+  /**
+   * Builds a spare web view the next time the UI thread is idle, if there isn't one already and
+   * prewarming is enabled
+   */
+  public void prewarm() {
+    if (mDestroyed || !mPrewarmEnabled || mPrewarmScheduled || !mIdle.isEmpty()) {
+      return;
+    }
+    mPrewarmScheduled = true;
+    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+      @Override
+      public boolean queueIdle() {
+        mPrewarmScheduled = false;
+        if (!mDestroyed && mPrewarmEnabled && mIdle.isEmpty() && !mActivity.isFinishing()) {
+          WebLogger.getLogger(mAppName).d(TAG, "[prewarm] building a spare web view");
+          mIdle.add(create());
+        }
+        return false;
+      }
+    });
+  }
+
+  /**
+   * Destroys the idle web views, for when memory is low
+   */
+  public void clear() {
+    for (OdkTablesWebView webView : mIdle) {
+      webView.destroy();
+    }
+    mIdle.clear();
+  }
+
+  /**
+   * Destroys the idle web views and any recycled later, called when the activity is destroyed
+   */
+  public void destroy() {
+    mDestroyed = true;
+    clear();
+  }
+
+  private OdkTablesWebView create() {
+    OdkTablesWebView webView = new OdkTablesWebView(mActivity, null);
+    webView.setId(R.id.webkit);
+    webView.setBackgroundColor(Color.BLACK);
+    webView.setVisibility(View.GONE);
+    return webView;
+  }
+}
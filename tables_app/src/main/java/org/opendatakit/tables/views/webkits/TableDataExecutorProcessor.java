@@ -16,8 +16,6 @@ package org.opendatakit.tables.views.webkits;
 
 import android.content.Context;
 import android.widget.Toast;
-import org.opendatakit.data.ColorGuide;
-import org.opendatakit.data.ColorGuideGroup;
 import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.data.RowColorObject;
 import org.opendatakit.database.data.KeyValueStoreEntry;
@@ -28,28 +26,61 @@ import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.IOdkTablesActivity;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.ColorRuleEvaluator;
+import org.opendatakit.tables.data.ColorRuleGroupCache;
+import org.opendatakit.tables.data.ColumnStore;
+import org.opendatakit.tables.data.RowColors;
 import org.opendatakit.views.ExecutorContext;
 import org.opendatakit.views.ExecutorProcessor;
+import org.opendatakit.views.ExecutorRequest;
+import org.opendatakit.views.ExecutorRequestType;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author mitchellsundt@gmail.com
  */
 public class TableDataExecutorProcessor extends ExecutorProcessor {
 
-  private static final String ROW_COLORS = "rowColors";
-  private static final String STATUS_COLORS = "statusColors";
-  private static final String COLUMN_COLORS = "columnColors";
+  /**
+   * The optional sections of a query's metadata. A web view can ask for just the ones it reads
+   * with odkTablesIf.setQueryMetadataSections, by default all of them are computed.
+   */
+  public static final String ROW_COLORS = "rowColors";
+  public static final String STATUS_COLORS = "statusColors";
+  public static final String COLUMN_COLORS = "columnColors";
+  /**
+   * Not computed by default either. Asking for it along with the color sections switches them
+   * from a list of RowColorObjects per group to run-length arrays of indexes into this palette.
+   */
+  public static final String COLOR_PALETTE = "colorPalette";
   private static final String MAP_INDEX = "mapIndex";
+  /**
+   * The palette index of rows that no color rule matched
+   */
+  private static final int NO_COLOR = -1;
+  private static final int[] NO_RUNS = new int[0];
   private IOdkTablesActivity mActivity;
+  private ExecutorContext mContext;
+  /**
+   * The request being run, so its metadata can be made for the web view that asked for it
+   */
+  private ExecutorRequest mRequest = null;
+  /**
+   * The activity's page generation when the request was queued
+   */
+  private final int mQueuedGeneration;
 
   /**
-   * Constructs a TableExecutorProcessor with the tables object given
+   * Constructs a TableExecutorProcessor with the tables object given. The ExecutorContext
+   * constructs one along with each request it queues, so this records the page generation the
+   * request was queued in.
    *
    * @param context  unused
    * @param activity saved for later so we can store the index of the selected map item in the
@@ -58,85 +89,228 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
   public TableDataExecutorProcessor(ExecutorContext context, IOdkTablesActivity activity) {
     super(context);
     mActivity = activity;
+    mContext = context;
+    mQueuedGeneration = activity == null ? 0 : activity.getPageGeneration();
   }
 
-  private static void constructRowColorObjects(UserDbInterface dbInterface, DbHandle db,
-      UserTable userTable, String[] adminCols, Collection<RowColorObject> colors, Object crType,
-      String elementKey) throws ServicesAvailabilityException {
-    // Should reuse this code for column and status color rules
+  /**
+   * Runs the request at the head of the queue. If it is one that can change data (adding,
+   * updating or deleting a row, saving or deleting a checkpoint, ...) the application's cached
+   * query results are dropped, both before it runs and after it has reported back, so nothing
+   * that was cached while it was running survives it either. Only the requests that are known
+   * to just read are left out, anything else is assumed to write.
+   * <p>
+   * While it runs the activity knows which page generation the request was queued in, and drops
+   * its answer if the page that asked for it has been replaced since.
+   */
+  @Override
+  public void run() {
+    ExecutorRequest request = mContext.peekRequest();
+    mRequest = request;
+    boolean writes = request != null && isWrite(request.executorRequestType);
+    if (writes) {
+      invalidateQueryCache();
+    }
+    if (mActivity != null) {
+      mActivity.setRequestGeneration(mQueuedGeneration);
+    }
+    try {
+      super.run();
+    } finally {
+      if (mActivity != null) {
+        mActivity.setRequestGeneration(null);
+      }
+    }
+    if (writes) {
+      invalidateQueryCache();
+    }
+  }
+
+  /**
+   * @param type the type of an odkData request
+   * @return false if the request is known to only read data, true if it may write
+   */
+  private static boolean isWrite(ExecutorRequestType type) {
+    if (type == null) {
+      return true;
+    }
+    switch (type) {
+    case UPDATE_EXECUTOR_CONTEXT:
+    case GET_ROLES_LIST:
+    case GET_DEFAULT_GROUP:
+    case GET_USERS_LIST:
+    case GET_ALL_TABLE_IDS:
+    case ARBITRARY_QUERY:
+    case USER_TABLE_QUERY:
+    case USER_TABLE_GET_ROWS:
+    case USER_TABLE_GET_MOST_RECENT_ROW:
+      return false;
+    default:
+      return true;
+    }
+  }
+
+  private void invalidateQueryCache() {
+    if (mActivity != null) {
+      // we don't know which tables a checkpoint or an arbitrary write touched
+      Tables.getInstance().getQueryCache().invalidateApp(mActivity.getAppName());
+    }
+  }
 
+  /**
+   * Evaluates one group of color rules against the rows
+   *
+   * @param dbInterface a database interface to use
+   * @param db          an open database handle to use
+   * @param userTable   the rows
+   * @param store       the rows a column at a time, shared between the groups
+   * @param adminCols   the admin columns
+   * @param crType      which group of rules to evaluate
+   * @param elementKey  the column whose rules to evaluate, for COLUMN
+   * @return the colors of the rows, or null if the group has no rules
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  private static RowColors evaluateColorRules(UserDbInterface dbInterface, DbHandle db,
+      UserTable userTable, ColumnStore store, String[] adminCols, ColorRuleType crType,
+      String elementKey) throws ServicesAvailabilityException {
     ColorRuleGroup crg;
+    ColorRuleGroupCache colorRuleCache = Tables.getInstance().getColorRuleCache();
 
     // Get the table color rules and determine which rows are affected
     if (crType == ColorRuleType.TABLE) {
-      crg = ColorRuleGroup
+      crg = colorRuleCache
           .getTableColorRuleGroup(dbInterface, userTable.getAppName(), db, userTable.getTableId(),
               adminCols);
     } else if (crType == ColorRuleType.COLUMN) {
-      crg = ColorRuleGroup
+      crg = colorRuleCache
           .getColumnColorRuleGroup(dbInterface, userTable.getAppName(), db, userTable.getTableId(),
               elementKey, adminCols);
     } else if (crType == ColorRuleType.STATUS) {
-      crg = ColorRuleGroup
+      crg = colorRuleCache
           .getStatusColumnRuleGroup(dbInterface, userTable.getAppName(), db, userTable.getTableId(),
               adminCols);
 
     } else {
-      return;
+      return null;
     }
 
-    ColorGuideGroup cgg = new ColorGuideGroup(crg, userTable);
-
-    // Loop through the rows
-    for (int i = 0; i < userTable.getNumberOfRows(); i++) {
-      ColorGuide tcg = cgg.getColorGuideForRowIndex(i);
+    if (crg.getColorRules().isEmpty()) {
+      return null;
+    }
+    return ColorRuleEvaluator.evaluate(crg, store, 0);
+  }
 
-      if (tcg != null) {
-        //String hexFgString = "#" + Integer.toHexString(0x00FFFFFF & tcg.getForeground());
+  /**
+   * Lists the rows a group of color rules matched, the way the color sections have always been
+   * sent
+   *
+   * @param userTable the rows
+   * @param colors    the evaluated rules, may be null
+   * @return a RowColorObject for every row that a rule matched
+   */
+  private static ArrayList<RowColorObject> toRowColorObjects(UserTable userTable,
+      RowColors colors) {
+    ArrayList<RowColorObject> objects = new ArrayList<>();
+    if (colors == null) {
+      return objects;
+    }
+    for (int i = 0; i < colors.getNumberOfRows(); i++) {
+      if (colors.isMatched(i)) {
         //noinspection MagicNumber NOTE THAT NUMBER IS ONLY 3 BYTES, NOT 4!
-        String hexFgString = String.format("#%06X", 0xFFFFFF & tcg.getForeground());
-        //String hexBgString = "#" + Integer.toHexString(0x00FFFFFF & tcg.getBackground());
+        String hexFgString = String.format("#%06X", 0xFFFFFF & colors.getForeground(i));
         //noinspection MagicNumber
-        String hexBgString = String.format("#%06X", 0xFFFFFF & tcg.getBackground());
-        RowColorObject rco = new RowColorObject(userTable.getRowId(i), i, hexFgString, hexBgString);
-        colors.add(rco);
+        String hexBgString = String.format("#%06X", 0xFFFFFF & colors.getBackground(i));
+        objects.add(new RowColorObject(userTable.getRowId(i), i, hexFgString, hexBgString));
       }
     }
+    return objects;
   }
 
   @Override
   protected void extendQueryMetadata(UserDbInterface dbInterface, DbHandle db,
       List<KeyValueStoreEntry> entries, UserTable userTable, Map<String, Object> metadata) {
-    // TODO: construct color rule data here...
+    // the page that asked may have said which of the color sections it reads
+    String fragmentID = mRequest == null ? null : mRequest.fragmentID;
+    Set<String> sections = mActivity == null ?
+        null :
+        mActivity.getRequestedQueryMetadata(fragmentID);
+    boolean wantRowColors = sections == null || sections.contains(ROW_COLORS);
+    boolean wantStatusColors = sections == null || sections.contains(STATUS_COLORS);
+    boolean wantColumnColors = sections == null || sections.contains(COLUMN_COLORS);
+    // the compact form is only sent to pages that said they can decode it
+    boolean compact = sections != null && sections.contains(COLOR_PALETTE);
+
+    if (wantRowColors || wantStatusColors || wantColumnColors) {
+      extendColorMetadata(dbInterface, db, userTable, metadata, wantRowColors, wantStatusColors,
+          wantColumnColors, compact);
+    }
+
+    if (mActivity != null) {
+      Integer indexOfSelectedItem = mActivity.getIndexOfSelectedItem();
+      if (indexOfSelectedItem != null) {
+        metadata.put(MAP_INDEX, indexOfSelectedItem);
+      }
+    }
+  }
+
+  /**
+   * Evaluates the requested color rules against the rows returned by the query and adds the
+   * results to its metadata. Only the returned rows are looked at, so a query for one page of a
+   * table only evaluates the rules for that page.
+   * <p>
+   * Each group is sent as a list of RowColorObjects, one for every row it matched. If compact is
+   * set, the distinct colors are sent once in {@link #COLOR_PALETTE} instead, and each group is
+   * an array of runs, see {@link ColorPalette#encode(RowColors)}.
+   *
+   * @param dbInterface      a database interface to use
+   * @param db               an open database handle to use
+   * @param userTable        the rows returned by the query
+   * @param metadata         the query's metadata
+   * @param wantRowColors    whether to add {@link #ROW_COLORS}
+   * @param wantStatusColors whether to add {@link #STATUS_COLORS}
+   * @param wantColumnColors whether to add {@link #COLUMN_COLORS}
+   * @param compact          whether to send the palette and runs
+   */
+  private void extendColorMetadata(UserDbInterface dbInterface, DbHandle db, UserTable userTable,
+      Map<String, Object> metadata, boolean wantRowColors, boolean wantStatusColors,
+      boolean wantColumnColors, boolean compact) {
     String[] adminCols = ADMIN_COLUMNS.toArray(new String[ADMIN_COLUMNS.size()]);
 
-    Collection<RowColorObject> rowColors = new ArrayList<>();
-    Collection<RowColorObject> statusColors = new ArrayList<>();
-    Map<String, ArrayList<RowColorObject>> colColors = new HashMap<>();
+    RowColors rowColors = null;
+    RowColors statusColors = null;
+    Map<String, RowColors> colColors = new HashMap<>();
+    // every group of rules is evaluated against the same columns, each converted once
+    ColumnStore store = new ColumnStore(userTable,
+        ColumnStore.getDataTypes(userTable.getColumnDefinitions()));
 
     try {
-      // Need to get the tables color rules and determine which rows are affected
-      constructRowColorObjects(dbInterface, db, userTable, adminCols, rowColors,
-          ColorRuleType.TABLE, null);
-
-      // Need to get the status color rules and determine which rows are affected
-      constructRowColorObjects(dbInterface, db, userTable, adminCols, statusColors,
-          ColorRuleType.STATUS, null);
-
-      // Need to get column color rules working
-      Object ekm = metadata.get("elementKeyMap");
-      if (ekm == null || !(ekm instanceof Map)) {
-        throw new IllegalStateException("this should be a Map<String,Integer>");
+      if (wantRowColors) {
+        // Need to get the tables color rules and determine which rows are affected
+        rowColors = evaluateColorRules(dbInterface, db, userTable, store, adminCols,
+            ColorRuleType.TABLE, null);
       }
-      // from the calling code path, the Map is always a Map<String,Integer>.
-      @SuppressWarnings("unchecked")
-      Map<String, Integer> elementKeyMap = (Map<String, Integer>) ekm;
-      for (String elementKey : elementKeyMap.keySet()) {
-        ArrayList<RowColorObject> colColorGuide = new ArrayList<>();
-        constructRowColorObjects(dbInterface, db, userTable, adminCols, colColorGuide,
-            ColorRuleType.COLUMN, elementKey);
-        if (!colColorGuide.isEmpty()) {
-          colColors.put(elementKey, colColorGuide);
+
+      if (wantStatusColors) {
+        // Need to get the status color rules and determine which rows are affected
+        statusColors = evaluateColorRules(dbInterface, db, userTable, store, adminCols,
+            ColorRuleType.STATUS, null);
+      }
+
+      if (wantColumnColors) {
+        // Need to get column color rules working
+        Object ekm = metadata.get("elementKeyMap");
+        if (ekm == null || !(ekm instanceof Map)) {
+          throw new IllegalStateException("this should be a Map<String,Integer>");
+        }
+        // from the calling code path, the Map is always a Map<String,Integer>.
+        @SuppressWarnings("unchecked")
+        Map<String, Integer> elementKeyMap = (Map<String, Integer>) ekm;
+        for (String elementKey : elementKeyMap.keySet()) {
+          RowColors colRowColors = evaluateColorRules(dbInterface, db, userTable, store,
+              adminCols, ColorRuleType.COLUMN, elementKey);
+          if (colRowColors != null) {
+            colColors.put(elementKey, colRowColors);
+          }
         }
       }
 
@@ -148,16 +322,44 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
       }
     }
 
-    metadata.put(ROW_COLORS, rowColors);
-    metadata.put(STATUS_COLORS, statusColors);
-    metadata.put(COLUMN_COLORS, colColors);
+    if (!compact) {
+      if (wantRowColors) {
+        metadata.put(ROW_COLORS, toRowColorObjects(userTable, rowColors));
+      }
+      if (wantStatusColors) {
+        metadata.put(STATUS_COLORS, toRowColorObjects(userTable, statusColors));
+      }
+      if (wantColumnColors) {
+        Map<String, ArrayList<RowColorObject>> colColorObjects = new HashMap<>();
+        for (Map.Entry<String, RowColors> entry : colColors.entrySet()) {
+          ArrayList<RowColorObject> objects = toRowColorObjects(userTable, entry.getValue());
+          if (!objects.isEmpty()) {
+            colColorObjects.put(entry.getKey(), objects);
+          }
+        }
+        metadata.put(COLUMN_COLORS, colColorObjects);
+      }
+      return;
+    }
 
-    if (mActivity != null) {
-      Integer indexOfSelectedItem = mActivity.getIndexOfSelectedItem();
-      if (indexOfSelectedItem != null) {
-        metadata.put(MAP_INDEX, indexOfSelectedItem);
+    ColorPalette palette = new ColorPalette();
+    if (wantRowColors) {
+      metadata.put(ROW_COLORS, rowColors == null ? NO_RUNS : palette.encode(rowColors));
+    }
+    if (wantStatusColors) {
+      metadata.put(STATUS_COLORS, statusColors == null ? NO_RUNS : palette.encode(statusColors));
+    }
+    if (wantColumnColors) {
+      Map<String, int[]> colRuns = new HashMap<>();
+      for (Map.Entry<String, RowColors> entry : colColors.entrySet()) {
+        int[] runs = palette.encode(entry.getValue());
+        if (runs.length != 0) {
+          colRuns.put(entry.getKey(), runs);
+        }
       }
+      metadata.put(COLUMN_COLORS, colRuns);
     }
+    metadata.put(COLOR_PALETTE, palette.getColors());
   }
 
   /**
@@ -166,4 +368,81 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
   private enum ColorRuleType {
     TABLE, COLUMN, STATUS
   }
+
+  /**
+   * The distinct foreground/background pairs used by the color rules of a query. They are sent
+   * once, in {@link #COLOR_PALETTE}, as a list of [foreground, background] pairs of "#RRGGBB"
+   * strings, and the rows refer to them by their index in the list.
+   */
+  private static final class ColorPalette {
+    private final List<String[]> colors = new ArrayList<>();
+    private final Map<Long, Integer> indexes = new HashMap<>();
+
+    /**
+     * @return the [foreground, background] pairs, in palette order
+     */
+    List<String[]> getColors() {
+      return colors;
+    }
+
+    /**
+     * @param foreground a foreground color
+     * @param background a background color
+     * @return the index of the pair in the palette, adding it if it's new
+     */
+    int indexOf(int foreground, int background) {
+      //noinspection MagicNumber NOTE THAT NUMBER IS ONLY 3 BYTES, NOT 4!
+      long key = ((long) (0xFFFFFF & foreground) << 32) | (0xFFFFFF & background);
+      Integer index = indexes.get(key);
+      if (index == null) {
+        index = colors.size();
+        //noinspection MagicNumber
+        colors.add(new String[] { String.format("#%06X", 0xFFFFFF & foreground),
+            String.format("#%06X", 0xFFFFFF & background) });
+        indexes.put(key, index);
+      }
+      return index;
+    }
+
+    /**
+     * Run-length encodes the colors of the rows as pairs of ints: the number of rows in the run
+     * and the palette index of their colors, or -1 for rows no rule matched. The runs start at
+     * the first row, any rows after the last run have no colors, so a group of rules that matched
+     * nothing is an empty array.
+     *
+     * @param rowColors the evaluated rules
+     * @return the runs
+     */
+    int[] encode(RowColors rowColors) {
+      int numberOfRows = rowColors.getNumberOfRows();
+      int[] runs = new int[16];
+      int length = 0;
+      // the end of the last run that had colors, so the unmatched rows at the end are dropped
+      int usedLength = 0;
+      int current = NO_COLOR;
+      int runStart = 0;
+      for (int i = 0; i <= numberOfRows; i++) {
+        int color = NO_COLOR;
+        if (i < numberOfRows && rowColors.isMatched(i)) {
+          color = indexOf(rowColors.getForeground(i), rowColors.getBackground(i));
+        }
+        if (i != numberOfRows && color == current) {
+          continue;
+        }
+        if (i > runStart) {
+          if (length + 2 > runs.length) {
+            runs = Arrays.copyOf(runs, runs.length * 2);
+          }
+          runs[length++] = i - runStart;
+          runs[length++] = current;
+          if (current != NO_COLOR) {
+            usedLength = length;
+          }
+        }
+        current = color;
+        runStart = i;
+      }
+      return usedLength == 0 ? NO_RUNS : Arrays.copyOf(runs, usedLength);
+    }
+  }
 }
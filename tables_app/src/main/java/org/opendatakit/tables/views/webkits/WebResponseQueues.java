@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.tables.views.webkits;
+
+import org.opendatakit.tables.utils.Constants;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The responses waiting to be read by an activity's web views, one queue per web view. The
+ * detail-with-list screen has two web views, the list is the
+ * {@link Constants.FragmentTags#DETAIL_WITH_LIST_LIST} fragment and everything else goes to the
+ * main queue.
+ * <p>
+ * The queues are lock free, so the two web views never wait on each other or on the threads
+ * delivering responses. Each queue hands out its responses in the order they were added.
+ */
+public final class WebResponseQueues {
+
+  private final ConcurrentLinkedQueue<String> main = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<String> sublist = new ConcurrentLinkedQueue<>();
+
+  private ConcurrentLinkedQueue<String> getQueue(String fragmentID) {
+    if (fragmentID != null && Constants.FragmentTags.DETAIL_WITH_LIST_LIST.equals(fragmentID)) {
+      return sublist;
+    }
+    return main;
+  }
+
+  /**
+   * Adds a response to the end of a web view's queue
+   *
+   * @param fragmentID   the id of the web view's fragment, null for the main one
+   * @param responseJSON the response
+   */
+  public void add(String fragmentID, String responseJSON) {
+    getQueue(fragmentID).offer(responseJSON);
+  }
+
+  /**
+   * Removes the oldest response from a web view's queue
+   *
+   * @param fragmentID the id of the web view's fragment, null for the main one
+   * @return the response, or null if there are none waiting
+   */
+  public String poll(String fragmentID) {
+    return getQueue(fragmentID).poll();
+  }
+
+  /**
+   * Drops every response waiting in a web view's queue, for when the page that asked for them has
+   * been replaced
+   *
+   * @param fragmentID the id of the web view's fragment, null for the main one
+   */
+  public void clear(String fragmentID) {
+    getQueue(fragmentID).clear();
+  }
+
+  /**
+   * Copies a web view's queue, oldest first, so it can be saved with the instance state
+   *
+   * @param fragmentID the id of the web view's fragment, null for the main one
+   * @return the waiting responses
+   */
+  public String[] toArray(String fragmentID) {
+    ConcurrentLinkedQueue<String> queue = getQueue(fragmentID);
+    return queue.toArray(new String[queue.size()]);
+  }
+
+  /**
+   * Replaces a web view's queue with responses from the saved instance state
+   *
+   * @param fragmentID the id of the web view's fragment, null for the main one
+   * @param responses  the saved responses, oldest first, may be null
+   */
+  public void restore(String fragmentID, String[] responses) {
+    ConcurrentLinkedQueue<String> queue = getQueue(fragmentID);
+    queue.clear();
+    if (responses != null) {
+      queue.addAll(Arrays.asList(responses));
+    }
+  }
+}